@@ -0,0 +1,262 @@
+/**
+ * AsmBuffer.java
+ * Buffers generated Hack assembly as ASCII bytes on its way to the output channel.
+ * Commands are written as pre-encoded AsmTemplates whose operands are spliced
+ * straight into one large reusable buffer, which is flushed through a channel
+ * (a FileChannel for .asm files) once it fills up.
+ * A call target whose defining file has not been seen yet is recorded as a
+ * placeholder; everything from the first placeholder on stays in memory until
+ * link() fills the placeholders in from the finished FunctionTable.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Added writeInt() so numbers are rendered without a String
+ * 2026-10-18: Added flush() for streaming translation
+ * 2026-10-18: Write AsmTemplates with spliced operands; output through a WritableByteChannel
+ * 2026-10-18: Optionally leave out comments, counting the bytes saved
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+public class AsmBuffer {
+    private static final int FLUSH_SIZE = 64 * 1024; // write out once this many bytes are buffered
+
+    private final WritableByteChannel output;
+    private byte[] bytes = new byte[FLUSH_SIZE * 2];
+    private ByteBuffer view = ByteBuffer.wrap(bytes); // the same bytes, for channel writes
+    private int size = 0; // number of buffered bytes
+    private long written = 0; // number of bytes passed on to the output channel
+    private boolean comments = true; // false to write the compact form of every template
+    private long commentBytesOmitted = 0; // bytes of comments left out because comments are off
+
+    // placeholders for call targets, in the order they were written
+    private int[] fixupOffsets = new int[16]; // offset in bytes where the resolved target goes
+    private String[] fixupNames = new String[16]; // the called function
+    private int fixupCount = 0;
+
+    /**
+     * Buffer assembly for the given channel, e.g. a FileChannel open for writing
+     * @param output where the assembly is written once it is complete
+     */
+    public AsmBuffer(WritableByteChannel output) {
+        this.output = output;
+    }
+
+    /**
+     * Buffer assembly for the given output stream
+     * @param output where the assembly is written once it is complete
+     */
+    public AsmBuffer(OutputStream output) {
+        this(Channels.newChannel(output));
+    }
+
+    /**
+     * Choose whether templates are written with their // comment lines
+     * @param comments true for commented assembly, false for the compact form
+     */
+    void setComments(boolean comments) {
+        this.comments = comments;
+    }
+
+    /**
+     * Are templates written with their // comment lines?
+     * @return boolean true if comments are written
+     */
+    boolean comments() {
+        return comments;
+    }
+
+    /**
+     * Record comment bytes that the caller left out itself (e.g. a comment naming a call target)
+     * @param length the number of bytes left out
+     */
+    void omitComment(int length) {
+        commentBytesOmitted += length;
+    }
+
+    /**
+     * Get the number of comment bytes left out so far
+     * @return long the bytes that commented output would have added
+     */
+    long commentBytesOmitted() {
+        return commentBytesOmitted;
+    }
+
+    /**
+     * Get the number of bytes written to the output channel so far
+     * @return long the output size
+     */
+    long bytesWritten() {
+        return written;
+    }
+
+    /**
+     * Append a template that has no holes
+     * @param template the encoded assembly
+     */
+    void write(AsmTemplate template) throws IOException {
+        write(template, null, null, 0, 0);
+    }
+
+    /**
+     * Append a template whose holes are all {N}
+     * @param template the encoded assembly
+     * @param n the value of every {N} hole
+     */
+    void write(AsmTemplate template, int n) throws IOException {
+        write(template, null, null, n, 0);
+    }
+
+    /**
+     * Append a template, filling in its holes
+     * @param template the encoded assembly
+     * @param a the bytes of every {A} hole
+     * @param b the bytes of every {B} hole
+     * @param n the value of every {N} hole
+     * @param m the value of every {M} hole
+     */
+    void write(AsmTemplate template, byte[] a, byte[] b, int n, int m) throws IOException {
+        if (!comments && template.compact != template) {
+            commentBytesOmitted += template.length(a, b, n, m) - template.compact.length(a, b, n, m);
+            template = template.compact; // skip the comment lines and the operands in them
+        }
+        byte[] text = template.bytes;
+        int start = 0; // first byte of the template not yet copied
+        for (int hole = 0; hole < template.holeOffsets.length; hole++) {
+            int offset = template.holeOffsets[hole];
+            append(text, start, offset - start);
+            switch (template.holeKinds[hole]) {
+                case AsmTemplate.HOLE_A: append(a, 0, a.length); break;
+                case AsmTemplate.HOLE_B: append(b, 0, b.length); break;
+                case AsmTemplate.HOLE_N: appendInt(n); break;
+                default: appendInt(m); break;
+            }
+            start = offset;
+        }
+        append(text, start, text.length - start);
+        if (fixupCount == 0 && size >= FLUSH_SIZE) flushBytes(); // nothing to patch; pass it on
+    }
+
+    /**
+     * Append assembly that is already encoded as ASCII bytes
+     * @param assembly the assembly bytes
+     */
+    void write(byte[] assembly) throws IOException {
+        append(assembly, 0, assembly.length);
+        if (fixupCount == 0 && size >= FLUSH_SIZE) flushBytes(); // nothing to patch; pass it on
+    }
+
+    /**
+     * Append a number in decimal
+     * @param value the number
+     */
+    void writeInt(int value) throws IOException {
+        appendInt(value);
+        if (fixupCount == 0 && size >= FLUSH_SIZE) flushBytes(); // nothing to patch; pass it on
+    }
+
+    /**
+     * Append a placeholder for the file-prefixed name of a function (e.g. Main.Main.fibonacci)
+     * @param functionName the called function, whose file is not known yet
+     */
+    void writeCallTarget(String functionName) {
+        if (fixupCount == fixupOffsets.length) {
+            fixupOffsets = Arrays.copyOf(fixupOffsets, fixupCount * 2);
+            fixupNames = Arrays.copyOf(fixupNames, fixupCount * 2);
+        }
+        fixupOffsets[fixupCount] = size;
+        fixupNames[fixupCount] = functionName;
+        fixupCount++;
+    }
+
+    /**
+     * Get the number of call targets still waiting to be filled in
+     * @return int the number of placeholders
+     */
+    int pendingCallTargets() {
+        return fixupCount;
+    }
+
+    /**
+     * Fill in every placeholder from the function table and write out the buffered assembly
+     * @param functionTable the complete function table
+     */
+    void link(FunctionTable functionTable) throws IOException {
+        int start = 0;
+        for (int i = 0; i < fixupCount; i++) {
+            String functionName = fixupNames[i];
+            byte[] label = functionTable.getLabel(functionName);
+            if (label == null) { // never defined in any file
+                throw new IllegalArgumentException("Function not found: " + functionName);
+            }
+            writeFully(view, start, fixupOffsets[i]);
+            writeFully(ByteBuffer.wrap(label), 0, label.length);
+            start = fixupOffsets[i];
+        }
+        writeFully(view, start, size);
+        size = 0;
+        fixupCount = 0;
+        Arrays.fill(fixupNames, null);
+    }
+
+    /**
+     * Write out the buffered assembly up to the first placeholder
+     */
+    void flush() throws IOException {
+        if (fixupCount == 0) flushBytes(); // placeholders hold everything after them until link()
+    }
+
+    /**
+     * Write out the buffered assembly and close the output channel
+     */
+    void close() throws IOException {
+        if (fixupCount > 0) throw new IllegalStateException("Unresolved call target: " + fixupNames[0]);
+        flushBytes();
+        output.close();
+    }
+
+    private void append(byte[] source, int offset, int length) {
+        if (size + length > bytes.length) grow(length);
+        System.arraycopy(source, offset, bytes, size, length);
+        size += length;
+    }
+
+    private void appendInt(int value) {
+        if (size + 11 > bytes.length) grow(11); // "-2147483648"
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value; // MIN_VALUE stays negative; handled by the unsigned digits below
+        }
+        int end = size + AsmTemplate.digits(value);
+        for (int i = end - 1; i >= size; i--) {
+            bytes[i] = (byte) ('0' + Integer.remainderUnsigned(value, 10));
+            value = Integer.divideUnsigned(value, 10);
+        }
+        size = end;
+    }
+
+    private void flushBytes() throws IOException {
+        writeFully(view, 0, size);
+        size = 0;
+    }
+
+    /**
+     * Write the given range of a buffer to the output channel, however many writes it takes
+     */
+    private void writeFully(ByteBuffer buffer, int start, int end) throws IOException {
+        buffer.limit(end).position(start);
+        while (buffer.hasRemaining()) output.write(buffer);
+        written += end - start;
+    }
+
+    /**
+     * Make room for at least the given number of additional bytes (only while placeholders hold the buffer)
+     */
+    private void grow(int length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        view = ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * AsmTemplate.java
+ * The Hack instructions of one VM command (or part of one), encoded once as ASCII
+ * bytes with holes for the parts that vary. AsmBuffer splices the operands straight
+ * into its byte buffer, so emitting a command allocates nothing.
+ * Holes are written in the template text as:
+ *   {A} first name operand (e.g. the "File.function$" label scope)
+ *   {B} second name operand (e.g. a label or function name)
+ *   {N} first number operand (e.g. the segment index)
+ *   {M} second number operand (e.g. a return address number)
+ * Every template also carries a compact form without its // comment lines, which
+ * AsmBuffer writes instead when comments are turned off.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Added the compact (comment-free) form of each template
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public final class AsmTemplate {
+    static final byte HOLE_A = 'A'; // first name operand
+    static final byte HOLE_B = 'B'; // second name operand
+    static final byte HOLE_N = 'N'; // first number operand
+    static final byte HOLE_M = 'M'; // second number operand
+
+    final byte[] bytes; // the template text with the holes removed
+    final int[] holeOffsets; // offset in bytes of each hole, in ascending order
+    final byte[] holeKinds; // HOLE_A, HOLE_B, HOLE_N, or HOLE_M for each hole
+    final AsmTemplate compact; // the same instructions without the comment lines (this template if it has none)
+
+    private AsmTemplate(byte[] bytes, int[] holeOffsets, byte[] holeKinds, AsmTemplate compact) {
+        this.bytes = bytes;
+        this.holeOffsets = holeOffsets;
+        this.holeKinds = holeKinds;
+        this.compact = (compact == null) ? this : compact;
+    }
+
+    /**
+     * Encode a template
+     * @param text the assembly text, with {A}, {B}, {N}, and {M} marking the holes
+     * @return AsmTemplate the encoded template
+     */
+    static AsmTemplate of(String text) {
+        String stripped = stripComments(text);
+        return encode(text, stripped.equals(text) ? null : encode(stripped, null));
+    }
+
+    /**
+     * Get the number of bytes the template takes up once its holes are filled in
+     * @param a the bytes of every {A} hole
+     * @param b the bytes of every {B} hole
+     * @param n the value of every {N} hole
+     * @param m the value of every {M} hole
+     * @return int the length in bytes
+     */
+    int length(byte[] a, byte[] b, int n, int m) {
+        int length = bytes.length;
+        for (byte kind : holeKinds) {
+            switch (kind) {
+                case HOLE_A: length += a.length; break;
+                case HOLE_B: length += b.length; break;
+                case HOLE_N: length += (n < 0) ? 1 + digits(-n) : digits(n); break;
+                default: length += (m < 0) ? 1 + digits(-m) : digits(m); break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Count the decimal digits of a number read as unsigned (so -MIN_VALUE counts correctly)
+     * @param value the number
+     * @return int the number of digits
+     */
+    static int digits(int value) {
+        int count = 1;
+        while (Integer.compareUnsigned(value, 10) >= 0) {
+            value = Integer.divideUnsigned(value, 10);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Remove every line that starts with // (a line may also end the text without a newline)
+     */
+    private static String stripComments(String text) {
+        StringBuilder code = new StringBuilder(text.length());
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = (end < 0) ? text.length() : end + 1;
+            if (!text.startsWith("//", start)) code.append(text, start, end);
+            start = end;
+        }
+        return code.toString();
+    }
+
+    /**
+     * Split the text into its fixed bytes and its holes
+     */
+    private static AsmTemplate encode(String text, AsmTemplate compact) {
+        StringBuilder fixed = new StringBuilder(text.length());
+        List<Integer> offsets = new ArrayList<>();
+        StringBuilder kinds = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{' && i + 2 < text.length() && text.charAt(i + 2) == '}' && "ABNM".indexOf(text.charAt(i + 1)) >= 0) {
+                offsets.add(fixed.length());
+                kinds.append(text.charAt(i + 1));
+                i += 2; // skip the hole marker
+            } else {
+                fixed.append(c);
+            }
+        }
+        int[] holeOffsets = new int[offsets.size()];
+        for (int i = 0; i < holeOffsets.length; i++) holeOffsets[i] = offsets.get(i);
+        return new AsmTemplate(fixed.toString().getBytes(StandardCharsets.US_ASCII), holeOffsets,
+                kinds.toString().getBytes(StandardCharsets.US_ASCII), compact);
+    }
+}
@@ -41,52 +41,733 @@
  * Implicit data structures (never mentioned in the VM language):
  * - Stack: grows downward from 256 to 2047 (managed by push/pop)
  * - Heap: grows upward from 2048 to 16383
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2024-05-30: Refactored to more properly support unique label generation for function calls
+ * 2026-10-18: Defer call targets not in the function table yet to close() (single-pass builds)
+ * 2026-10-18: Added a constructor for an output stream and writeFragment() for parallel builds
+ * 2026-10-18: Keep the per-file state (file name, function name, counters) in a TranslationContext
+ * 2026-10-18: Write labels and names from interned, pre-rendered bytes
+ * 2026-10-18: Added resumeFile() and flush() for streaming translation
+ * 2026-10-18: Write each command from a pre-encoded AsmTemplate through a FileChannel
+ * 2026-10-18: Added compact output without comments
+ * 2026-10-18: Added the shared call and return routines
+ * 2026-10-18: Added the shared compare routines
+ * 2026-10-18: Pass the output through a PeepholeOptimizer
+ * 2026-10-18: Added the shortest push/pop form for each index
+ * 2026-10-18: Keep the top of the stack in D between commands
+ * 2026-10-18: Fold arithmetic on constants through a ConstantFolder
+ * 2026-10-18: Write a push followed by a pop as one move
+ * 2026-10-18: Write a comparison followed by if-goto as one conditional jump
+ * 2026-10-18: Track SP at translation time within straight-line code
+ * 2026-10-18: Added the register-form blocks written by SsaLowering
+ * 2026-10-18: Write held-back output before writeFunction enters the new function
+ * 2026-10-18: Take the options and the statistics collector as constructor arguments instead of static settings
+ * 2026-10-18: Build debug strings only in debug mode
+ * 2026-10-18: Added CODE_VERSION to the FragmentCache key
+ * 2026-10-18: Take the decoded Opcode and Segment instead of keywords
  * @author Charles Stevenson
- * @version 2024-05-30
+ * @version 2026-10-18
  */
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
 
 public class CodeWriter {
-    private final BufferedWriter writer;
-    private String currentFileName = null; // current .VM file being translated
-    private String currentFuncName = null; // current function name translated
+    // Version of the generated code; part of every FragmentCache key, so bump it with any change to the
+    // templates or to the code CodeWriter or SsaLowering write for a command, and older cache entries are never used
+    static final int CODE_VERSION = 2;
+
+    private static final String PUSH_D = // push D onto the stack
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M\n" + // point to the top of the stack
+            "M=D\n" + // push D onto the stack
+            "@SP\n" + // load the stack pointer into the A register
+            "M=M+1\n"; // increment the stack pointer
+    private static final String POP_D = // pop the stack into D
+            "@SP\n" + // load the stack pointer into the A register
+            "AM=M-1\n" + // decrement SP and point to the top of the stack
+            "D=M\n"; // D = *SP
+
+    // Pre-encoded instruction sequences, one per command (see AsmTemplate for the {A}/{B}/{N}/{M} holes)
+
+    // push <segment> i for the segments addressed through a base pointer; {N} = i
+    private static final AsmTemplate PUSH_ARGUMENT = pushIndirect("argument", "ARG");
+    private static final AsmTemplate PUSH_LOCAL = pushIndirect("local", "LCL");
+    private static final AsmTemplate PUSH_THIS = pushIndirect("this", "THIS");
+    private static final AsmTemplate PUSH_THAT = pushIndirect("that", "THAT");
+    // pop <segment> i for the segments addressed through a base pointer; {N} = i
+    private static final AsmTemplate POP_ARGUMENT = popIndirect("argument", "ARG");
+    private static final AsmTemplate POP_LOCAL = popIndirect("local", "LCL");
+    private static final AsmTemplate POP_THIS = popIndirect("this", "THIS");
+    private static final AsmTemplate POP_THAT = popIndirect("that", "THAT");
+
+    // --short-templates: the shortest known form of each push/pop, by index; the last form covers every larger index
+    // (see shortPushIndirect and shortPopIndirect); {N} = i
+    private static final AsmTemplate[] SHORT_PUSH_ARGUMENT = shortPushIndirect("argument", "ARG", PUSH_ARGUMENT);
+    private static final AsmTemplate[] SHORT_PUSH_LOCAL = shortPushIndirect("local", "LCL", PUSH_LOCAL);
+    private static final AsmTemplate[] SHORT_PUSH_THIS = shortPushIndirect("this", "THIS", PUSH_THIS);
+    private static final AsmTemplate[] SHORT_PUSH_THAT = shortPushIndirect("that", "THAT", PUSH_THAT);
+    private static final AsmTemplate[] SHORT_POP_ARGUMENT = shortPopIndirect("argument", "ARG");
+    private static final AsmTemplate[] SHORT_POP_LOCAL = shortPopIndirect("local", "LCL");
+    private static final AsmTemplate[] SHORT_POP_THIS = shortPopIndirect("this", "THIS");
+    private static final AsmTemplate[] SHORT_POP_THAT = shortPopIndirect("that", "THAT");
+
+    // push constant i: push i; {N} = i
+    private static final AsmTemplate PUSH_CONSTANT = AsmTemplate.of(
+            "// push constant {N}\n" + // write a comment for readability
+            "@{N}\n" + // load the constant into the A register
+            "D=A\n" + // D = i
+            PUSH_D);
+    // push constant 0 and 1 store the value directly instead of loading it into D; {N} = i
+    private static final AsmTemplate[] SHORT_PUSH_CONSTANT = {
+            AsmTemplate.of(
+                    "// push constant {N}\n" + // write a comment for readability
+                    "@SP\n" + // load the stack pointer into the A register
+                    "A=M\n" + // point to the top of the stack
+                    "M=0\n" + // push 0
+                    "@SP\n" + // load the stack pointer into the A register
+                    "M=M+1\n"), // increment the stack pointer
+            AsmTemplate.of(
+                    "// push constant {N}\n" + // write a comment for readability
+                    "@SP\n" + // load the stack pointer into the A register
+                    "A=M\n" + // point to the top of the stack
+                    "M=1\n" + // push 1
+                    "@SP\n" + // load the stack pointer into the A register
+                    "M=M+1\n"), // increment the stack pointer
+            PUSH_CONSTANT};
+    // push static i: push filename.i; {A} = "File.", {N} = i
+    private static final AsmTemplate PUSH_STATIC = AsmTemplate.of(
+            "// push static {N}\n" + // write a comment for readability
+            "@{A}{N}\n" + // load the static variable into the A register
+            "D=M\n" + // D = filename.i
+            PUSH_D);
+    // push temp i: push R5+i; {N} = i, {M} = 5 + i
+    private static final AsmTemplate PUSH_TEMP = AsmTemplate.of(
+            "// push temp {N}\n" + // write a comment for readability
+            "@{M}\n" + // load the address of the temp variable into the A register
+            "D=M\n" + // D = R5+i
+            PUSH_D);
+    // push pointer 0/1: push THIS/THAT; {N} = 0 or 1
+    private static final AsmTemplate PUSH_POINTER_THIS = AsmTemplate.of(
+            "// push pointer {N}\n" + // write a comment for readability
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "D=M\n" + // D = THIS
+            PUSH_D);
+    private static final AsmTemplate PUSH_POINTER_THAT = AsmTemplate.of(
+            "// push pointer {N}\n" + // write a comment for readability
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "D=M\n" + // D = THAT
+            PUSH_D);
+
+    // --fold-constants: push a folded value outside 0-32767; {N} = the value, {M} = ~value (0-32767)
+    private static final AsmTemplate PUSH_NEGATIVE = AsmTemplate.of(
+            "// push constant {N}\n" + // write a comment for readability
+            "@{M}\n" + // load the complement of the value into the A register
+            "D=!A\n" + // D = value
+            PUSH_D);
+    private static final AsmTemplate PUSH_TRUE = AsmTemplate.of(
+            "// push constant {N}\n" + // write a comment for readability
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M\n" + // point to the top of the stack
+            "M=-1\n" + // push -1 (true)
+            "@SP\n" + // load the stack pointer into the A register
+            "M=M+1\n"); // increment the stack pointer
+
+    // pop static i: pop filename.i; {A} = "File.", {N} = i
+    private static final AsmTemplate POP_STATIC = AsmTemplate.of(
+            "// pop static {N}\n" + // write a comment for readability
+            POP_D +
+            "@{A}{N}\n" + // load the static variable into the A register
+            "M=D\n"); // filename.i = *SP
+    // pop temp i: pop R5+i; {N} = i, {M} = 5 + i
+    private static final AsmTemplate POP_TEMP = AsmTemplate.of(
+            "// pop temp {N}\n" + // write a comment for readability
+            POP_D +
+            "@{M}\n" + // load the address of the temp variable into the A register
+            "M=D\n"); // R5+i = *SP
+    // pop pointer 0/1: pop THIS/THAT; {N} = 0 or 1
+    private static final AsmTemplate POP_POINTER_THIS = AsmTemplate.of(
+            "// pop pointer {N}\n" + // write a comment for readability
+            POP_D +
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "M=D\n"); // THIS = *SP
+    private static final AsmTemplate POP_POINTER_THAT = AsmTemplate.of(
+            "// pop pointer {N}\n" + // write a comment for readability
+            POP_D +
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "M=D\n"); // THAT = *SP
+
+    // add, sub, and, or: pop y, replace x with x op y
+    private static final AsmTemplate ADD = binary("add", "M=M+D\n"); // add first operand to second operand
+    private static final AsmTemplate SUB = binary("sub", "M=M-D\n"); // subtract first operand from second operand
+    private static final AsmTemplate AND = binary("and", "M=D&M\n"); // bitwise AND x and y and store the result in x
+    private static final AsmTemplate OR = binary("or", "M=D|M\n"); // bitwise OR x and y and store the result in x
+    // neg, not: replace the top operand in place; the stack pointer is unchanged
+    private static final AsmTemplate NEG = AsmTemplate.of(
+            "// neg\n" + // write a comment for readability
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M-1\n" + // point to the top operand, stack pointer is unchanged
+            "M=-M\n"); // negate the top operand
+    private static final AsmTemplate NOT = AsmTemplate.of(
+            "// not\n" + // write a comment for readability
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M-1\n" + // point to x
+            "M=!M\n"); // bitwise NOT x and store the result in x
+    // eq, gt, lt: pop y, replace x with -1 (true) or 0 (false); {A} = "File.function$", {N} = label number
+    private static final AsmTemplate EQ = compare("eq", "JEQ"); // x - y = 0
+    private static final AsmTemplate GT = compare("gt", "JGT"); // x - y > 0
+    private static final AsmTemplate LT = compare("lt", "JLT"); // x - y < 0
+    // --shared-compares: a call site passes the return address in D to the routine; {A} = "File.function$", {N} = label counter
+    private static final AsmTemplate SHARED_EQ = sharedCompare("eq", "EQ");
+    private static final AsmTemplate SHARED_GT = sharedCompare("gt", "GT");
+    private static final AsmTemplate SHARED_LT = sharedCompare("lt", "LT");
+    private static final AsmTemplate COMPARE_ROUTINES = AsmTemplate.of(
+            "// shared compare routines\n" + // write a comment for readability
+            compareRoutine("EQ", "JEQ") +
+            compareRoutine("GT", "JGT") +
+            compareRoutine("LT", "JLT"));
+
+    // --fuse-branches: eq/gt/lt, any number of nots, if-goto as one conditional jump, by comparison and
+    // whether it is negated (see branchIndex); {A} = "File.function$", {B} = the label
+    private static final AsmTemplate[] BRANCHES = {
+            branch(Opcode.EQ, false, true), branch(Opcode.EQ, true, true),
+            branch(Opcode.GT, false, true), branch(Opcode.GT, true, true),
+            branch(Opcode.LT, false, true), branch(Opcode.LT, true, true)};
+    private static final AsmTemplate[] TOP_BRANCHES = { // y is already in D (--top-in-d)
+            branch(Opcode.EQ, false, false), branch(Opcode.EQ, true, false),
+            branch(Opcode.GT, false, false), branch(Opcode.GT, true, false),
+            branch(Opcode.LT, false, false), branch(Opcode.LT, true, false)};
+
+    // label, goto, if-goto; {A} = "File.function$", {B} = the label
+    private static final AsmTemplate LABEL = AsmTemplate.of(
+            "// label {A}{B}\n" + // write a comment for readability
+            "({A}{B})\n"); // write the label
+    private static final AsmTemplate GOTO = AsmTemplate.of(
+            "// goto {A}{B}\n" + // write a comment for readability
+            "@{A}{B}\n" + // load the label into the A register
+            "0;JMP\n"); // unconditional jump to the label
+    private static final AsmTemplate IF_GOTO = AsmTemplate.of(
+            "// if-goto {A}{B}\n" + // write a comment for readability
+            POP_D +
+            "@{A}{B}\n" + // load the label into the A register
+            "D;JNE\n"); // jump to the label if D != 0
+
+    // function f k: {A} = "File.", {B} = f, {N} = k; followed by k times PUSH_ZERO
+    private static final AsmTemplate FUNCTION = AsmTemplate.of(
+            "// function {A}{B} {N}\n" + // write a comment for readability
+            "({A}{B})\n"); // write the function label
+    private static final AsmTemplate PUSH_ZERO = AsmTemplate.of(
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M\n" + // point to the top of the stack
+            "M=0\n" + // push 0 onto the stack; purpose: initialize local variables to 0
+            "@SP\n" + // load the stack pointer into the A register
+            "M=M+1\n"); // increment the stack pointer
+
+    // call f n, in pieces around the call target (which may be a placeholder until close())
+    private static final AsmTemplate CALL = AsmTemplate.of(
+            "// call "); // write a comment for readability; the call target follows
+    private static final AsmTemplate CALL_ARGS = AsmTemplate.of(
+            " {N}\n"); // end of the comment; {N} = n
+    // {A} = "File.", {B} = f, {M} = return address number
+    private static final AsmTemplate CALL_FRAME = AsmTemplate.of(
+            // push return address
+            "@{A}{B}$ret.{M}\n" + // load the return address into the A register
+            "D=A\n" + // D = return address
+            PUSH_D +
+            // push LCL, ARG, THIS, and THAT
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "D=M\n" + // D = LCL
+            PUSH_D +
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "D=M\n" + // D = ARG
+            PUSH_D +
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "D=M\n" + // D = THIS
+            PUSH_D +
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "D=M\n" + // D = THAT
+            PUSH_D);
+    // {N} = n + 5
+    private static final AsmTemplate CALL_JUMP = AsmTemplate.of(
+            // ARG = SP - n - 5
+            "@SP\n" + // load the stack pointer into the A register
+            "D=M\n" + // D = SP
+            "@{N}\n" + // load the number of arguments + 5 into the A register
+            "D=D-A\n" + // D = SP - n - 5
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "M=D\n" + // ARG = SP - n - 5
+            // LCL = SP
+            "@SP\n" + // load the stack pointer into the A register
+            "D=M\n" + // D = SP
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "M=D\n" + // LCL = SP
+            // goto f
+            "@"); // load the function name into the A register; the call target follows
+    // {A} = "File.", {B} = f, {M} = return address number
+    private static final AsmTemplate CALL_RETURN = AsmTemplate.of(
+            "\n" +
+            "0;JMP\n" + // unconditional jump to the function
+            "({A}{B}$ret.{M})\n"); // label for return address
+
+    private static final String RETURN_CODE = // return, inline or as the $$RETURN routine
+            // FRAME = LCL // FRAME is a temporary variable
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "D=M\n" + // D = LCL
+            "@R13\n" + // load the temp register into the A register
+            "M=D\n" + // R13 = LCL
+            // RET = *(FRAME - 5) // put the return address in a temp register
+            "@5\n" + // load 5 into the A register
+            "A=D-A\n" + // point to LCL - 5
+            "D=M\n" + // D = *(LCL - 5)
+            "@R14\n" + // load the temp register into the A register
+            "M=D\n" + // R14 = *(LCL - 5)
+            // *ARG = pop() // reposition the return value for the caller
+            POP_D +
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "A=M\n" + // point to ARG
+            "M=D\n" + // *ARG = *SP
+            // SP = ARG + 1 // restore SP of the caller
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "D=M+1\n" + // D = ARG + 1
+            "@SP\n" + // load the stack pointer into the A register
+            "M=D\n" + // SP = ARG + 1
+            // THAT = *(FRAME - 1) // restore THAT of the caller
+            "@R13\n" + // load the temp register into the A register
+            "AM=M-1\n" + // decrement R13 and point to LCL - 1
+            "D=M\n" + // D = *(LCL - 1)
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "M=D\n" + // THAT = *(LCL - 1)
+            // THIS = *(FRAME - 2) // restore THIS of the caller
+            "@R13\n" + // load the temp register into the A register
+            "AM=M-1\n" + // decrement R13 and point to LCL - 2
+            "D=M\n" + // D = *(LCL - 2)
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "M=D\n" + // THIS = *(LCL - 2)
+            // ARG = *(FRAME - 3) // restore ARG of the caller
+            "@R13\n" + // load the temp register into the A register
+            "AM=M-1\n" + // decrement R13 and point to LCL - 3
+            "D=M\n" + // D = *(LCL - 3)
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "M=D\n" + // ARG = *(LCL - 3)
+            // LCL = *(FRAME - 4) // restore LCL of the caller
+            "@R13\n" + // load the temp register into the A register
+            "AM=M-1\n" + // decrement R13 and point to LCL - 4
+            "D=M\n" + // D = *(LCL - 4)
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "M=D\n" + // LCL = *(LCL - 4)
+            // goto RET // goto the return address in the caller's code
+            "@R14\n" + // load the return address into the A register
+            "A=M\n" + // point to the return address
+            "0;JMP\n"; // unconditional jump to the return address
+    private static final AsmTemplate RETURN = AsmTemplate.of(
+            "// return\n" + // write a comment for readability
+            RETURN_CODE);
+
+    // --shared-calls: a call site passes n + 5 in R13, f in R14, and the return address in D to $$CALL,
+    // and a return jumps to $$RETURN; the two routines are written once per output file
+    // {N} = n + 5
+    private static final AsmTemplate SHARED_CALL = AsmTemplate.of(
+            "@{N}\n" + // load the number of arguments + 5 into the A register
+            "D=A\n" + // D = n + 5
+            "@R13\n" + // load the temp register into the A register
+            "M=D\n" + // R13 = n + 5
+            "@"); // load the function name into the A register; the call target follows
+    // {A} = "File.", {B} = f, {M} = return address number
+    private static final AsmTemplate SHARED_CALL_RETURN = AsmTemplate.of(
+            "\n" +
+            "D=A\n" + // D = f
+            "@R14\n" + // load the temp register into the A register
+            "M=D\n" + // R14 = f
+            "@{A}{B}$ret.{M}\n" + // load the return address into the A register
+            "D=A\n" + // D = return address
+            "@$$CALL\n" + // load the shared call routine into the A register
+            "0;JMP\n" + // unconditional jump to the routine; it jumps on to f
+            "({A}{B}$ret.{M})\n"); // label for return address
+    private static final AsmTemplate SHARED_RETURN = AsmTemplate.of(
+            "// return\n" + // write a comment for readability
+            "@$$RETURN\n" + // load the shared return routine into the A register
+            "0;JMP\n"); // unconditional jump to the routine; it jumps back to the caller
+    private static final AsmTemplate CALL_ROUTINES = AsmTemplate.of(
+            "// shared call and return routines\n" + // write a comment for readability
+            "($$CALL)\n" + // D = return address, R13 = n + 5, R14 = f
+            "@SP\n" + // load the stack pointer into the A register
+            "A=M\n" + // point to the top of the stack
+            "M=D\n" + // push the return address
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "D=M\n" + // D = LCL
+            "@SP\n" + // load the stack pointer into the A register
+            "AM=M+1\n" + // increment SP and point to the top of the stack
+            "M=D\n" + // push LCL
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "D=M\n" + // D = ARG
+            "@SP\n" + // load the stack pointer into the A register
+            "AM=M+1\n" + // increment SP and point to the top of the stack
+            "M=D\n" + // push ARG
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "D=M\n" + // D = THIS
+            "@SP\n" + // load the stack pointer into the A register
+            "AM=M+1\n" + // increment SP and point to the top of the stack
+            "M=D\n" + // push THIS
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "D=M\n" + // D = THAT
+            "@SP\n" + // load the stack pointer into the A register
+            "AM=M+1\n" + // increment SP and point to the top of the stack
+            "M=D\n" + // push THAT
+            "@SP\n" + // load the stack pointer into the A register
+            "MD=M+1\n" + // increment SP; D = SP
+            "@LCL\n" + // load the base address of the local segment into the A register
+            "M=D\n" + // LCL = SP
+            "@R13\n" + // load the temp register into the A register
+            "D=D-M\n" + // D = SP - n - 5
+            "@ARG\n" + // load the base address of the argument segment into the A register
+            "M=D\n" + // ARG = SP - n - 5
+            "@R14\n" + // load the temp register into the A register
+            "A=M\n" + // point to f
+            "0;JMP\n" + // unconditional jump to the function
+            "($$RETURN)\n" +
+            RETURN_CODE);
+    private static final AsmTemplate SKIP_SHARED_ROUTINES = AsmTemplate.of(
+            "@$$SKIP\n" + // load the end of the routines into the A register
+            "0;JMP\n"); // unconditional jump past the routines; nothing falls into them
+    private static final AsmTemplate SHARED_ROUTINES_END = AsmTemplate.of(
+            "($$SKIP)\n");
+
+    // --top-in-d: while the top of the stack is held in D, SP points at it rather than past it
+    private static final AsmTemplate SPILL = AsmTemplate.of( // write D to the stack
+            "@SP\n" + // load the stack pointer into the A register
+            "M=M+1\n" + // increment the stack pointer
+            "A=M-1\n" + // point to the old top of the stack
+            "M=D\n"); // *(SP - 1) = D
+    private static final AsmTemplate FILL = AsmTemplate.of(POP_D); // move the top of the stack into D
+    // push <segment> i: load segment[i] into D; {N} = i (see topPushIndirect)
+    private static final AsmTemplate[] TOP_PUSH_ARGUMENT = topPushIndirect("argument", "ARG");
+    private static final AsmTemplate[] TOP_PUSH_LOCAL = topPushIndirect("local", "LCL");
+    private static final AsmTemplate[] TOP_PUSH_THIS = topPushIndirect("this", "THIS");
+    private static final AsmTemplate[] TOP_PUSH_THAT = topPushIndirect("that", "THAT");
+    // pop <segment> i: store D in segment[i]; {N} = i (see topPopIndirect)
+    private static final int TOP_POP_CHAIN = 11; // indexes stored through A=M, A=M+1, and A=A+1 (0 to 10)
+    private static final AsmTemplate[] TOP_POP_ARGUMENT = topPopIndirect("argument", "ARG");
+    private static final AsmTemplate[] TOP_POP_LOCAL = topPopIndirect("local", "LCL");
+    private static final AsmTemplate[] TOP_POP_THIS = topPopIndirect("this", "THIS");
+    private static final AsmTemplate[] TOP_POP_THAT = topPopIndirect("that", "THAT");
+    // push constant i: D = i; {N} = i
+    private static final AsmTemplate[] TOP_PUSH_CONSTANT = {
+            AsmTemplate.of(
+                    "// push constant {N}\n" + // write a comment for readability
+                    "D=0\n"), // D = 0
+            AsmTemplate.of(
+                    "// push constant {N}\n" + // write a comment for readability
+                    "D=1\n"), // D = 1
+            AsmTemplate.of(
+                    "// push constant {N}\n" + // write a comment for readability
+                    "@{N}\n" + // load the constant into the A register
+                    "D=A\n")}; // D = i
+    // push a folded value outside 0-32767: D = value; {N} = the value, {M} = ~value (0-32767)
+    private static final AsmTemplate TOP_PUSH_NEGATIVE = AsmTemplate.of(
+            "// push constant {N}\n" + // write a comment for readability
+            "@{M}\n" + // load the complement of the value into the A register
+            "D=!A\n"); // D = value
+    private static final AsmTemplate TOP_PUSH_TRUE = AsmTemplate.of(
+            "// push constant {N}\n" + // write a comment for readability
+            "D=-1\n"); // D = -1 (true)
+    // push/pop static i: {A} = "File.", {N} = i
+    private static final AsmTemplate TOP_PUSH_STATIC = AsmTemplate.of(
+            "// push static {N}\n" + // write a comment for readability
+            "@{A}{N}\n" + // load the static variable into the A register
+            "D=M\n"); // D = filename.i
+    private static final AsmTemplate TOP_POP_STATIC = AsmTemplate.of(
+            "// pop static {N}\n" + // write a comment for readability
+            "@{A}{N}\n" + // load the static variable into the A register
+            "M=D\n"); // filename.i = D
+    // push/pop temp i: {N} = i, {M} = 5 + i
+    private static final AsmTemplate TOP_PUSH_TEMP = AsmTemplate.of(
+            "// push temp {N}\n" + // write a comment for readability
+            "@{M}\n" + // load the address of the temp variable into the A register
+            "D=M\n"); // D = R5+i
+    private static final AsmTemplate TOP_POP_TEMP = AsmTemplate.of(
+            "// pop temp {N}\n" + // write a comment for readability
+            "@{M}\n" + // load the address of the temp variable into the A register
+            "M=D\n"); // R5+i = D
+    // push/pop pointer 0/1: {N} = 0 or 1
+    private static final AsmTemplate TOP_PUSH_POINTER_THIS = AsmTemplate.of(
+            "// push pointer {N}\n" + // write a comment for readability
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "D=M\n"); // D = THIS
+    private static final AsmTemplate TOP_PUSH_POINTER_THAT = AsmTemplate.of(
+            "// push pointer {N}\n" + // write a comment for readability
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "D=M\n"); // D = THAT
+    private static final AsmTemplate TOP_POP_POINTER_THIS = AsmTemplate.of(
+            "// pop pointer {N}\n" + // write a comment for readability
+            "@THIS\n" + // load the base address of the 'this' segment into the A register
+            "M=D\n"); // THIS = D
+    private static final AsmTemplate TOP_POP_POINTER_THAT = AsmTemplate.of(
+            "// pop pointer {N}\n" + // write a comment for readability
+            "@THAT\n" + // load the base address of the that segment into the A register
+            "M=D\n"); // THAT = D
+    // add, sub, and, or with y in D: pop x and combine it with D
+    private static final AsmTemplate TOP_ADD = topBinary("add", "D=D+M\n"); // D = x + y
+    private static final AsmTemplate TOP_SUB = topBinary("sub", "D=M-D\n"); // D = x - y
+    private static final AsmTemplate TOP_AND = topBinary("and", "D=D&M\n"); // D = x & y
+    private static final AsmTemplate TOP_OR = topBinary("or", "D=D|M\n"); // D = x | y
+    // neg, not: change D in place
+    private static final AsmTemplate TOP_NEG = AsmTemplate.of(
+            "// neg\n" + // write a comment for readability
+            "D=-D\n"); // negate the top operand
+    private static final AsmTemplate TOP_NOT = AsmTemplate.of(
+            "// not\n" + // write a comment for readability
+            "D=!D\n"); // bitwise NOT the top operand
+    // eq, gt, lt with y in D: D = -1 (true) or 0 (false); {A} = "File.function$", {N} = label number
+    private static final AsmTemplate TOP_EQ = topCompare("eq", "JEQ"); // x - y = 0
+    private static final AsmTemplate TOP_GT = topCompare("gt", "JGT"); // x - y > 0
+    private static final AsmTemplate TOP_LT = topCompare("lt", "JLT"); // x - y < 0
+    // if-goto with the condition in D; {A} = "File.function$", {B} = the label
+    private static final AsmTemplate TOP_IF_GOTO = AsmTemplate.of(
+            "// if-goto {A}{B}\n" + // write a comment for readability
+            "@{A}{B}\n" + // load the label into the A register
+            "D;JNE\n"); // jump to the label if D != 0
+
+    // --virtual-sp: within a straight-line run of commands the real SP differs from the VM's SP by an offset known
+    // at translation time, and each operand is addressed as *(SP + offset); every array is by offset,
+    // VIRTUAL_LIMIT + 1 below to VIRTUAL_LIMIT + 1 above the real SP (see slot)
+    private static final int VIRTUAL_LIMIT = 4; // larger offsets are committed, so addressing stays short
+    private static final AsmTemplate[] VIRTUAL_STORE = virtual("", "M=D\n"); // *(SP + offset) = D (push)
+    private static final AsmTemplate[] VIRTUAL_LOAD = virtual("", "D=M\n"); // D = *(SP + offset) (pop)
+    // add, sub, and, or with y at the offset: replace x, just below it, with x op y
+    private static final AsmTemplate[] VIRTUAL_ADD = virtualBinary("add", "M=M+D\n");
+    private static final AsmTemplate[] VIRTUAL_SUB = virtualBinary("sub", "M=M-D\n");
+    private static final AsmTemplate[] VIRTUAL_AND = virtualBinary("and", "M=D&M\n");
+    private static final AsmTemplate[] VIRTUAL_OR = virtualBinary("or", "M=D|M\n");
+    // neg, not with the operand at the offset: replace it in place
+    private static final AsmTemplate[] VIRTUAL_NEG = virtual("// neg\n", "M=-M\n");
+    private static final AsmTemplate[] VIRTUAL_NOT = virtual("// not\n", "M=!M\n");
+    private static final AsmTemplate[] COMMIT_SP = commits(); // SP = SP + offset, without touching D
+
+    private static final AsmTemplate INIT = AsmTemplate.of(
+            "// bootstrap code\n" + // write a comment for readability
+            "@256\n" + // load the base address of the stack pointer into the A register
+            "D=A\n" + // D = 256
+            "@SP\n" + // load the stack pointer into the A register
+            "M=D\n"); // SP = 256; followed by call Sys.init 0
+
+    private final CodeWriterOptions options; // the code generation settings, fixed for the writer's lifetime
+    private final TranslationStatistics statistics; // receives the counts for the reports when the writer closes
+    private final AsmBuffer writer; // buffered output; holds call target placeholders until close()
+    private TranslationContext context = new TranslationContext(null); // file, function, and label counters of the current file
     private final FunctionTable functionTable; // instantiate the FunctionTable class
-    private int labelCounter = 1; // counter for generating unique labels
-    private int returnCounter = 1; // counter for generating unique return labels
+    private final SymbolTable symbols; // function and label names by symbol id
+    private boolean deferCallTargets = false; // true to link calls to functions not yet in the table at close()
+    private final Map<String, TranslationContext> resumable = new HashMap<>(); // contexts of files started by resumeFile()
+    private long fragmentBytes = 0; // bytes written by writeFragment(), i.e. generated elsewhere
+    private boolean sharedRoutinesWritten = false; // true once the shared routines are in the output (see --shared-calls)
+    private boolean topHeld = false; // true while the top of the stack is in D rather than in RAM (see --top-in-d)
+    private final ConstantFolder folder; // pushed constants not written yet (see --fold-constants), or null
+    private Segment heldSegment = null; // the segment of a push not written yet (see --fuse-push-pop), or null
+    private int heldIndex = 0; // the index of that push
+    private Opcode heldCompare = null; // a comparison not written yet (see --fuse-branches), or null
+    private boolean heldNot = false; // true if an odd number of nots followed it
+    private int spOffset = 0; // the VM's SP minus the real SP (see --virtual-sp)
 
     /**
      * Opens the output file/stream and gets ready to write into it
      * @param outputFileName the name of the .ASM output file
      * @param functionTable the FunctionTable object
+     * @param symbols the symbol table the function and label names are interned in
+     * @param options the code generation settings
+     * @param statistics the collector this writer's counts are added to when it closes
      */
-    CodeWriter(String outputFileName, FunctionTable functionTable) {
+    CodeWriter(String outputFileName, FunctionTable functionTable, SymbolTable symbols, CodeWriterOptions options, TranslationStatistics statistics) {
         // Assert that filename ends in .asm (likely unnecessary)
         if (!outputFileName.toLowerCase().endsWith(".asm")) {
             throw new IllegalArgumentException("Invalid output file name: " + outputFileName);
         }
+        this.options = options;
+        this.statistics = statistics;
 
         try { // open the output file for writing
-            writer = new BufferedWriter(new FileWriter(outputFileName));
-            Debug.println("Opened output file: " + outputFileName);
+            writer = new AsmBuffer(optimized(FileChannel.open(Paths.get(outputFileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+            if (Debug.DEBUG_MODE) Debug.println("Opened output file: " + outputFileName);
         } catch (IOException e) {
             throw new RuntimeException(e); // rethrow the exception as an unchecked exception
         }
+        writer.setComments(!options.isCompact());
+        folder = options.isFoldConstants() ? new ConstantFolder(statistics) : null;
 
         this.functionTable = functionTable; // set the function table
+        this.symbols = symbols;
         Debug.println("Set function table...");
     }
 
+    /**
+     * Gets ready to write into the given stream, e.g. an in-memory buffer for one file
+     * @param output the stream that receives the assembly code
+     * @param functionTable the FunctionTable object
+     * @param symbols the symbol table the function and label names are interned in
+     * @param options the code generation settings
+     * @param statistics the collector this writer's counts are added to when it closes
+     */
+    CodeWriter(OutputStream output, FunctionTable functionTable, SymbolTable symbols, CodeWriterOptions options, TranslationStatistics statistics) {
+        this.options = options;
+        this.statistics = statistics;
+        writer = new AsmBuffer(optimized(Channels.newChannel(output)));
+        writer.setComments(!options.isCompact());
+        folder = options.isFoldConstants() ? new ConstantFolder(statistics) : null;
+        this.functionTable = functionTable; // set the function table
+        this.symbols = symbols;
+        Debug.println("Opened output stream");
+    }
+
+    /**
+     * Get the code generation settings this writer was created with
+     * @return CodeWriterOptions the settings
+     */
+    CodeWriterOptions options() {
+        return options;
+    }
+
+    /**
+     * Get the collector this writer's counts are added to
+     * @return TranslationStatistics the collector
+     */
+    TranslationStatistics statistics() {
+        return statistics;
+    }
+
+    /**
+     * Put a PeepholeOptimizer in front of the output channel if --peephole is on
+     */
+    private WritableByteChannel optimized(WritableByteChannel output) {
+        return options.isPeephole() ? new PeepholeOptimizer(output, statistics) : output;
+    }
+
+    /**
+     * Allow calls to functions that are not in the function table yet (single-pass builds)
+     * Their targets are written as placeholders and filled in by close().
+     * @param deferCallTargets true to defer unknown call targets, false to reject them
+     */
+    void setDeferCallTargets(boolean deferCallTargets) {
+        this.deferCallTargets = deferCallTargets;
+    }
+
+    /**
+     * Leave the shared call and return routines out; this writer's assembly goes after the
+     * bootstrap code of another writer, which already has them (see --shared-calls)
+     */
+    void assumeSharedRoutines() {
+        sharedRoutinesWritten = true;
+    }
+
+    /**
+     * Writes the shared routines the first time a call, return, or comparison needs them
+     * Without a bootstrap they go in the middle of the code, so a jump around them is written first.
+     */
+    private void writeSharedRoutines() throws IOException {
+        if (sharedRoutinesWritten) return;
+        sharedRoutinesWritten = true;
+        writer.write(SKIP_SHARED_ROUTINES);
+        writeRoutines();
+        writer.write(SHARED_ROUTINES_END);
+    }
+
+    /**
+     * Writes the routines of the enabled --shared-* options
+     */
+    private void writeRoutines() throws IOException {
+        if (options.isSharedCalls()) writer.write(CALL_ROUTINES);
+        if (options.isSharedCompares()) writer.write(COMPARE_ROUTINES);
+    }
+
+    /**
+     * Writes the top of the stack from D back to RAM, if it is held in D
+     */
+    private void spill() throws IOException {
+        if (!topHeld) return;
+        writer.write(SPILL);
+        topHeld = false;
+    }
+
+    /**
+     * Moves the top of the stack from RAM into D, unless it is already there
+     */
+    private void fill() throws IOException {
+        if (topHeld) return;
+        writer.write(FILL);
+        topHeld = true;
+    }
+
+    /**
+     * Updates the real SP by the offset --virtual-sp has built up, if any; D is left alone
+     */
+    private void commit() throws IOException {
+        if (spOffset == 0) return;
+        writer.write(COMMIT_SP[VIRTUAL_LIMIT + 1 + spOffset]);
+        spOffset = 0;
+    }
+
+    /**
+     * Writes a --virtual-sp template that addresses the stack word at the given offset from the real SP
+     */
+    private void writeSlot(AsmTemplate[] forms, int offset) throws IOException {
+        writer.write(forms[VIRTUAL_LIMIT + 1 + offset]);
+    }
+
+    /**
+     * Moves the virtual SP by the given number of words, committing it once it is too far from the real SP
+     */
+    private void moveSP(int words) throws IOException {
+        spOffset += words;
+        if (Math.abs(spOffset) > VIRTUAL_LIMIT) commit();
+    }
+
+    /**
+     * Writes the pushes of the constants held back by --fold-constants, oldest first
+     */
+    private void writeConstants() throws IOException {
+        if (folder == null) return;
+        while (folder.size() > 0) writeConstant(folder.removeOldest());
+    }
+
+    /**
+     * Writes a push of any 16-bit value, e.g. the result of folding constants
+     * @param value the value, -32768 to 32767
+     */
+    private void writeConstant(int value) throws IOException {
+        if (options.isTopInD()) {
+            spill(); // the old top goes to RAM
+            writeLoadValue(value);
+            topHeld = true;
+        } else if (options.isVirtualSP()) {
+            writeLoadValue(value);
+            writeSlot(VIRTUAL_STORE, spOffset);
+            moveSP(1);
+        } else if (value >= 0) { // an ordinary push constant
+            writer.write(select(SHORT_PUSH_CONSTANT, PUSH_CONSTANT, value), value);
+        } else {
+            writer.write(value == -1 ? PUSH_TRUE : PUSH_NEGATIVE, null, null, value, ~value);
+        }
+    }
+
     /**
      * Informs the code writer that the translation of a new VM file is started
      * @param fileName the name of the .VM file
      */
     void setFileName(String fileName) {
-        currentFileName = fileName;
-        currentFuncName = null; // reset the current function name
-        labelCounter = 1; // reset the label counter
-        returnCounter = 1; // reset the return counter
-        Debug.println("Set current file name: " + fileName);
+        context = new TranslationContext(fileName); // fresh function name and counters for the new file
+        if (Debug.DEBUG_MODE) Debug.println("Set current file name: " + fileName);
+    }
+
+    /**
+     * Continues the translation of the given VM file, keeping its counters if it was started before
+     * Used when the commands of several files arrive one after another in a single stream.
+     * @param fileName the name of the .VM file
+     */
+    void resumeFile(String fileName) {
+        context = resumable.computeIfAbsent(fileName, TranslationContext::new); // return labels stay unique per file
+        if (Debug.DEBUG_MODE) Debug.println("Resumed file name: " + fileName);
     }
 
     /**
@@ -94,143 +775,108 @@ public class CodeWriter {
      * @param command one of the nine arithmetic/logical stack commands
      *                (add, sub, neg, eq, gt, lt, and, or, not)
      */
-    void writeArithmetic(String command) {
-        String label;
-        label = currentFileName + "." + currentFuncName;
-        label = label + "$" + command; // generate a globally unique label
+    void writeArithmetic(Opcode command) {
         try {
-            switch (command) {
-                case "add": // add: binary operation, pop two, add, push one
-                    // pop two operands, add them, and push the result to the stack
-                    writer.write("// add\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = first operand
-                    writer.write("A=A-1\n"); // move to second operand
-                    writer.write("M=M+D\n"); // add first operand to second operand
-                    // result is stored in the second operand
-                    // stack pointer is ready for the next operation
-                    // note: the old operands are still in the stack as garbage
-                    break;
-                case "sub": // subtract: binary operation, pop two, subtract, push one
-                    writer.write("// sub\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = first operand
-                    writer.write("A=A-1\n"); // move to second operand
-                    writer.write("M=M-D\n"); // subtract first operand from second operand
-                    // result is stored in the second operand
-                    // stack pointer is ready for the next operation
-                    // note: the old operands are still in the stack as garbage
-                    break;
-                case "neg": // negate: unary operation, pop one, negate, push one
-                    writer.write("// neg\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand, stack pointer is unchanged
-                    writer.write("M=-M\n"); // negate the top operand
-                    // result is stored in the top operand
-                    // stack pointer is ready for the next operation
-                    // note: the old value is overwritten with the result
-                    break;
-                case "eq": // equal: binary operation, pop two, compare, push one
-                    writer.write("// eq\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = y
-                    writer.write("A=A-1\n"); // point to x
-                    writer.write("D=M-D\n"); // D = x - y (if the result is 0, x = y)
-                    writer.write("@" + label + "_true." + labelCounter + "\n"); // load address of EQ_TRUE label into the A register
-                    writer.write("D;JEQ\n"); // jump to EQ_TRUE if D = 0
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=0\n"); // false condition, set top operand to 0 (0x0000) for false
-                    writer.write("@" + label + "_end." + labelCounter + "\n"); // load address of EQ_END label into the A register
-                    writer.write("0;JMP\n"); // unconditional jump to EQ_END
-                    writer.write("(" + label + "_true." + labelCounter + ")\n"); // label for true condition
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=-1\n"); // true condition, set top operand to -1 (0xffff) for true
-                    writer.write("(" + label + "_end." + labelCounter + ")\n"); // label for end of comparison
-                    labelCounter++;
-                    break;
-                case "gt": // greater than: binary operation, pop two, compare, push one
-                    writer.write("// gt\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = y
-                    writer.write("A=A-1\n"); // point to x
-                    writer.write("D=M-D\n"); // D = x - y (if the result is positive, x > y)
-                    writer.write("@" + label + "_true." + labelCounter + "\n"); // load address of GT_TRUE label into the A register
-                    writer.write("D;JGT\n"); // jump to GT_TRUE if D > 0
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=0\n"); // false condition, set top operand to 0 (0x0000) for false
-                    writer.write("@" + label + "_end." + labelCounter + "\n"); // load address of GT_END label into the A register
-                    writer.write("0;JMP\n"); // unconditional jump to GT_END
-                    writer.write("(" + label + "_true." + labelCounter + ")\n"); // label for true condition
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=-1\n"); // true condition, set top operand to -1 (0xffff) for true
-                    writer.write("(" + label + "_end." + labelCounter + ")\n"); // label for end of comparison
-                    labelCounter++;
-                    break;
-                case "lt": // less than: binary operation, pop two, compare, push one
-                    writer.write("// lt\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = y
-                    writer.write("A=A-1\n"); // point to x
-                    writer.write("D=M-D\n"); // D = x - y (if the result is negative, x < y)
-                    writer.write("@" + label + "_true." + labelCounter + "\n"); // load address of LT_TRUE label into the A register
-                    writer.write("D;JLT\n"); // jump to LT_TRUE if D < 0
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=0\n"); // false condition, set top operand to 0 (0x0000) for false
-                    writer.write("@" + label + "_end." + labelCounter + "\n"); // load address of LT_END label into the A register
-                    writer.write("0;JMP\n"); // unconditional jump to LT_END
-                    writer.write("(" + label + "_true." + labelCounter + ")\n"); // label for true condition
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to the top operand
-                    writer.write("M=-1\n"); // true condition, set top operand to -1 (0xffff) for true
-                    writer.write("(" + label + "_end." + labelCounter + ")\n"); // label for end of comparison
-                    labelCounter++;
-                    // note: the old y operand is still in the stack as garbage
-                    // note: the old x operand is overwritten with the result
-                    break;
-                case "and": // and: binary operation, pop two, and, push one
-                    writer.write("// and\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = y
-                    writer.write("A=A-1\n"); // point to x
-                    writer.write("M=D&M\n"); // bitwise AND x and y and store the result in x
-                    // note: the old y operand is still in the stack as garbage
-                    // note: the old x operand is overwritten with the result
-                    break;
-                case "or": // or: binary operation, pop two, or, push one
-                    writer.write("// or\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("AM=M-1\n"); // decrement SP and point to the top operand
-                    writer.write("D=M\n"); // D = y
-                    writer.write("A=A-1\n"); // point to x
-                    writer.write("M=D|M\n"); // bitwise OR x and y and store the result in x
-                    // note: the old y operand is still in the stack as garbage
-                    // note: the old x operand is overwritten with the result
-                    break;
-                case "not": // not: unary operation, pop one, not, push one
-                    writer.write("// not\n"); // write a comment for readability
-                    writer.write("@SP\n"); // load the stack pointer into the A register
-                    writer.write("A=M-1\n"); // point to x
-                    writer.write("M=!M\n"); // bitwise NOT x and store the result in x
-                    // note: the old x operand is overwritten with the result
-                    break;
-                default:
-                    throw new IllegalArgumentException("Invalid arithmetic command: " + command);
+            if (folder != null && folder.fold(command)) { // the operands were constants; the result is held back
+                if (Debug.DEBUG_MODE) Debug.println("Folded Arithmetic command: " + command.keyword());
+                return;
+            }
+            if (heldCompare != null && command == Opcode.NOT) { // the jump of the fused branch is inverted
+                heldNot = !heldNot;
+                if (Debug.DEBUG_MODE) Debug.println("Held back not");
+                return;
+            }
+            writePending();
+            if (options.isFuseBranches() && (command == Opcode.EQ || command == Opcode.GT || command == Opcode.LT)) {
+                heldCompare = command; // written by the next command, as a jump if it is an if-goto
+                heldNot = false;
+                if (Debug.DEBUG_MODE) Debug.println("Held back comparison: " + command.keyword());
+                return;
             }
+            writeOperation(command);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote Arithmetic command: " + command);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Arithmetic command: " + command.keyword());
+    }
+
+    /**
+     * Writes an arithmetic command as it is, without folding or fusing it
+     */
+    private void writeOperation(Opcode command) throws IOException {
+        if (options.isTopInD()) {
+            writeArithmeticInD(command);
+        } else if (options.isVirtualSP()) {
+            writeArithmeticVirtual(command);
+        } else switch (command) {
+            case ADD: writer.write(ADD); break; // pop two, add, push one
+            case SUB: writer.write(SUB); break; // pop two, subtract, push one
+            case NEG: writer.write(NEG); break; // pop one, negate, push one
+            case EQ: writeCompare(options.isSharedCompares() ? SHARED_EQ : EQ); break; // pop two, compare, push one
+            case GT: writeCompare(options.isSharedCompares() ? SHARED_GT : GT); break; // pop two, compare, push one
+            case LT: writeCompare(options.isSharedCompares() ? SHARED_LT : LT); break; // pop two, compare, push one
+            case AND: writer.write(AND); break; // pop two, and, push one
+            case OR: writer.write(OR); break; // pop two, or, push one
+            case NOT: writer.write(NOT); break; // pop one, not, push one
+            default:
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.keyword());
+        }
+    }
+
+    /**
+     * Writes an arithmetic command with y (or the only operand) in D, leaving the result in D
+     * With --shared-compares a comparison still goes through its routine, from the stack.
+     */
+    private void writeArithmeticInD(Opcode command) throws IOException {
+        switch (command) {
+            case EQ: case GT: case LT:
+                if (options.isSharedCompares()) {
+                    spill(); // the routines work on the stack
+                    writeCompare(command == Opcode.EQ ? SHARED_EQ : command == Opcode.GT ? SHARED_GT : SHARED_LT);
+                    return;
+                }
+                fill();
+                writeCompare(command == Opcode.EQ ? TOP_EQ : command == Opcode.GT ? TOP_GT : TOP_LT);
+                return;
+            case ADD: fill(); writer.write(TOP_ADD); return; // D = x + y
+            case SUB: fill(); writer.write(TOP_SUB); return; // D = x - y
+            case NEG: fill(); writer.write(TOP_NEG); return; // D = -y
+            case AND: fill(); writer.write(TOP_AND); return; // D = x & y
+            case OR: fill(); writer.write(TOP_OR); return; // D = x | y
+            case NOT: fill(); writer.write(TOP_NOT); return; // D = !y
+            default:
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.keyword());
+        }
+    }
+
+    /**
+     * Writes an arithmetic command on the operands at the top of the virtual stack
+     * A comparison commits SP first and is written as usual: its two paths join at a label.
+     */
+    private void writeArithmeticVirtual(Opcode command) throws IOException {
+        switch (command) {
+            case ADD: writeSlot(VIRTUAL_ADD, spOffset - 1); moveSP(-1); return; // pop two, add, push one
+            case SUB: writeSlot(VIRTUAL_SUB, spOffset - 1); moveSP(-1); return; // pop two, subtract, push one
+            case NEG: writeSlot(VIRTUAL_NEG, spOffset - 1); return; // negate in place
+            case AND: writeSlot(VIRTUAL_AND, spOffset - 1); moveSP(-1); return; // pop two, and, push one
+            case OR: writeSlot(VIRTUAL_OR, spOffset - 1); moveSP(-1); return; // pop two, or, push one
+            case NOT: writeSlot(VIRTUAL_NOT, spOffset - 1); return; // not in place
+            case EQ: commit(); writeCompare(options.isSharedCompares() ? SHARED_EQ : EQ); return;
+            case GT: commit(); writeCompare(options.isSharedCompares() ? SHARED_GT : GT); return;
+            case LT: commit(); writeCompare(options.isSharedCompares() ? SHARED_LT : LT); return;
+            default:
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.keyword());
+        }
+    }
+
+    /**
+     * Writes a comparison with the next label number of the current function
+     * @param template EQ, GT, or LT, or their SHARED_ or TOP_ forms
+     */
+    private void writeCompare(AsmTemplate template) throws IOException {
+        if (options.isSharedCompares()) writeSharedRoutines();
+        int labelCounter = context.nextLabel(); // unique within the current function
+        writer.write(template, context.scope(), null, labelCounter, 0);
     }
 
     /**
@@ -241,224 +887,345 @@ public class CodeWriter {
      * @param index the index of the memory segment
      * Note: there is no pop constant i because constants are not actually part of the RAM
      */
-    void writePushPop(int command, String segment, int index) {
+    void writePushPop(int command, Segment segment, int index) {
         try {
-            switch (command) { // is this a push or pop command?
-                case Parser.C_PUSH: // handle push commands
-                    switch (segment) { // which segment is being pushed?
-                        case "argument": // push argument i: push ARG[i]
-                            writer.write("// push argument " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-                            writer.write("A=M+D\n"); // point to ARG[i] equivalent to ARG + i
-                            writer.write("D=M\n"); // D = *ARG equivalent to *(ARG + i)
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push *ARG[i] onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "local": // push local i: push LCL[i]
-                            writer.write("// push local " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-                            writer.write("A=M+D\n"); // point to LCL[i]
-                            writer.write("D=M\n"); // D = *LCL[i]
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push *LCL[i] onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "static": // push static i: push filename.i
-                            writer.write("// push static " + index + "\n"); // write a comment for readability
-                            writer.write("@" + currentFileName + "." + index + "\n"); // load the static variable into the A register
-                            writer.write("D=M\n"); // D = filename.i
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push filename.i onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "constant": // push constant i: push i
-                            writer.write("// push constant " + index + "\n"); // write a comment for readability
-                            // assert 0 <= index <= 32767
-                            if (index < 0 || index > 32767) {
-                                throw new IllegalArgumentException("Invalid constant index: " + index);
-                            }
-                            writer.write("@" + index + "\n"); // load the constant into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push the constant onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "this": // push this i: push THIS[i]
-                            writer.write("// push this " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-                            writer.write("A=M+D\n"); // point to THIS[i]
-                            writer.write("D=M\n"); // D = *THIS
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push *THIS[i] onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "that": // push that i: push THAT[i]
-                            writer.write("// push that " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@THAT\n"); // load the base address of the that segment into the A register
-                            writer.write("A=M+D\n"); // point to THAT[i]
-                            writer.write("D=M\n"); // D = *THAT
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push *THAT[i] onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "pointer": // push pointer i: push THIS/THAT
-                            writer.write("// push pointer " + index + "\n"); // write a comment for readability
-                            if (index == 0) {
-                                writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-                            } else if (index == 1) {
-                                writer.write("@THAT\n"); // load the base address of the that segment into the A register
-                            } else {
-                                throw new IllegalArgumentException("Invalid pointer index: " + index);
-                            }
-                            writer.write("D=M\n"); // D = THIS or THAT
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push THIS or THAT onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        case "temp": // push temp i: push R5+i
-                            writer.write("// push temp " + index + "\n"); // write a comment for readability
-                            if (index < 0 || index > 7) { // assert 0 <= index <= 7
-                                throw new IllegalArgumentException("Invalid temp index: " + index);
-                            }
-                            writer.write("@" + (5 + index) + "\n"); // load the base address of the temp segment into the A register
-                            writer.write("D=M\n"); // D = R5+i
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("A=M\n"); // point to the top of the stack
-                            writer.write("M=D\n"); // push R5+i onto the stack
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("M=M+1\n"); // increment the stack pointer
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Invalid push segment: " + segment);
-                    }
-                    break;
-                case Parser.C_POP:
-                    switch (segment) {
-                        case "argument": // pop argument i: pop ARG[i]
-                            writer.write("// pop argument " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-                            writer.write("D=M+D\n"); // D = ARG[i]
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("M=D\n"); // R13 = ARG[i]
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("A=M\n"); // point to ARG[i]
-                            writer.write("M=D\n"); // *ARG[i] = *SP
-                            break;
-                        case "local": // pop local i: pop LCL[i]
-                            writer.write("// pop local " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-                            writer.write("D=M+D\n"); // D = LCL[i]
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("M=D\n"); // R13 = LCL[i]
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("A=M\n"); // point to LCL[i]
-                            writer.write("M=D\n"); // *LCL[i] = *SP
-                            break;
-                        case "static": // pop static i: pop filename.i
-                            writer.write("// pop static " + index + "\n"); // write a comment for readability
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@" + currentFileName + "." + index + "\n"); // load the static variable into the A register
-                            writer.write("M=D\n"); // filename.i = *SP
-                            break;
-                        // Note: there is no case for pop constant i because constants are not actually part of the RAM
-                        case "constant": // pop constant i: pop i
-                            throw new IllegalArgumentException("Cannot pop a constant: " + index);
-                        case "this": // pop this i: pop THIS[i]
-                            writer.write("// pop this " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-                            writer.write("D=M+D\n"); // D = THIS[i]
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("M=D\n"); // R13 = THIS[i]
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("A=M\n"); // point to THIS[i]
-                            writer.write("M=D\n"); // *THIS[i] = *SP
-                            break;
-                        case "that": // pop that i: pop THAT[i]
-                            writer.write("// pop that " + index + "\n"); // write a comment for readability
-                            writer.write("@" + index + "\n"); // load the index into the A register
-                            writer.write("D=A\n"); // D = i
-                            writer.write("@THAT\n"); // load the base address of the that segment into the A register
-                            writer.write("D=M+D\n"); // D = THAT[i]
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("M=D\n"); // R13 = THAT[i]
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@R13\n"); // load the temp register into the A register
-                            writer.write("A=M\n"); // point to THAT[i]
-                            writer.write("M=D\n"); // *THAT[i] = *SP
-                            break;
-                        case "pointer": // pop pointer i: pop THIS/THAT
-                            writer.write("// pop pointer " + index + "\n"); // write a comment for readability
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            if (index == 0) {
-                                writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-                            } else if (index == 1) {
-                                writer.write("@THAT\n"); // load the base address of the that segment into the A register
-                            } else {
-                                throw new IllegalArgumentException("Invalid pointer index: " + index);
-                            }
-                            writer.write("M=D\n"); // THIS or THAT = *SP
-                            break;
-                        case "temp": // pop temp i: pop R5+i
-                            writer.write("// pop temp " + index + "\n"); // write a comment for readability
-                            writer.write("@SP\n"); // load the stack pointer into the A register
-                            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-                            writer.write("D=M\n"); // D = *SP
-                            writer.write("@" + (5 + index) + "\n"); // load the base address of the temp segment into the A register
-                            writer.write("M=D\n"); // R5+i = *SP
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Invalid pop segment: " + segment);
-                    }
+            if (folder != null && command == Parser.C_PUSH && segment == Segment.CONSTANT && index >= 0 && index <= 32767) {
+                writeHeldPush(); // an earlier push or comparison goes below it
+                writeHeldCompare();
+                if (folder.isFull()) writeConstant(folder.removeOldest()); // make room; it goes to the stack first anyway
+                folder.push(index); // written when a command needs it on the stack
+                if (Debug.DEBUG_MODE) Debug.println("Held back constant: " + index);
+                return;
+            }
+            if (command == Parser.C_POP && options.isFusePushPop() && (heldSegment != null || (folder != null && folder.size() > 0))) {
+                writeMove(segment, index); // the pushed value goes straight to its destination
+                if (Debug.DEBUG_MODE) Debug.println("Wrote Move to: " + segment.keyword() + " " + index);
+                return;
+            }
+            writePending();
+            if (command == Parser.C_PUSH && options.isFusePushPop()) { // written by the next command, as a move if it is a pop
+                heldSegment = segment;
+                heldIndex = index;
+                if (Debug.DEBUG_MODE) Debug.println("Held back push: " + segment.keyword() + " " + index);
+                return;
+            }
+            if (options.isTopInD()) {
+                if (command == Parser.C_PUSH) writePushInD(segment, index);
+                else writePopInD(segment, index);
+            } else if (command == Parser.C_PUSH) { // is this a push or pop command?
+                writePush(segment, index);
+            } else {
+                writePop(segment, index);
             }
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote Push/Pop command: " + command);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Push/Pop command: " + command);
+    }
+
+    /**
+     * Writes a push command
+     */
+    private void writePush(Segment segment, int index) throws IOException {
+        if (options.isVirtualSP()) { // load the value and store it at the virtual top of the stack
+            writeLoad(segment, index);
+            writeSlot(VIRTUAL_STORE, spOffset);
+            moveSP(1);
+            return;
+        }
+        switch (segment) { // which segment is being pushed?
+            case ARGUMENT: writer.write(select(SHORT_PUSH_ARGUMENT, PUSH_ARGUMENT, index), index); break; // push ARG[i]
+            case LOCAL: writer.write(select(SHORT_PUSH_LOCAL, PUSH_LOCAL, index), index); break; // push LCL[i]
+            case THIS: writer.write(select(SHORT_PUSH_THIS, PUSH_THIS, index), index); break; // push THIS[i]
+            case THAT: writer.write(select(SHORT_PUSH_THAT, PUSH_THAT, index), index); break; // push THAT[i]
+            case STATIC: // push filename.i
+                writer.write(PUSH_STATIC, context.filePrefix(), null, index, 0);
+                break;
+            case CONSTANT: // push i
+                // assert 0 <= index <= 32767
+                if (index < 0 || index > 32767) {
+                    throw new IllegalArgumentException("Invalid constant index: " + index);
+                }
+                writer.write(select(SHORT_PUSH_CONSTANT, PUSH_CONSTANT, index), index);
+                break;
+            case POINTER: // push THIS/THAT
+                writer.write(pointer(index, PUSH_POINTER_THIS, PUSH_POINTER_THAT), index);
+                break;
+            case TEMP: // push R5+i
+                writer.write(PUSH_TEMP, null, null, index, 5 + temp(index));
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid push segment: " + segment.keyword());
+        }
+    }
+
+    /**
+     * Writes a pop command
+     */
+    private void writePop(Segment segment, int index) throws IOException {
+        if (options.isVirtualSP()) { // load the virtual top of the stack and store it
+            if (segment == Segment.CONSTANT) throw new IllegalArgumentException("Cannot pop a constant: " + index);
+            writeSlot(VIRTUAL_LOAD, spOffset - 1);
+            writeStore(segment, index);
+            moveSP(-1);
+            return;
+        }
+        switch (segment) {
+            case ARGUMENT: writer.write(select(SHORT_POP_ARGUMENT, POP_ARGUMENT, index), index); break; // pop ARG[i]
+            case LOCAL: writer.write(select(SHORT_POP_LOCAL, POP_LOCAL, index), index); break; // pop LCL[i]
+            case THIS: writer.write(select(SHORT_POP_THIS, POP_THIS, index), index); break; // pop THIS[i]
+            case THAT: writer.write(select(SHORT_POP_THAT, POP_THAT, index), index); break; // pop THAT[i]
+            case STATIC: // pop filename.i
+                writer.write(POP_STATIC, context.filePrefix(), null, index, 0);
+                break;
+            // Note: there is no pop constant i because constants are not actually part of the RAM
+            case CONSTANT:
+                throw new IllegalArgumentException("Cannot pop a constant: " + index);
+            case POINTER: // pop THIS/THAT
+                writer.write(pointer(index, POP_POINTER_THIS, POP_POINTER_THAT), index);
+                break;
+            case TEMP: // pop R5+i
+                writer.write(POP_TEMP, null, null, index, 5 + index);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid pop segment: " + segment.keyword());
+        }
+    }
+
+    /**
+     * Writes the push held back by --fuse-push-pop, if any
+     */
+    private void writeHeldPush() throws IOException {
+        if (heldSegment == null) return;
+        Segment segment = heldSegment;
+        heldSegment = null;
+        if (options.isTopInD()) writePushInD(segment, heldIndex);
+        else writePush(segment, heldIndex);
+    }
+
+    /**
+     * Writes the comparison held back by --fuse-branches, and a not if it was negated
+     */
+    private void writeHeldCompare() throws IOException {
+        if (heldCompare == null) return;
+        Opcode command = heldCompare;
+        heldCompare = null;
+        writeOperation(command);
+        if (heldNot) writeOperation(Opcode.NOT); // any even number of nots cancels out
+    }
+
+    /**
+     * Writes everything held back by --fold-constants, --fuse-push-pop, and --fuse-branches;
+     * at most one of them holds anything
+     */
+    private void writePending() throws IOException {
+        writeConstants();
+        writeHeldPush();
+        writeHeldCompare();
+    }
+
+    /**
+     * Writes the held-back push and the given pop as one move through D; SP is not touched
+     * @param segment the segment of the pop
+     * @param index the index of the pop
+     */
+    private void writeMove(Segment segment, int index) throws IOException {
+        if (heldSegment != null) {
+            Segment source = heldSegment;
+            heldSegment = null;
+            spill(); // D is about to be overwritten (--top-in-d)
+            writeLoad(source, heldIndex);
+        } else { // the top constant held back by --fold-constants
+            int value = folder.pop();
+            writeConstants(); // the ones below it go to the stack
+            spill(); // D is about to be overwritten (--top-in-d)
+            writeLoadValue(value);
+        }
+        writeStore(segment, index);
+    }
+
+    /**
+     * Writes a push that loads the value into D, spilling the old top of the stack first
+     */
+    private void writePushInD(Segment segment, int index) throws IOException {
+        spill(); // the old top goes to RAM
+        writeLoad(segment, index);
+        topHeld = true;
+    }
+
+    /**
+     * Writes a pop that stores the top of the stack from D, filling D first if needed
+     * While the top is in RAM, an index beyond the A=A+1 forms of a segment is popped with
+     * the usual templates, which are shorter than filling D and storing it.
+     */
+    private void writePopInD(Segment segment, int index) throws IOException {
+        if (!topHeld && (index < 0 || index >= TOP_POP_CHAIN)) {
+            switch (segment) {
+                case ARGUMENT: writer.write(select(SHORT_POP_ARGUMENT, POP_ARGUMENT, index), index); return; // pop ARG[i]
+                case LOCAL: writer.write(select(SHORT_POP_LOCAL, POP_LOCAL, index), index); return; // pop LCL[i]
+                case THIS: writer.write(select(SHORT_POP_THIS, POP_THIS, index), index); return; // pop THIS[i]
+                case THAT: writer.write(select(SHORT_POP_THAT, POP_THAT, index), index); return; // pop THAT[i]
+                default: break; // the other segments store D as usual
+            }
+        }
+        fill();
+        writeStore(segment, index);
+        topHeld = false;
+    }
+
+    /**
+     * Writes the code that loads a push's value into D
+     */
+    private void writeLoad(Segment segment, int index) throws IOException {
+        AsmTemplate load; // the template that loads the value into D
+        byte[] prefix = null; // {A}
+        int address = 0; // {M}
+        switch (segment) { // which segment is being pushed?
+            case ARGUMENT: load = select(TOP_PUSH_ARGUMENT, index); break; // D = ARG[i]
+            case LOCAL: load = select(TOP_PUSH_LOCAL, index); break; // D = LCL[i]
+            case THIS: load = select(TOP_PUSH_THIS, index); break; // D = THIS[i]
+            case THAT: load = select(TOP_PUSH_THAT, index); break; // D = THAT[i]
+            case STATIC: load = TOP_PUSH_STATIC; prefix = context.filePrefix(); break; // D = filename.i
+            case CONSTANT: // D = i
+                // assert 0 <= index <= 32767
+                if (index < 0 || index > 32767) {
+                    throw new IllegalArgumentException("Invalid constant index: " + index);
+                }
+                load = select(TOP_PUSH_CONSTANT, index);
+                break;
+            case POINTER: load = pointer(index, TOP_PUSH_POINTER_THIS, TOP_PUSH_POINTER_THAT); break; // D = THIS/THAT
+            case TEMP: load = TOP_PUSH_TEMP; address = 5 + temp(index); break; // D = R5+i
+            default:
+                throw new IllegalArgumentException("Invalid push segment: " + segment.keyword());
+        }
+        writer.write(load, prefix, null, index, address);
+    }
+
+    /**
+     * Writes the code that loads any 16-bit value into D, e.g. the result of folding constants
+     * @param value the value, -32768 to 32767
+     */
+    private void writeLoadValue(int value) throws IOException {
+        if (value >= 0) writer.write(select(TOP_PUSH_CONSTANT, value), value);
+        else writer.write(value == -1 ? TOP_PUSH_TRUE : TOP_PUSH_NEGATIVE, null, null, value, ~value);
+    }
+
+    /**
+     * Writes the code that stores D as a pop would store the top of the stack
+     */
+    private void writeStore(Segment segment, int index) throws IOException {
+        AsmTemplate store; // the template that stores D
+        byte[] prefix = null; // {A}
+        int address = 0; // {M}
+        switch (segment) {
+            case ARGUMENT: store = select(TOP_POP_ARGUMENT, index); break; // ARG[i] = D
+            case LOCAL: store = select(TOP_POP_LOCAL, index); break; // LCL[i] = D
+            case THIS: store = select(TOP_POP_THIS, index); break; // THIS[i] = D
+            case THAT: store = select(TOP_POP_THAT, index); break; // THAT[i] = D
+            case STATIC: store = TOP_POP_STATIC; prefix = context.filePrefix(); break; // filename.i = D
+            // Note: there is no pop constant i because constants are not actually part of the RAM
+            case CONSTANT:
+                throw new IllegalArgumentException("Cannot pop a constant: " + index);
+            case POINTER: store = pointer(index, TOP_POP_POINTER_THIS, TOP_POP_POINTER_THAT); break; // THIS/THAT = D
+            case TEMP: store = TOP_POP_TEMP; address = 5 + index; break; // R5+i = D
+            default:
+                throw new IllegalArgumentException("Invalid pop segment: " + segment.keyword());
+        }
+        writer.write(store, prefix, null, index, address);
+    }
+
+    /**
+     * Choose the form of a --top-in-d push for the index; the last form covers every larger index
+     */
+    private static AsmTemplate select(AsmTemplate[] forms, int index) {
+        return forms[(index < 0) ? forms.length - 1 : Math.min(index, forms.length - 1)];
+    }
+
+    /**
+     * Choose the form of a push/pop for the index: with --short-templates the form for the
+     * index (the last form for every larger index), otherwise the one general form
+     */
+    private AsmTemplate select(AsmTemplate[] shortForms, AsmTemplate general, int index) {
+        if (!options.isShortTemplates() || index < 0) return general;
+        return shortForms[Math.min(index, shortForms.length - 1)];
+    }
+
+    /**
+     * Choose the template of pointer 0 (THIS) or pointer 1 (THAT)
+     */
+    private static AsmTemplate pointer(int index, AsmTemplate pointerThis, AsmTemplate pointerThat) {
+        if (index == 0) return pointerThis;
+        if (index == 1) return pointerThat;
+        throw new IllegalArgumentException("Invalid pointer index: " + index);
+    }
+
+    /**
+     * Check the index of a push temp (0 to 7)
+     */
+    private static int temp(int index) {
+        if (index < 0 || index > 7) { // assert 0 <= index <= 7
+            throw new IllegalArgumentException("Invalid temp index: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Writes assembly code that was translated separately, e.g. by another CodeWriter
+     * @param assembly the translated assembly code
+     */
+    void writeFragment(byte[] assembly) {
+        try {
+            writePending();
+            spill(); // the fragment starts with the whole stack in RAM
+            commit(); // the real SP too (--virtual-sp)
+            writer.write(assembly);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        fragmentBytes += assembly.length;
+        if (Debug.DEBUG_MODE) Debug.println("Wrote fragment of " + assembly.length + " bytes");
+    }
+
+    /**
+     * Writes assembly code generated for the current file outside the templates (see SsaLowering)
+     * @param assembly the assembly code, which expects the whole stack in RAM
+     * @param omittedComments the bytes of comments the caller left out in compact mode
+     */
+    void writeLowered(byte[] assembly, int omittedComments) {
+        try {
+            writePending();
+            spill(); // the code starts with the whole stack in RAM
+            commit(); // the real SP too (--virtual-sp)
+            writer.write(assembly);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        writer.omitComment(omittedComments);
+    }
+
+    /**
+     * Get the prefix that makes a label unique to the current function
+     * @return byte[] e.g. Main.Main.fibonacci$ as ASCII bytes (do not modify)
+     */
+    byte[] labelScope() {
+        return context.scope();
+    }
+
+    /**
+     * Get the prefix of the current file's static variables
+     * @return byte[] e.g. Main. as ASCII bytes (do not modify)
+     */
+    byte[] staticPrefix() {
+        return context.filePrefix();
+    }
+
+    /**
+     * Take the next number for a pair of comparison labels of the current function
+     * @return int the label number
+     */
+    int nextLabel() {
+        return context.nextLabel();
     }
 
     /**
@@ -466,14 +1233,13 @@ public class CodeWriter {
      * This code must be placed at the beginning of the output file
      */
     void writeInit() {
-        currentFileName = "Bootstrap"; // set the current file name to "Bootstrap" for readability
+        context = new TranslationContext("Bootstrap"); // set the current file name to "Bootstrap" for readability
         try {
-            writer.write("// bootstrap code\n"); // write a comment for readability
-            writer.write("@256\n"); // load the base address of the stack pointer into the A register
-            writer.write("D=A\n"); // D = 256
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=D\n"); // SP = 256
-            writeCall("Sys.init", 0); // call Sys.init within the Sys.vm file
+            writer.write(INIT); // SP = 256
+            boolean routines = (options.isSharedCalls() || options.isSharedCompares()) && !sharedRoutinesWritten;
+            sharedRoutinesWritten |= routines; // they follow the call, which never returns
+            writeCall(symbols.intern("Sys.init"), 0); // call Sys.init within the Sys.vm file
+            if (routines) writeRoutines();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -482,140 +1248,136 @@ public class CodeWriter {
 
     /**
      * Writes assembly code that effects the label command
-     * @param label the label to be written
+     * @param label the symbol id of the label to be written
      */
-    void writeLabel(String label) {
-        label = currentFuncName + "$" + label; // append the function name to the label
-        label = currentFileName + "." + label; // prepend the file name to the label
+    void writeLabel(int label) {
         try {
-            writer.write("// label " + label + "\n"); // write a comment for readability
-            writer.write("(" + label + ")\n"); // write the label
+            writePending();
+            spill(); // control can arrive here from a goto, with the whole stack in RAM
+            commit(); // the real SP too (--virtual-sp)
+            writer.write(LABEL, context.scope(), symbols.bytes(label), 0, 0);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote Label: " + label);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Label: " + symbols.name(label));
     }
 
     /**
      * Writes assembly code that effects the goto command
-     * @param label the label to be written
+     * @param label the symbol id of the label to be written
      */
-    void writeGoto(String label) {
-        label = currentFuncName + "$" + label; // append the function name to the label
-        label = currentFileName + "." + label; // prepend the file name to the label
+    void writeGoto(int label) {
         try {
-            writer.write("// goto " + label + "\n"); // write a comment for readability
-            writer.write("@" + label + "\n"); // load the label into the A register
-            writer.write("0;JMP\n"); // unconditional jump to the label
+            writePending();
+            spill(); // the label expects the whole stack in RAM
+            commit(); // the real SP too (--virtual-sp)
+            writer.write(GOTO, context.scope(), symbols.bytes(label), 0, 0);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote Goto: " + label);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Goto: " + symbols.name(label));
     }
 
     /**
      * Writes assembly code that effects the if-goto command
-     * @param label the label to be written
+     * @param label the symbol id of the label to be written
      */
-    void writeIf(String label) {
-        label = currentFuncName + "$" + label; // append the function name to the label
-        label = currentFileName + "." + label; // prepend the file name to the label
+    void writeIf(int label) {
         try {
-            writer.write("// if-goto " + label + "\n"); // write a comment for readability
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-            writer.write("D=M\n"); // D = *SP
-            writer.write("@" + label + "\n"); // load the label into the A register
-            writer.write("D;JNE\n"); // jump to the label if D != 0
+            if (folder != null && folder.size() > 0) { // a constant condition: always or never jump
+                boolean jump = folder.pop() != 0;
+                writeConstants();
+                if (jump) {
+                    spill(); // the label expects the whole stack in RAM
+                    commit(); // the real SP too (--virtual-sp)
+                    writer.write(GOTO, context.scope(), symbols.bytes(label), 0, 0);
+                }
+            } else if (heldCompare != null) { // --fuse-branches: jump on x - y; no -1/0 result is made
+                AsmTemplate[] branches = options.isTopInD() ? TOP_BRANCHES : BRANCHES;
+                if (options.isTopInD()) fill(); // y
+                commit(); // the label expects the real SP (--virtual-sp)
+                writer.write(branches[branchIndex(heldCompare, heldNot)], context.scope(), symbols.bytes(label), 0, 0);
+                heldCompare = null;
+                topHeld = false;
+            } else if (heldSegment != null) { // --fuse-push-pop: test the pushed value without pushing it
+                Segment segment = heldSegment;
+                heldSegment = null;
+                spill(); // D is about to be overwritten (--top-in-d)
+                commit(); // the label expects the real SP (--virtual-sp)
+                writeLoad(segment, heldIndex);
+                writer.write(TOP_IF_GOTO, context.scope(), symbols.bytes(label), 0, 0);
+            } else if (options.isTopInD()) { // the condition is the top of the stack; test it in D
+                fill();
+                writer.write(TOP_IF_GOTO, context.scope(), symbols.bytes(label), 0, 0);
+                topHeld = false;
+            } else if (options.isVirtualSP()) { // pop the condition into D, then commit SP, which leaves D alone
+                writeSlot(VIRTUAL_LOAD, spOffset - 1);
+                spOffset--;
+                commit();
+                writer.write(TOP_IF_GOTO, context.scope(), symbols.bytes(label), 0, 0);
+            } else {
+                writer.write(IF_GOTO, context.scope(), symbols.bytes(label), 0, 0);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote If-Goto: " + label);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote If-Goto: " + symbols.name(label));
     }
 
     /**
      * Writes assembly code that effects the call command
-     * @param functionName the name of the function to be called
+     * @param function the symbol id of the function to be called
      * @param numArgs the number of arguments to be passed to the function
      */
-    void writeCall(String functionName, int numArgs) {
-        // generate a globally unique return address
-        String returnAddress = currentFileName + "." + functionName + "$ret." + returnCounter;
-        Debug.println("Return Address: " + returnAddress);
+    void writeCall(int function, int numArgs) {
+        String functionName = symbols.name(function);
+        int returnNumber = context.nextReturn(); // globally unique return address: File.function$ret.N
 
         // determine which file prefix to use for the function
-        String functionPrefix = functionTable.getFile(functionName); // look up the function in the function table
-        if (!functionTable.contains(functionName) || functionPrefix == null) { // if function not in the function table
+        byte[] target = functionTable.getLabel(functionName); // look up the prefixed name in the function table
+        if (target == null && !deferCallTargets) { // if function not in the function table
             throw new IllegalArgumentException("Function not found: " + functionName);
         }
-        Debug.println("Function Name: " + functionName + " Prefix: " + functionPrefix);
-        functionName = functionPrefix + "." + functionName; // prepend the source .VM filename to the function name
+        if (Debug.DEBUG_MODE) Debug.println("Function Name: " + functionName + " Prefix: " + functionTable.getFile(functionName));
 
         // preserve the return address, LCL, ARG, THIS, and THAT
         try {
-            writer.write("// call " + functionName + " " + numArgs + "\n"); // write a comment for readability
-            // push return address
-            writer.write("@" + returnAddress + "\n"); // load the return address into the A register
-            writer.write("D=A\n"); // D = return address
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("A=M\n"); // point to the top of the stack
-            writer.write("M=D\n"); // push return address onto the stack
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=M+1\n"); // increment the stack pointer
-            // push LCL
-            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-            writer.write("D=M\n"); // D = LCL
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("A=M\n"); // point to the top of the stack
-            writer.write("M=D\n"); // push LCL onto the stack
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=M+1\n"); // increment the stack pointer
-            // push ARG
-            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-            writer.write("D=M\n"); // D = ARG
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("A=M\n"); // point to the top of the stack
-            writer.write("M=D\n"); // push ARG onto the stack
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=M+1\n"); // increment the stack pointer
-            // push THIS
-            writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-            writer.write("D=M\n"); // D = THIS
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("A=M\n"); // point to the top of the stack
-            writer.write("M=D\n"); // push THIS
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=M+1\n"); // increment the stack pointer
-            // push THAT
-            writer.write("@THAT\n"); // load the base address of the that segment into the A register
-            writer.write("D=M\n"); // D = THAT
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("A=M\n"); // point to the top of the stack
-            writer.write("M=D\n"); // push THAT
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=M+1\n"); // increment the stack pointer
-            // ARG = SP - n - 5
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("D=M\n"); // D = SP
-            writer.write("@" + (numArgs + 5) + "\n"); // load the number of arguments into the A register
-            writer.write("D=D-A\n"); // D = SP - n - 5
-            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-            writer.write("M=D\n"); // ARG = SP - n - 5
-            // LCL = SP
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("D=M\n"); // D = SP
-            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-            writer.write("M=D\n"); // LCL = SP
-            // goto functionName
-            writer.write("@" + functionName + "\n"); // load the function name into the A register
-            writer.write("0;JMP\n"); // unconditional jump to the function
-            // (return address)
-            writer.write("(" + returnAddress + ")\n"); // label for return address
+            writePending();
+            spill(); // the arguments are read from RAM
+            commit(); // the real SP too (--virtual-sp)
+            if (options.isSharedCalls()) writeSharedRoutines();
+            if (writer.comments()) {
+                writer.write(CALL);
+                writeCallTarget(functionName, target);
+                writer.write(CALL_ARGS, numArgs);
+            } else { // the comment is made of three pieces, so it is skipped here rather than by the buffer
+                writer.omitComment(CALL.bytes.length + (target == null ? 0 : target.length)
+                        + CALL_ARGS.length(null, null, numArgs, 0));
+            }
+            if (options.isSharedCalls()) { // $$CALL pushes the frame
+                writer.write(SHARED_CALL, numArgs + 5);
+                writeCallTarget(functionName, target);
+                writer.write(SHARED_CALL_RETURN, context.filePrefix(), symbols.bytes(function), 0, returnNumber);
+            } else {
+                writer.write(CALL_FRAME, context.filePrefix(), symbols.bytes(function), 0, returnNumber);
+                writer.write(CALL_JUMP, numArgs + 5);
+                writeCallTarget(functionName, target);
+                writer.write(CALL_RETURN, context.filePrefix(), symbols.bytes(function), 0, returnNumber);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        returnCounter++; // increment the return address counter for uniqueness for each call
-        Debug.println("Wrote Call: " + functionName + " " + numArgs);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Call: " + functionName + " " + numArgs);
+    }
+
+    /**
+     * Writes the file-prefixed name of a called function, or a placeholder if its file is not known yet
+     * @param functionName the name of the called function
+     * @param target the file-prefixed name, or null to defer it to close()
+     */
+    private void writeCallTarget(String functionName, byte[] target) throws IOException {
+        if (target != null) writer.write(target);
+        else writer.writeCallTarget(functionName);
     }
 
     /**
@@ -623,58 +1385,11 @@ public class CodeWriter {
      */
     void writeReturn() {
         try {
-            writer.write("// return\n"); // write a comment for readability
-            // FRAME = LCL // FRAME is a temporary variable
-            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-            writer.write("D=M\n"); // D = LCL
-            writer.write("@R13\n"); // load the temp register into the A register
-            writer.write("M=D\n"); // R13 = LCL
-            // RET = *(FRAME - 5) // put the return address in a temp register
-            writer.write("@5\n"); // load 5 into the A register
-            writer.write("A=D-A\n"); // point to LCL - 5
-            writer.write("D=M\n"); // D = *(LCL - 5)
-            writer.write("@R14\n"); // load the temp register into the A register
-            writer.write("M=D\n"); // R14 = *(LCL - 5)
-            // *ARG = pop() // reposition the return value for the caller
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("AM=M-1\n"); // decrement SP and point to the top of the stack
-            writer.write("D=M\n"); // D = *SP
-            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-            writer.write("A=M\n"); // point to ARG
-            writer.write("M=D\n"); // *ARG = *SP
-            // SP = ARG + 1 // restore SP of the caller
-            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-            writer.write("D=M+1\n"); // D = ARG + 1
-            writer.write("@SP\n"); // load the stack pointer into the A register
-            writer.write("M=D\n"); // SP = ARG + 1
-            // THAT = *(FRAME - 1) // restore THAT of the caller
-            writer.write("@R13\n"); // load the temp register into the A register
-            writer.write("AM=M-1\n"); // decrement R13 and point to LCL - 1
-            writer.write("D=M\n"); // D = *(LCL - 1)
-            writer.write("@THAT\n"); // load the base address of the that segment into the A register
-            writer.write("M=D\n"); // THAT = *(LCL - 1)
-            // THIS = *(FRAME - 2) // restore THIS of the caller
-            writer.write("@R13\n"); // load the temp register into the A register
-            writer.write("AM=M-1\n"); // decrement R13 and point to LCL - 2
-            writer.write("D=M\n"); // D = *(LCL - 2)
-            writer.write("@THIS\n"); // load the base address of the 'this' segment into the A register
-            writer.write("M=D\n"); // THIS = *(LCL - 2)
-            // ARG = *(FRAME - 3) // restore ARG of the caller
-            writer.write("@R13\n"); // load the temp register into the A register
-            writer.write("AM=M-1\n"); // decrement R13 and point to LCL - 3
-            writer.write("D=M\n"); // D = *(LCL - 3)
-            writer.write("@ARG\n"); // load the base address of the argument segment into the A register
-            writer.write("M=D\n"); // ARG = *(LCL - 3)
-            // LCL = *(FRAME - 4) // restore LCL of the caller
-            writer.write("@R13\n"); // load the temp register into the A register
-            writer.write("AM=M-1\n"); // decrement R13 and point to LCL - 4
-            writer.write("D=M\n"); // D = *(LCL - 4)
-            writer.write("@LCL\n"); // load the base address of the local segment into the A register
-            writer.write("M=D\n"); // LCL = *(LCL - 4)
-            // goto RET // goto the return address in the caller's code
-            writer.write("@R14\n"); // load the return address into the A register
-            writer.write("A=M\n"); // point to the return address
-            writer.write("0;JMP\n"); // unconditional jump to the return address
+            writePending();
+            spill(); // the return value is read from RAM
+            commit(); // the real SP too (--virtual-sp)
+            if (options.isSharedCalls()) writeSharedRoutines();
+            writer.write(options.isSharedCalls() ? SHARED_RETURN : RETURN);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -683,38 +1398,411 @@ public class CodeWriter {
 
     /**
      * Writes assembly code that effects the function command
-     * @param functionName the name of the function to be written
+     * @param function the symbol id of the function to be written
      * @param numLocals the number of local variables to be allocated (k in the API)
      */
-    void writeFunction(String functionName, int numLocals) {
-        currentFuncName = functionName; // set the current function name for label generation
-        functionName = currentFileName + "." + functionName; // prepend the filename to the function name for uniqueness
-        labelCounter=1; // reset the label counter for each function for uniqueness
+    void writeFunction(int function, int numLocals) {
         try {
-            writer.write("// function " + functionName + " " + numLocals + "\n"); // write a comment for readability
-            writer.write("(" + functionName + ")\n"); // write the function label
+            writePending(); // held output belongs to the previous function, so write it under its label scope
+            spill(); // calls arrive with the whole stack in RAM
+            commit(); // the real SP too (--virtual-sp)
+            context.enterFunction(symbols.name(function)); // set the current function name and reset its label counter
+            // the function label is the filename prepended to the function name for uniqueness
+            writer.write(FUNCTION, context.filePrefix(), symbols.bytes(function), numLocals, 0);
             for (int i = 0; i < numLocals; i++) { // repeat numLocals (k) times
-                writer.write("@SP\n"); // load the stack pointer into the A register
-                writer.write("A=M\n"); // point to the top of the stack
-                writer.write("M=0\n"); // push 0 onto the stack; purpose: initialize local variables to 0
-                writer.write("@SP\n"); // load the stack pointer into the A register
-                writer.write("M=M+1\n"); // increment the stack pointer
+                writer.write(PUSH_ZERO); // initialize local variables to 0
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Debug.println("Wrote Function: " + functionName + " " + numLocals);
+        if (Debug.DEBUG_MODE) Debug.println("Wrote Function: " + context.fileName() + "." + context.functionName() + " " + numLocals);
+    }
+
+    /**
+     * Build the template of push <segment> i for a segment addressed through a base pointer
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @return AsmTemplate the template; {N} = i
+     */
+    private static AsmTemplate pushIndirect(String segment, String pointer) {
+        return AsmTemplate.of(
+                "// push " + segment + " {N}\n" + // write a comment for readability
+                "@{N}\n" + // load the index into the A register
+                "D=A\n" + // D = i
+                "@" + pointer + "\n" + // load the base address of the segment into the A register
+                "A=M+D\n" + // point to segment[i] equivalent to base + i
+                "D=M\n" + // D = *(base + i)
+                PUSH_D);
+    }
+
+    /**
+     * Build the template of pop <segment> i for a segment addressed through a base pointer
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @return AsmTemplate the template; {N} = i
+     */
+    private static AsmTemplate popIndirect(String segment, String pointer) {
+        return AsmTemplate.of(
+                "// pop " + segment + " {N}\n" + // write a comment for readability
+                "@{N}\n" + // load the index into the A register
+                "D=A\n" + // D = i
+                "@" + pointer + "\n" + // load the base address of the segment into the A register
+                "D=M+D\n" + // D = base + i
+                "@R13\n" + // load the temp register into the A register
+                "M=D\n" + // R13 = base + i
+                POP_D +
+                "@R13\n" + // load the temp register into the A register
+                "A=M\n" + // point to segment[i]
+                "M=D\n"); // *(base + i) = *SP
+    }
+
+    /**
+     * Build the shortest forms of push <segment> i by index: the address of segment[i] for
+     * i = 0, 1, 2 is reached by A=M, A=M+1, and A=M+1 A=A+1 (8, 8, and 9 instructions instead of 10)
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @param general the template for any index, used from index 3 on
+     * @return AsmTemplate[] the forms for index 0, 1, 2, and 3 and up; {N} = i
+     */
+    private static AsmTemplate[] shortPushIndirect(String segment, String pointer, AsmTemplate general) {
+        AsmTemplate[] forms = new AsmTemplate[4];
+        for (int i = 0; i < 3; i++) {
+            forms[i] = AsmTemplate.of(
+                    "// push " + segment + " {N}\n" + // write a comment for readability
+                    "@" + pointer + "\n" + // load the base address of the segment into the A register
+                    offset(i) + // point to segment[i]
+                    "D=M\n" + // D = *(base + i)
+                    PUSH_D);
+        }
+        forms[3] = general;
+        return forms;
+    }
+
+    /**
+     * Build the shortest forms of pop <segment> i by index: for i = 0 to 3 the value is popped first
+     * and the address reached by A=M, A=M+1, and A=A+1 (6 to 8 instructions instead of 11); from
+     * index 4 on, the address is added to the value in D and separated again, so no temp register is
+     * needed (9 instructions)
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @return AsmTemplate[] the forms for index 0, 1, 2, 3, and 4 and up; {N} = i
+     */
+    private static AsmTemplate[] shortPopIndirect(String segment, String pointer) {
+        AsmTemplate[] forms = new AsmTemplate[5];
+        for (int i = 0; i < 4; i++) {
+            forms[i] = AsmTemplate.of(
+                    "// pop " + segment + " {N}\n" + // write a comment for readability
+                    POP_D +
+                    "@" + pointer + "\n" + // load the base address of the segment into the A register
+                    offset(i) + // point to segment[i]
+                    "M=D\n"); // *(base + i) = *SP
+        }
+        forms[4] = AsmTemplate.of(
+                "// pop " + segment + " {N}\n" + // write a comment for readability
+                "@" + pointer + "\n" + // load the base address of the segment into the A register
+                "D=M\n" + // D = base
+                "@{N}\n" + // load the index into the A register
+                "D=D+A\n" + // D = base + i
+                "@SP\n" + // load the stack pointer into the A register
+                "AM=M-1\n" + // decrement SP and point to the top of the stack
+                "D=D+M\n" + // D = base + i + *SP
+                "A=D-M\n" + // point to base + i
+                "M=D-A\n"); // *(base + i) = *SP
+        return forms;
+    }
+
+    /**
+     * Point A at base + i, with the base address register already in A, for a small index
+     */
+    private static String offset(int index) {
+        if (index == 0) return "A=M\n"; // point to base
+        StringBuilder code = new StringBuilder("A=M+1\n"); // point to base + 1
+        for (int i = 1; i < index; i++) code.append("A=A+1\n"); // one further
+        return code.toString();
+    }
+
+    /**
+     * Build the --top-in-d forms of push <segment> i by index: i = 0, 1, 2 reach segment[i] by
+     * A=M, A=M+1, and A=M+1 A=A+1 (3, 3, and 4 instructions instead of 5)
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @return AsmTemplate[] the forms for index 0, 1, 2, and 3 and up; {N} = i
+     */
+    private static AsmTemplate[] topPushIndirect(String segment, String pointer) {
+        AsmTemplate[] forms = new AsmTemplate[4];
+        for (int i = 0; i < 3; i++) {
+            forms[i] = AsmTemplate.of(
+                    "// push " + segment + " {N}\n" + // write a comment for readability
+                    "@" + pointer + "\n" + // load the base address of the segment into the A register
+                    offset(i) + // point to segment[i]
+                    "D=M\n"); // D = *(base + i)
+        }
+        forms[3] = AsmTemplate.of(
+                "// push " + segment + " {N}\n" + // write a comment for readability
+                "@{N}\n" + // load the index into the A register
+                "D=A\n" + // D = i
+                "@" + pointer + "\n" + // load the base address of the segment into the A register
+                "A=M+D\n" + // point to segment[i] equivalent to base + i
+                "D=M\n"); // D = *(base + i)
+        return forms;
+    }
+
+    /**
+     * Build the --top-in-d forms of pop <segment> i by index: D is stored through A=M, A=M+1,
+     * and A=A+1 up to index 10 (3 to 12 instructions); for a larger index D is parked in R13,
+     * added to the address, and separated again (10 instructions)
+     * @param segment the segment keyword
+     * @param pointer the register that holds the base address of the segment
+     * @return AsmTemplate[] the forms for index 0 to 10, and 11 and up; {N} = i
+     */
+    private static AsmTemplate[] topPopIndirect(String segment, String pointer) {
+        AsmTemplate[] forms = new AsmTemplate[TOP_POP_CHAIN + 1];
+        for (int i = 0; i < TOP_POP_CHAIN; i++) {
+            forms[i] = AsmTemplate.of(
+                    "// pop " + segment + " {N}\n" + // write a comment for readability
+                    "@" + pointer + "\n" + // load the base address of the segment into the A register
+                    offset(i) + // point to segment[i]
+                    "M=D\n"); // *(base + i) = D
+        }
+        forms[TOP_POP_CHAIN] = AsmTemplate.of(
+                "// pop " + segment + " {N}\n" + // write a comment for readability
+                "@R13\n" + // load the temp register into the A register
+                "M=D\n" + // R13 = D
+                "@" + pointer + "\n" + // load the base address of the segment into the A register
+                "D=M\n" + // D = base
+                "@{N}\n" + // load the index into the A register
+                "D=D+A\n" + // D = base + i
+                "@R13\n" + // load the temp register into the A register
+                "D=D+M\n" + // D = base + i + R13
+                "A=D-M\n" + // point to base + i
+                "M=D-A\n"); // *(base + i) = R13
+        return forms;
+    }
+
+    /**
+     * Build the template of a binary arithmetic or logical command
+     * @param command the command keyword
+     * @param operation the instruction that combines x (in M) and y (in D) into x
+     * @return AsmTemplate the template
+     */
+    private static AsmTemplate binary(String command, String operation) {
+        return AsmTemplate.of(
+                "// " + command + "\n" + // write a comment for readability
+                POP_D + // D = y, A points at y
+                "A=A-1\n" + // point to x
+                operation); // result is stored in x; the old y is still in the stack as garbage
+    }
+
+    /**
+     * Build the --virtual-sp forms of a template that addresses one stack word, by offset from the real SP
+     * @param head the instructions before the word is addressed, e.g. a comment
+     * @param tail the instructions that use it
+     * @return AsmTemplate[] the forms for offsets -VIRTUAL_LIMIT - 1 to VIRTUAL_LIMIT + 1
+     */
+    private static AsmTemplate[] virtual(String head, String tail) {
+        AsmTemplate[] forms = new AsmTemplate[2 * VIRTUAL_LIMIT + 3];
+        for (int i = 0; i < forms.length; i++) forms[i] = AsmTemplate.of(head + slot(i - VIRTUAL_LIMIT - 1) + tail);
+        return forms;
+    }
+
+    /**
+     * Build the --virtual-sp forms of a binary arithmetic or logical command, by the offset of y
+     */
+    private static AsmTemplate[] virtualBinary(String command, String operation) {
+        return virtual("// " + command + "\n", // write a comment for readability
+                "D=M\n" + // D = y
+                "A=A-1\n" + // point to x
+                operation); // result is stored in x; SP is moved at translation time
+    }
+
+    /**
+     * Point A at the stack word at the given offset from the real SP
+     */
+    private static String slot(int offset) {
+        StringBuilder code = new StringBuilder("@SP\n"); // load the stack pointer into the A register
+        if (offset == 0) return code.append("A=M\n").toString(); // point to *SP
+        code.append(offset > 0 ? "A=M+1\n" : "A=M-1\n"); // one word above or below
+        for (int i = 1; i < Math.abs(offset); i++) code.append(offset > 0 ? "A=A+1\n" : "A=A-1\n"); // one further
+        return code.toString();
+    }
+
+    /**
+     * Build the --virtual-sp updates of the real SP, by offset; each adds or subtracts 1 at a time to leave D alone
+     */
+    private static AsmTemplate[] commits() {
+        AsmTemplate[] forms = new AsmTemplate[2 * VIRTUAL_LIMIT + 3];
+        for (int i = 0; i < forms.length; i++) {
+            int offset = i - VIRTUAL_LIMIT - 1;
+            StringBuilder code = new StringBuilder("@SP\n"); // load the stack pointer into the A register
+            for (int j = 0; j < Math.abs(offset); j++) code.append(offset > 0 ? "M=M+1\n" : "M=M-1\n"); // SP = SP +/- 1
+            forms[i] = AsmTemplate.of(code.toString());
+        }
+        return forms;
+    }
+
+    /**
+     * Build the template of a comparison command
+     * @param command the command keyword, also the name of its labels
+     * @param jump the jump that is taken when x - y satisfies the comparison
+     * @return AsmTemplate the template; {A} = "File.function$", {N} = the label number
+     */
+    private static AsmTemplate compare(String command, String jump) {
+        return AsmTemplate.of(
+                "// " + command + "\n" + // write a comment for readability
+                POP_D + // D = y, A points at y
+                "A=A-1\n" + // point to x
+                "D=M-D\n" + // D = x - y
+                "@{A}" + command + "_true.{N}\n" + // load address of the true label into the A register
+                "D;" + jump + "\n" + // jump to the true label if the comparison holds
+                "@SP\n" + // load the stack pointer into the A register
+                "A=M-1\n" + // point to the top operand
+                "M=0\n" + // false condition, set top operand to 0 (0x0000) for false
+                "@{A}" + command + "_end.{N}\n" + // load address of the end label into the A register
+                "0;JMP\n" + // unconditional jump to the end label
+                "({A}" + command + "_true.{N})\n" + // label for true condition
+                "@SP\n" + // load the stack pointer into the A register
+                "A=M-1\n" + // point to the top operand
+                "M=-1\n" + // true condition, set top operand to -1 (0xffff) for true
+                "({A}" + command + "_end.{N})\n"); // label for end of comparison
+    }
+
+    /**
+     * Build the --top-in-d template of a binary arithmetic or logical command
+     * @param command the command keyword
+     * @param operation the instruction that combines x (in M) and y (in D) into D
+     * @return AsmTemplate the template
+     */
+    private static AsmTemplate topBinary(String command, String operation) {
+        return AsmTemplate.of(
+                "// " + command + "\n" + // write a comment for readability
+                "@SP\n" + // load the stack pointer into the A register
+                "AM=M-1\n" + // decrement SP and point to x
+                operation); // the result is the new top of the stack, in D
+    }
+
+    /**
+     * Build the --top-in-d template of a comparison command
+     * @param command the command keyword, also the name of its labels
+     * @param jump the jump that is taken when x - y satisfies the comparison
+     * @return AsmTemplate the template; {A} = "File.function$", {N} = the label number
+     */
+    private static AsmTemplate topCompare(String command, String jump) {
+        return AsmTemplate.of(
+                "// " + command + "\n" + // write a comment for readability
+                "@SP\n" + // load the stack pointer into the A register
+                "AM=M-1\n" + // decrement SP and point to x
+                "D=M-D\n" + // D = x - y
+                "@{A}" + command + "_true.{N}\n" + // load address of the true label into the A register
+                "D;" + jump + "\n" + // jump to the true label if the comparison holds
+                "D=0\n" + // false condition, D = 0 (0x0000)
+                "@{A}" + command + "_end.{N}\n" + // load address of the end label into the A register
+                "0;JMP\n" + // unconditional jump to the end label
+                "({A}" + command + "_true.{N})\n" + // label for true condition
+                "D=-1\n" + // true condition, D = -1 (0xffff)
+                "({A}" + command + "_end.{N})\n"); // label for end of comparison
+    }
+
+    /**
+     * Build the template of a comparison and the if-goto that follows it, fused
+     * @param command the comparison (eq, gt, or lt)
+     * @param negated true if the jump is taken when the comparison does not hold (an odd number of nots)
+     * @param popY true to pop y into D first, false if y is already in D (--top-in-d)
+     * @return AsmTemplate the template; {A} = "File.function$", {B} = the label
+     */
+    private static AsmTemplate branch(Opcode command, boolean negated, boolean popY) {
+        return AsmTemplate.of(
+                "// " + command.keyword() + (negated ? ", not" : "") + ", if-goto {A}{B}\n" + // write a comment for readability
+                (popY ? POP_D : "") + // D = y
+                "@SP\n" + // load the stack pointer into the A register
+                "AM=M-1\n" + // decrement SP and point to x
+                "D=M-D\n" + // D = x - y
+                "@{A}{B}\n" + // load the label into the A register
+                "D;" + jump(command, negated) + "\n"); // jump to the label if the comparison (or its negation) holds
+    }
+
+    /**
+     * Get the index into BRANCHES and TOP_BRANCHES of a comparison, negated or not
+     */
+    private static int branchIndex(Opcode command, boolean negated) {
+        int index = (command == Opcode.EQ) ? 0 : (command == Opcode.GT) ? 2 : 4;
+        return negated ? index + 1 : index;
+    }
+
+    /**
+     * Get the jump that is taken when x - y satisfies a comparison, or its negation
+     * @param compare the comparison (eq, gt, or lt)
+     * @param negated true for the jump taken when the comparison does not hold
+     * @return String e.g. JLT for lt, JGE for lt negated
+     */
+    static String jump(Opcode compare, boolean negated) {
+        switch (compare) {
+            case EQ: return negated ? "JNE" : "JEQ";
+            case GT: return negated ? "JLE" : "JGT";
+            default: return negated ? "JGE" : "JLT";
+        }
+    }
+
+    /**
+     * Build the call site of a shared compare routine; {A} = "File.function$", {N} = label counter
+     */
+    private static AsmTemplate sharedCompare(String command, String routine) {
+        return AsmTemplate.of(
+                "// " + command + "\n" + // write a comment for readability
+                "@{A}" + command + "_ret.{N}\n" + // load the return address into the A register
+                "D=A\n" + // D = return address
+                "@$$" + routine + "\n" + // load the shared routine into the A register
+                "0;JMP\n" + // unconditional jump to the routine; it jumps back with x replaced by the result
+                "({A}" + command + "_ret.{N})\n"); // label for return address
+    }
+
+    /**
+     * Build the shared routine of a comparison; called with the return address in D
+     */
+    private static String compareRoutine(String routine, String jump) {
+        return "($$" + routine + ")\n" +
+                "@R15\n" + // load the temp register into the A register
+                "M=D\n" + // R15 = return address
+                POP_D + // D = y, A points at y
+                "A=A-1\n" + // point to x
+                "D=M-D\n" + // D = x - y
+                "M=-1\n" + // assume the comparison holds: x = -1 (0xffff) for true
+                "@$$" + routine + "_END\n" + // load address of the end label into the A register
+                "D;" + jump + "\n" + // keep true and jump to the end label if the comparison holds
+                "@SP\n" + // load the stack pointer into the A register
+                "A=M-1\n" + // point to the result
+                "M=0\n" + // false condition, set the result to 0 (0x0000) for false
+                "($$" + routine + "_END)\n" +
+                "@R15\n" + // load the temp register into the A register
+                "A=M\n" + // point to the return address
+                "0;JMP\n"; // unconditional jump to the return address
+    }
+
+    /**
+     * Writes out the assembly generated so far (up to any deferred call target)
+     */
+    void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * Close the output file
+     * Fill in any deferred call targets and close the output file
      */
     void close() {
         try {
-            if (writer != null) writer.close(); // close the output file
+            writePending();
+            spill(); // leave the whole stack in RAM at the end of the code
+            commit(); // the real SP too (--virtual-sp)
+            writer.link(functionTable); // every file has been seen, so every call target can be resolved
+            writer.close(); // close the output file
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (folder != null) folder.close();
+        statistics.addOutput(writer.bytesWritten() - fragmentBytes, writer.commentBytesOmitted());
         Debug.println("Closed output file");
     }
 }
@@ -0,0 +1,306 @@
+/**
+ * CodeWriterOptions.java
+ * The code generation settings of a CodeWriter, one per command line option (--compact,
+ * --shared-calls, ...). An options object never changes once built, so every writer of a
+ * translation, on any thread, writes with the settings it was created with; the settings
+ * that change the assembly also name the FragmentCache entries made with them (see cacheKey()).
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+public final class CodeWriterOptions {
+    private final boolean compact; // true to leave out every // comment line
+    private final boolean sharedCalls; // true to call and return through the $$CALL and $$RETURN routines
+    private final boolean sharedCompares; // true to compare through the $$EQ, $$GT, and $$LT routines
+    private final boolean peephole; // true to pass the output through a PeepholeOptimizer
+    private final boolean shortTemplates; // true to pick the shortest push/pop form for each index
+    private final boolean topInD; // true to keep the top of the stack in D between commands
+    private final boolean foldConstants; // true to evaluate arithmetic on constants at translation time
+    private final boolean fusePushPop; // true to write a push followed by a pop as one move
+    private final boolean fuseBranches; // true to write a comparison followed by if-goto as one jump
+    private final boolean virtualSP; // true to commit SP only where control flow joins or leaves
+    private final boolean ssa; // true to translate each block through its register form (see SsaLowering)
+
+    private CodeWriterOptions(Builder builder) {
+        compact = builder.compact;
+        sharedCalls = builder.sharedCalls;
+        sharedCompares = builder.sharedCompares;
+        peephole = builder.peephole;
+        shortTemplates = builder.shortTemplates;
+        topInD = builder.topInD;
+        foldConstants = builder.foldConstants;
+        fusePushPop = builder.fusePushPop;
+        fuseBranches = builder.fuseBranches;
+        virtualSP = builder.virtualSP;
+        ssa = builder.ssa;
+    }
+
+    /**
+     * Collects the settings of a CodeWriterOptions; every option starts off
+     */
+    static final class Builder {
+        private boolean compact = false;
+        private boolean sharedCalls = false;
+        private boolean sharedCompares = false;
+        private boolean peephole = false;
+        private boolean shortTemplates = false;
+        private boolean topInD = false;
+        private boolean foldConstants = false;
+        private boolean fusePushPop = false;
+        private boolean fuseBranches = false;
+        private boolean virtualSP = false;
+        private boolean ssa = false;
+
+        /**
+         * Leave out the // comment lines in the output
+         * Compact output assembles to exactly the same program, in fewer bytes.
+         * @param compact true for compact output, false for commented output (the default)
+         * @return Builder this builder
+         */
+        Builder compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        /**
+         * Call and return through one shared $$CALL and one shared $$RETURN routine instead of
+         * writing the whole calling convention at every call site
+         * This takes about 11 instructions per call and 2 per return instead of about 45 and 40, at the
+         * cost of a few cycles per call for the extra jumps and the arguments passed in registers.
+         * @param sharedCalls true for shared routines, false for inline calls and returns (the default)
+         * @return Builder this builder
+         */
+        Builder sharedCalls(boolean sharedCalls) {
+            this.sharedCalls = sharedCalls;
+            return this;
+        }
+
+        /**
+         * Compare through one shared routine per comparison (eq, gt, lt) instead of writing the
+         * whole comparison with two labels at every use
+         * This takes 4 instructions and one label per comparison instead of 17 instructions and two
+         * labels, at the cost of about 8 cycles per comparison.
+         * @param sharedCompares true for shared routines, false for inline comparisons (the default)
+         * @return Builder this builder
+         */
+        Builder sharedCompares(boolean sharedCompares) {
+            this.sharedCompares = sharedCompares;
+            return this;
+        }
+
+        /**
+         * Pass the output through a PeepholeOptimizer
+         * @param peephole true to optimize, false to write the templates as they are (the default)
+         * @return Builder this builder
+         */
+        Builder peephole(boolean peephole) {
+            this.peephole = peephole;
+            return this;
+        }
+
+        /**
+         * Write the shortest known form of each push/pop
+         * e.g. A=M+1 instead of address arithmetic for index 1, and M=0 for push constant 0
+         * @param shortTemplates true for the shortest forms, false for one form per segment (the default)
+         * @return Builder this builder
+         */
+        Builder shortTemplates(boolean shortTemplates) {
+            this.shortTemplates = shortTemplates;
+            return this;
+        }
+
+        /**
+         * Keep the top of the stack in D from one command to the next, e.g. push constant 5
+         * becomes @5 D=A and a following add @SP AM=M-1 D=D+M
+         * The top is written to the stack (spilled) only when another value is pushed on top of it, and
+         * at the commands where control flow joins or leaves: label, goto, call, return, and function.
+         * @param topInD true to keep the top of the stack in D, false to keep it in RAM (the default)
+         * @return Builder this builder
+         */
+        Builder topInD(boolean topInD) {
+            this.topInD = topInD;
+            return this;
+        }
+
+        /**
+         * Evaluate arithmetic, logical, and comparison commands whose operands are constants at
+         * translation time (see ConstantFolder), e.g. push constant 0, not becomes one push of -1,
+         * and a constant if-goto a goto or nothing
+         * @param foldConstants true to fold constants, false to translate every command (the default)
+         * @return Builder this builder
+         */
+        Builder foldConstants(boolean foldConstants) {
+            this.foldConstants = foldConstants;
+            return this;
+        }
+
+        /**
+         * Write a push followed by a pop as one move through D that never touches SP, e.g.
+         * push argument 0, pop pointer 0 becomes @ARG A=M D=M @THIS M=D; a push followed by
+         * if-goto likewise tests the value without pushing it
+         * @param fusePushPop true to fuse, false to write the push and the pop separately (the default)
+         * @return Builder this builder
+         */
+        Builder fusePushPop(boolean fusePushPop) {
+            this.fusePushPop = fusePushPop;
+            return this;
+        }
+
+        /**
+         * Write a comparison (eq, gt, lt) followed by any number of nots and an if-goto as one
+         * subtraction and conditional jump, e.g. lt, not, if-goto L becomes D = x - y, @L D;JGE,
+         * without the -1/0 result, its two labels, and the pop that tests it
+         * @param fuseBranches true to fuse, false to write each command separately (the default)
+         * @return Builder this builder
+         */
+        Builder fuseBranches(boolean fuseBranches) {
+            this.fuseBranches = fuseBranches;
+            return this;
+        }
+
+        /**
+         * Track SP at translation time within each straight-line run of commands, addressing the
+         * operands as *(SP + offset): push constant 7, push constant 8, add becomes @7 D=A @SP A=M M=D,
+         * @8 D=A @SP A=M+1 M=D, @SP A=M+1 D=M A=A-1 M=M+D
+         * The real SP is updated (committed) only before label, goto, if-goto, call, return, function,
+         * and the comparisons, or when the offset grows beyond a few words.
+         * @param virtualSP true to track SP at translation time, false to update it on every command (the default)
+         * @return Builder this builder
+         */
+        Builder virtualSP(boolean virtualSP) {
+            this.virtualSP = virtualSP;
+            return this;
+        }
+
+        /**
+         * Write each basic block from its register form (SsaFunction), computing each value only
+         * where it is stored, tested, or passed, instead of one template per command (see SsaLowering).
+         * Labels, gotos, calls, returns, functions, and the blocks that cannot be converted are still
+         * written by the CodeWriter.
+         * @param ssa true to translate through the register form, false to translate each command (the default)
+         * @return Builder this builder
+         */
+        Builder ssa(boolean ssa) {
+            this.ssa = ssa;
+            return this;
+        }
+
+        /**
+         * Make the options object
+         * @return CodeWriterOptions the settings collected so far
+         */
+        CodeWriterOptions build() {
+            if (topInD && virtualSP) {
+                throw new IllegalArgumentException("--virtual-sp addresses the top of the stack in RAM; it cannot be combined with --top-in-d");
+            }
+            return new CodeWriterOptions(this);
+        }
+    }
+
+    /**
+     * Is the output compact?
+     * @return boolean true if comments are left out
+     */
+    boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Are calls and returns made through the shared routines?
+     * @return boolean true if calls and returns jump to $$CALL and $$RETURN
+     */
+    boolean isSharedCalls() {
+        return sharedCalls;
+    }
+
+    /**
+     * Are comparisons made through the shared routines?
+     * @return boolean true if eq, gt, and lt jump to $$EQ, $$GT, and $$LT
+     */
+    boolean isSharedCompares() {
+        return sharedCompares;
+    }
+
+    /**
+     * Is the output optimized?
+     * @return boolean true if it passes through a PeepholeOptimizer
+     */
+    boolean isPeephole() {
+        return peephole;
+    }
+
+    /**
+     * Is the shortest push/pop form picked for each index?
+     * @return boolean true if it is
+     */
+    boolean isShortTemplates() {
+        return shortTemplates;
+    }
+
+    /**
+     * Is the top of the stack kept in D?
+     * @return boolean true if it is
+     */
+    boolean isTopInD() {
+        return topInD;
+    }
+
+    /**
+     * Are constants folded?
+     * @return boolean true if they are
+     */
+    boolean isFoldConstants() {
+        return foldConstants;
+    }
+
+    /**
+     * Are push/pop pairs fused?
+     * @return boolean true if they are
+     */
+    boolean isFusePushPop() {
+        return fusePushPop;
+    }
+
+    /**
+     * Are comparisons fused with the if-goto that follows them?
+     * @return boolean true if they are
+     */
+    boolean isFuseBranches() {
+        return fuseBranches;
+    }
+
+    /**
+     * Is SP tracked at translation time?
+     * @return boolean true if it is
+     */
+    boolean isVirtualSP() {
+        return virtualSP;
+    }
+
+    /**
+     * Do translations go through the register form?
+     * @return boolean true if they do
+     */
+    boolean isSsa() {
+        return ssa;
+    }
+
+    /**
+     * Name the settings that change the assembly, for the FragmentCache key
+     * Two options objects with the same key write the same assembly for the same file.
+     * @return String the enabled options, e.g. "compact peephole ", or "" for the defaults
+     */
+    String cacheKey() {
+        return (compact ? "compact " : "") + (sharedCalls ? "shared-calls " : "")
+                + (sharedCompares ? "shared-compares " : "")
+                + (peephole ? "peephole " : "")
+                + (shortTemplates ? "short-templates " : "")
+                + (topInD ? "top-in-d " : "")
+                + (foldConstants ? "fold-constants " : "")
+                + (fusePushPop ? "fuse-push-pop " : "")
+                + (fuseBranches ? "fuse-branches " : "")
+                + (virtualSP ? "virtual-sp " : "")
+                + (ssa ? "ssa " : "");
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * CommandList.java
+ * Compact in-memory form of one parsed .vm file. Each command is stored as one
+ * slot in parallel primitive arrays (opcode, segment, symbol id, operand), so a
+ * file is lexed once and every later pass iterates over plain arrays instead of
+ * re-reading source text.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Added text() to show a command as VM source (see FlowGraph)
+ * 2026-10-18: Added appendText() and textLength() so comments need no String per command
+ */
+
+import java.util.*;
+
+public class CommandList {
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+
+    private final String fileName; // the .vm file name without extension (static and label prefix)
+    private short[] opcodes = new short[256]; // Opcode ordinal of each command
+    private short[] segments = new short[256]; // Segment ordinal of each push/pop, otherwise -1
+    private int[] symbols = new int[256]; // SymbolTable id of each label/goto/if-goto/function/call name, otherwise -1
+    private int[] operands = new int[256]; // index, local count, or argument count, otherwise 0
+    private int size = 0; // number of commands
+
+    /**
+     * Create an empty command list for the given file
+     * @param fileName the .vm file name without extension
+     */
+    public CommandList(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Read every command of a file into a new command list, then close the parser
+     * @param parser the Parser positioned at the start of the file
+     * @param fileName the .vm file name without extension
+     * @return CommandList the commands of the file
+     */
+    public static CommandList parse(Parser parser, String fileName) {
+        CommandList commands = new CommandList(fileName);
+        while (parser.hasMoreCommands()) {
+            parser.advance(); // decode the next command
+            commands.add(parser.opcode(), parser.segment(), parser.symbol(), parser.opcode().argumentCount() == 2 ? parser.arg2() : 0);
+        }
+        parser.close();
+        return commands;
+    }
+
+    /**
+     * Append a command
+     * @param opcode the command
+     * @param segment the segment of a push or pop, otherwise null
+     * @param symbol the symbol id of the name argument, otherwise -1
+     * @param operand the numeric argument, otherwise 0
+     */
+    public void add(Opcode opcode, Segment segment, int symbol, int operand) {
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+        }
+        opcodes[size] = (short) opcode.ordinal();
+        segments[size] = (short) (segment == null ? -1 : segment.ordinal());
+        symbols[size] = symbol;
+        operands[size] = operand;
+        size++;
+    }
+
+    /**
+     * Get the .vm file name without extension
+     * @return String the file name
+     */
+    public String fileName() {
+        return fileName;
+    }
+
+    /**
+     * Get the number of commands
+     * @return int the command count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the command at the given index
+     * @param i the command index
+     * @return Opcode the command
+     */
+    public Opcode opcode(int i) {
+        return OPCODES[opcodes[i]];
+    }
+
+    /**
+     * Get the segment of the push or pop at the given index
+     * @param i the command index
+     * @return Segment the segment, or null for other commands
+     */
+    public Segment segment(int i) {
+        return segments[i] < 0 ? null : SEGMENTS[segments[i]];
+    }
+
+    /**
+     * Get the symbol id of the name argument at the given index
+     * @param i the command index
+     * @return int the symbol id, or -1 if the command has no name argument
+     */
+    public int symbol(int i) {
+        return symbols[i];
+    }
+
+    /**
+     * Get the first argument of the command at the given index, as Parser.arg1() would
+     * @param i the command index
+     * @param symbolTable the symbol table the names are interned in
+     * @return String the keyword of an arithmetic command, the segment of a push or pop,
+     *                the name of any other command, or null for return
+     */
+    public String arg1(int i, SymbolTable symbolTable) {
+        Opcode opcode = opcode(i);
+        if (opcode.commandType() == Parser.C_ARITHMETIC) return opcode.keyword();
+        if (segments[i] >= 0) return SEGMENTS[segments[i]].keyword();
+        return symbols[i] >= 0 ? symbolTable.name(symbols[i]) : null;
+    }
+
+    /**
+     * Get the numeric argument at the given index
+     * @param i the command index
+     * @return int the index, local count, or argument count
+     */
+    public int operand(int i) {
+        return operands[i];
+    }
+
+    /**
+     * Get the command at the given index as it would be written in VM source
+     * @param i the command index
+     * @param symbolTable the symbol table the names are interned in
+     * @return String the command, e.g. push local 2 or if-goto LOOP
+     */
+    public String text(int i, SymbolTable symbolTable) {
+        Opcode opcode = opcode(i);
+        String arg1 = arg1(i, symbolTable);
+        if (opcode.argumentCount() == 0) return opcode.keyword();
+        if (opcode.argumentCount() == 1) return opcode.keyword() + " " + arg1;
+        return opcode.keyword() + " " + arg1 + " " + operands[i];
+    }
+
+    /**
+     * Append the command at the given index as it would be written in VM source, as text() does
+     * @param i the command index
+     * @param symbolTable the symbol table the names are interned in
+     * @param out receives the command, e.g. push local 2
+     */
+    public void appendText(int i, SymbolTable symbolTable, StringBuilder out) {
+        Opcode opcode = opcode(i);
+        out.append(opcode.keyword());
+        if (opcode.argumentCount() >= 1) out.append(' ').append(arg1(i, symbolTable));
+        if (opcode.argumentCount() == 2) out.append(' ').append(operands[i]);
+    }
+
+    /**
+     * Get the length of text() for the command at the given index, without building it
+     * @param i the command index
+     * @param symbolTable the symbol table the names are interned in
+     * @return int the number of characters (and bytes; the names are ASCII)
+     */
+    public int textLength(int i, SymbolTable symbolTable) {
+        Opcode opcode = opcode(i);
+        int length = opcode.keyword().length();
+        if (opcode.argumentCount() >= 1) length += 1 + arg1(i, symbolTable).length(); // arg1 returns a stored String
+        if (opcode.argumentCount() == 2) length += 1 + digits(operands[i]);
+        return length;
+    }
+
+    /**
+     * Count the characters of a number written in decimal
+     */
+    private static int digits(int value) {
+        int count = (value < 0) ? 2 : 1; // the sign, and the last digit
+        while (value <= -10 || value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * ConstantFolder.java
+ * Evaluates arithmetic, logical, and comparison commands on constants at translation time.
+ * The values of push constant commands are held back instead of being written; an
+ * arithmetic command whose operands are all held back replaces them with its result,
+ * so push constant 2, push constant 3, add becomes a single push of 5, and push
+ * constant 0, not (true) a single push of -1. Any other command writes the held-back
+ * values first (see CodeWriter), in the order they were pushed.
+ * Results follow the Hack ALU: 16-bit two's complement, wrapping on overflow, with
+ * -1 for true and 0 for false.
+ * Each folder counts the commands it folded away and adds the count to the
+ * TranslationStatistics of its CodeWriter when it is closed.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Report the folded count to the writer's TranslationStatistics instead of a static total
+ * 2026-10-18: Fold and evaluate by Opcode instead of by keyword
+ */
+
+public class ConstantFolder {
+    static final int MAX_PENDING = 16; // values held back at most; memory stays bounded on long streams
+
+    private final int[] pending = new int[MAX_PENDING]; // held-back values, oldest (deepest in the stack) first
+    private int size = 0; // number of held-back values
+    private long folded = 0; // commands folded away
+    private final TranslationStatistics statistics; // receives the count when the folder is closed
+
+    /**
+     * Make an empty folder
+     * @param statistics the collector the folded count is added to
+     */
+    ConstantFolder(TranslationStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Hold back a pushed value
+     * @param value the value, -32768 to 32767; there must be room for it (see isFull())
+     */
+    void push(int value) {
+        if (size == MAX_PENDING) throw new IllegalStateException("Too many constants held back");
+        pending[size++] = value;
+    }
+
+    /**
+     * Is there room for another value?
+     * @return boolean true if MAX_PENDING values are held back
+     */
+    boolean isFull() {
+        return size == MAX_PENDING;
+    }
+
+    /**
+     * Remove the oldest held-back value, which is the next one due on the stack
+     * @return int the value
+     */
+    int removeOldest() {
+        int value = pending[0];
+        System.arraycopy(pending, 1, pending, 0, --size);
+        return value;
+    }
+
+    /**
+     * Remove the newest held-back value, i.e. the top of the stack
+     * @return int the value
+     */
+    int pop() {
+        return pending[--size];
+    }
+
+    /**
+     * Get the number of held-back values
+     * @return int the count
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Evaluate an arithmetic command if all of its operands are held back
+     * @param command one of the nine arithmetic/logical stack commands
+     * @return boolean true if the command was folded into its result, false if it must be written
+     */
+    boolean fold(Opcode command) {
+        boolean unary = command == Opcode.NEG || command == Opcode.NOT;
+        if (size < (unary ? 1 : 2)) return false;
+        int y = pending[size - 1];
+        int x = unary ? 0 : pending[size - 2];
+        int result = evaluate(command, x, y);
+        size -= unary ? 1 : 2;
+        pending[size++] = result;
+        folded++;
+        return true;
+    }
+
+    /**
+     * Add this folder's count to the statistics; the folder is not used afterwards
+     */
+    void close() {
+        statistics.addFolded(folded);
+        folded = 0;
+    }
+
+    /**
+     * Evaluate an arithmetic command as the Hack CPU would
+     * @param command one of the nine arithmetic/logical stack commands
+     * @param x the first operand (ignored by neg and not), -32768 to 32767
+     * @param y the second operand, or the only one, -32768 to 32767
+     * @return int the 16-bit result, -32768 to 32767
+     */
+    static int evaluate(Opcode command, int x, int y) {
+        switch (command) {
+            case ADD: return (short) (x + y); // wraps like the ALU
+            case SUB: return (short) (x - y);
+            case NEG: return (short) -y; // -(-32768) is -32768
+            case AND: return (short) (x & y);
+            case OR: return (short) (x | y);
+            case NOT: return (short) ~y;
+            // the CPU compares by the sign of x - y, which can overflow: gt 32767 -1 computes
+            // 32767 - (-1) = -32768 and is false, so the comparisons fold the same way
+            case EQ: return ((short) (x - y) == 0) ? -1 : 0;
+            case GT: return ((short) (x - y) > 0) ? -1 : 0;
+            case LT: return ((short) (x - y) < 0) ? -1 : 0;
+            default:
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.keyword());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * DataflowAnalysis.java
+ * A dataflow problem over the blocks of a FlowGraph, solved by iterating to a fixed point.
+ * A forward analysis computes the value where each block starts from the values where its
+ * predecessors end (in = meet of the predecessors' out, out = transfer(in)); a backward
+ * analysis computes the value where each block ends from where its successors start
+ * (out = meet of the successors' in, in = transfer(out)). The entry block (forward) and the
+ * blocks without successors (backward) also meet the boundary value.
+ * Subclasses supply the values: top() must be the identity of meet(), and transfer() must be
+ * monotone, so the solution only ever moves down the lattice and the iteration ends. Values
+ * are compared with Objects.equals() (so top() may be null) and are never modified once returned.
+ * Blocks that cannot be reached from the entry are not visited; they keep top().
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.util.*;
+
+public abstract class DataflowAnalysis<T> {
+    private final boolean forward; // true for a forward analysis, false for a backward one
+
+    /**
+     * @param forward true if values flow from the entry along the edges, false if against them
+     */
+    protected DataflowAnalysis(boolean forward) {
+        this.forward = forward;
+    }
+
+    /**
+     * Get the value at the entry (forward) or after every exit (backward)
+     * @param graph the graph being solved
+     * @return T the boundary value
+     */
+    abstract T boundary(FlowGraph graph);
+
+    /**
+     * Get the starting value of every block, which meet() leaves unchanged
+     * @return T the top of the lattice
+     */
+    abstract T top();
+
+    /**
+     * Combine the values of two paths that join
+     * @param a one value
+     * @param b the other value
+     * @return T the combined value
+     */
+    abstract T meet(T a, T b);
+
+    /**
+     * Carry a value across the commands of a block, top to bottom (forward) or bottom to top (backward)
+     * @param graph the graph being solved
+     * @param block the block
+     * @param value the value where the block starts (forward) or ends (backward)
+     * @return T the value at the other end of the block
+     */
+    abstract T transfer(FlowGraph graph, FlowGraph.Block block, T value);
+
+    /**
+     * Compute the fixed point over every block reachable from the entry
+     * @param graph the graph to solve
+     * @return Solution the values where each block starts and ends
+     */
+    Solution<T> solve(FlowGraph graph) {
+        int count = graph.blocks().size();
+        List<T> in = new ArrayList<>(Collections.nCopies(count, top()));
+        List<T> out = new ArrayList<>(Collections.nCopies(count, top()));
+        List<FlowGraph.Block> order = new ArrayList<>(graph.reversePostorder());
+        if (!forward) Collections.reverse(order); // successors before predecessors, except along back edges
+
+        // visit the blocks in order, then again wherever an input changed, until nothing does
+        Deque<FlowGraph.Block> work = new ArrayDeque<>(order);
+        boolean[] queued = new boolean[count];
+        for (FlowGraph.Block block : order) queued[block.id] = true;
+        int visits = 0;
+        while (!work.isEmpty()) {
+            FlowGraph.Block block = work.poll();
+            queued[block.id] = false;
+            visits++;
+            List<FlowGraph.Block> sources = forward ? block.predecessors : block.successors;
+            List<T> results = forward ? out : in; // where the sources' values are kept
+            T value = top();
+            if (forward ? block == graph.entry() : block.successors.isEmpty()) value = meet(value, boundary(graph));
+            for (FlowGraph.Block source : sources) value = meet(value, results.get(source.id));
+            (forward ? in : out).set(block.id, value);
+            T result = transfer(graph, block, value);
+            if (Objects.equals(result, results.get(block.id))) continue;
+            results.set(block.id, result);
+            for (FlowGraph.Block target : forward ? block.successors : block.predecessors) {
+                if (!queued[target.id] && graph.isReachable(target)) {
+                    queued[target.id] = true;
+                    work.add(target);
+                }
+            }
+        }
+        return new Solution<>(in, out, visits);
+    }
+
+    /**
+     * The values where each block starts and ends, by block id
+     */
+    static final class Solution<T> {
+        private final List<T> in;
+        private final List<T> out;
+        private final int visits; // blocks transferred until the fixed point was reached
+
+        private Solution(List<T> in, List<T> out, int visits) {
+            this.in = in;
+            this.out = out;
+            this.visits = visits;
+        }
+
+        /**
+         * Get the value where a block starts
+         * @param block a block of the solved graph
+         * @return T the value before its first command
+         */
+        T in(FlowGraph.Block block) {
+            return in.get(block.id);
+        }
+
+        /**
+         * Get the value where a block ends
+         * @param block a block of the solved graph
+         * @return T the value after its last command
+         */
+        T out(FlowGraph.Block block) {
+            return out.get(block.id);
+        }
+
+        /**
+         * Get the number of block transfers the solver took
+         * @return int the visits; a little more than the number of blocks unless loops nest deeply
+         */
+        int visits() {
+            return visits;
+        }
+    }
+}
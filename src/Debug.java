@@ -3,9 +3,10 @@
  * by Charles Stevenson (brucesdad13@gmail.com)
  * Revision History:
  * 2024-05-24: Initial version
+ * 2026-10-18: Off by default; VMTranslator --debug turns it on
  */
 public class Debug {
-    public static boolean DEBUG_MODE = true; // set to true to enable debugging
+    public static boolean DEBUG_MODE = false; // set to true to enable debugging (see VMTranslator --debug)
 
     /**
      * Print a message to the console
@@ -0,0 +1,360 @@
+/**
+ * FlowGraph.java
+ * The control-flow graph of one VM function: its commands split into basic blocks
+ * (straight-line runs that are entered only at the top and left only at the bottom)
+ * linked by the jumps between them. A block starts at the function command, at every
+ * label, and after every goto, if-goto, and return; it ends before the next start.
+ * A goto has one successor (its label), an if-goto two (its label, then the next block),
+ * a return none; any other last command falls through to the next block. Calls come
+ * back to the command after them, so they do not end a block.
+ * Labels are scoped to their function, as CodeWriter writes them; a jump to a label the
+ * function does not define is rejected. The commands before the first function (as in
+ * the test programs without functions) form a graph of their own, with no name.
+ * Analyses over the graph extend DataflowAnalysis; two are included here, the stack
+ * depth at each block (StackDepth) and the locals read before they are written again
+ * (LiveLocals), and dump() prints a graph with both for inspection (see --dump-cfg).
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class FlowGraph {
+    /**
+     * A basic block: the commands first to end - 1 of the graph's CommandList
+     */
+    static final class Block {
+        final int id; // position in the graph, in command order; block 0 is the entry
+        final int first; // index of the first command
+        final int end; // index one past the last command
+        final List<Block> successors = new ArrayList<>(); // in jump order: the label, then the fall-through
+        final List<Block> predecessors = new ArrayList<>();
+
+        Block(int id, int first, int end) {
+            this.id = id;
+            this.first = first;
+            this.end = end;
+        }
+
+        /**
+         * Get the index of the last command
+         * @return int the command index
+         */
+        int last() {
+            return end - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "B" + id;
+        }
+    }
+
+    private final CommandList commands;
+    private final int first; // index of the function command (or 0 before the first function)
+    private final int end; // index one past the last command of the function
+    private final String name; // the function name, or null for the commands before the first function
+    private final List<Block> blocks = new ArrayList<>(); // in command order
+    private final List<Block> order = new ArrayList<>(); // the blocks reachable from the entry, in reverse postorder
+    private final boolean[] reachable; // by block id
+
+    /**
+     * Build the graph of the commands first to end - 1 of a file
+     * @param commands the parsed commands of the file
+     * @param first index of the function command, or of the first command before any function
+     * @param end index one past the last command
+     * @param symbols the symbol table the names are interned in
+     */
+    FlowGraph(CommandList commands, int first, int end, SymbolTable symbols) {
+        this.commands = commands;
+        this.first = first;
+        this.end = end;
+        this.name = (commands.opcode(first) == Opcode.FUNCTION) ? symbols.name(commands.symbol(first)) : null;
+
+        // find the labels and the first command of every block
+        Map<Integer, Integer> labels = new HashMap<>(); // label symbol id -> command index
+        boolean[] starts = new boolean[end - first + 1];
+        starts[0] = true;
+        for (int i = first; i < end; i++) {
+            switch (commands.opcode(i)) {
+                case LABEL:
+                    if (labels.put(commands.symbol(i), i) != null) {
+                        throw new IllegalArgumentException("Duplicate label in " + displayName() + ": " + symbols.name(commands.symbol(i)));
+                    }
+                    starts[i - first] = true;
+                    break;
+                case GOTO: case IF_GOTO: case RETURN:
+                    starts[i + 1 - first] = true; // control does not simply carry on
+                    break;
+                default:
+                    break;
+            }
+        }
+        Block[] blockAt = new Block[end - first]; // the block that starts at each command, or null
+        for (int i = first; i < end; i++) {
+            if (!starts[i - first]) continue;
+            int blockEnd = i + 1;
+            while (blockEnd < end && !starts[blockEnd - first]) blockEnd++;
+            Block block = new Block(blocks.size(), i, blockEnd);
+            blocks.add(block);
+            blockAt[i - first] = block;
+        }
+
+        // link each block to its successors
+        for (Block block : blocks) {
+            Opcode last = commands.opcode(block.last());
+            if (last == Opcode.GOTO || last == Opcode.IF_GOTO) {
+                Integer target = labels.get(commands.symbol(block.last()));
+                if (target == null) {
+                    throw new IllegalArgumentException("Label not found in " + displayName() + ": " + symbols.name(commands.symbol(block.last())));
+                }
+                link(block, blockAt[target - first]);
+            }
+            if (last != Opcode.GOTO && last != Opcode.RETURN && block.end < end) {
+                link(block, blockAt[block.end - first]); // fall through
+            }
+        }
+
+        // reverse postorder from the entry, without recursion (long functions make deep graphs)
+        Set<Block> visited = new HashSet<>();
+        Deque<Block> path = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>(); // the next successor to visit, for each block on the path
+        visited.add(blocks.get(0));
+        path.push(blocks.get(0));
+        next.push(0);
+        while (!path.isEmpty()) {
+            Block block = path.peek();
+            int successor = next.pop();
+            if (successor < block.successors.size()) {
+                next.push(successor + 1);
+                Block target = block.successors.get(successor);
+                if (visited.add(target)) {
+                    path.push(target);
+                    next.push(0);
+                }
+            } else {
+                order.add(path.pop());
+            }
+        }
+        Collections.reverse(order);
+        reachable = new boolean[blocks.size()];
+        for (Block block : order) reachable[block.id] = true;
+    }
+
+    private static void link(Block from, Block to) {
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+    /**
+     * Build the graph of every function of a file, in file order
+     * @param commands the parsed commands of the file
+     * @param symbols the symbol table the names are interned in
+     * @return List the graphs; the first has no name if commands come before the first function
+     */
+    static List<FlowGraph> build(CommandList commands, SymbolTable symbols) {
+        List<FlowGraph> graphs = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= commands.size(); i++) {
+            if (i == commands.size() || commands.opcode(i) == Opcode.FUNCTION) {
+                if (i > start) graphs.add(new FlowGraph(commands, start, i, symbols));
+                start = i;
+            }
+        }
+        return graphs;
+    }
+
+    /**
+     * Get the commands the graph was built from
+     * @return CommandList the commands of the whole file
+     */
+    CommandList commands() {
+        return commands;
+    }
+
+    /**
+     * Get the index of the first command of the function
+     * @return int the command index
+     */
+    int first() {
+        return first;
+    }
+
+    /**
+     * Get the index one past the last command of the function
+     * @return int the command index
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * Get the function name
+     * @return String the name, or null for the commands before the first function
+     */
+    String name() {
+        return name;
+    }
+
+    /**
+     * Get the blocks in command order
+     * @return List the blocks, read-only
+     */
+    List<Block> blocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Get the entry block
+     * @return Block the block that starts with the first command
+     */
+    Block entry() {
+        return blocks.get(0);
+    }
+
+    /**
+     * Get the blocks reachable from the entry, each before its successors except along back edges
+     * @return List the blocks in reverse postorder, read-only
+     */
+    List<Block> reversePostorder() {
+        return Collections.unmodifiableList(order);
+    }
+
+    /**
+     * Can control reach the block from the entry?
+     * @param block a block of this graph
+     * @return boolean false if the block is dead code
+     */
+    boolean isReachable(Block block) {
+        return reachable[block.id];
+    }
+
+    private String displayName() {
+        return (name == null) ? "the commands before the first function" : name;
+    }
+
+    /**
+     * Print the graph: each block with its commands, its successors, the stack depth where it
+     * starts, and the locals live there
+     * @param out where to print
+     * @param symbols the symbol table the names are interned in
+     */
+    void dump(PrintStream out, SymbolTable symbols) {
+        DataflowAnalysis.Solution<Integer> depths = new StackDepth().solve(this);
+        DataflowAnalysis.Solution<BitSet> live = new LiveLocals().solve(this);
+        out.println((name == null) ? "(before the first function)" : "function " + name);
+        for (Block block : blocks) {
+            StringBuilder line = new StringBuilder("  " + block + " [" + block.first + ".." + block.last() + "]");
+            if (!isReachable(block)) {
+                line.append(" unreachable");
+            } else {
+                Integer depth = depths.in(block);
+                line.append(" depth ").append(StackDepth.CONFLICT.equals(depth) ? "?" : String.valueOf(depth));
+            }
+            line.append(" ->");
+            for (Block successor : block.successors) line.append(' ').append(successor);
+            if (block.successors.isEmpty()) line.append(" exit");
+            BitSet locals = live.in(block);
+            if (!locals.isEmpty()) line.append(" live local ").append(locals.toString().replaceAll("[{},]", ""));
+            out.println(line);
+            for (int i = block.first; i < block.end; i++) out.println("      " + commands.text(i, symbols));
+        }
+    }
+
+    /**
+     * The number of words on the stack above the function's locals where each block starts
+     * (forward). Blocks that are reached with different depths, which the Jack compiler never
+     * produces, get CONFLICT.
+     */
+    static final class StackDepth extends DataflowAnalysis<Integer> {
+        static final Integer CONFLICT = Integer.MIN_VALUE; // the depth depends on the path taken
+
+        StackDepth() {
+            super(true);
+        }
+
+        @Override
+        Integer boundary(FlowGraph graph) {
+            return 0;
+        }
+
+        @Override
+        Integer top() {
+            return null; // not reached yet
+        }
+
+        @Override
+        Integer meet(Integer a, Integer b) {
+            if (a == null) return b;
+            if (b == null || a.equals(b)) return a;
+            return CONFLICT;
+        }
+
+        @Override
+        Integer transfer(FlowGraph graph, Block block, Integer depth) {
+            if (depth == null || depth.equals(CONFLICT)) return depth;
+            CommandList commands = graph.commands();
+            int words = depth;
+            for (int i = block.first; i < block.end; i++) words += effect(commands, i);
+            return words;
+        }
+
+        /**
+         * Get the change in stack depth of a command
+         * @param commands the parsed commands
+         * @param i the command index
+         * @return int the words pushed minus the words popped
+         */
+        static int effect(CommandList commands, int i) {
+            switch (commands.opcode(i)) {
+                case PUSH: return 1;
+                case POP: case IF_GOTO: return -1;
+                case ADD: case SUB: case EQ: case GT: case LT: case AND: case OR: return -1; // two operands, one result
+                case CALL: return 1 - commands.operand(i); // the arguments are replaced by the return value
+                default: return 0; // neg, not, label, goto, function (its locals are below the stack), return
+            }
+        }
+    }
+
+    /**
+     * The local variables whose value may be read (pushed) before it is written (popped)
+     * again, where each block starts (backward); a pop local to a variable that is not live
+     * after it is a dead store. Locals are dead where the function returns.
+     */
+    static final class LiveLocals extends DataflowAnalysis<BitSet> {
+        LiveLocals() {
+            super(false);
+        }
+
+        @Override
+        BitSet boundary(FlowGraph graph) {
+            return new BitSet();
+        }
+
+        @Override
+        BitSet top() {
+            return new BitSet();
+        }
+
+        @Override
+        BitSet meet(BitSet a, BitSet b) {
+            BitSet union = (BitSet) a.clone();
+            union.or(b);
+            return union;
+        }
+
+        @Override
+        BitSet transfer(FlowGraph graph, Block block, BitSet liveOut) {
+            CommandList commands = graph.commands();
+            BitSet live = (BitSet) liveOut.clone();
+            for (int i = block.last(); i >= block.first; i--) { // from the bottom of the block up
+                if (commands.segment(i) != Segment.LOCAL || commands.operand(i) < 0) continue;
+                if (commands.opcode(i) == Opcode.POP) live.clear(commands.operand(i)); // written here
+                else live.set(commands.operand(i)); // read here
+            }
+            return live;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * FragmentCache.java
+ * Persistent on-disk cache of the assembly of each .vm file in a directory build.
+ * An entry is keyed by a SHA-256 hash of the file name, its contents, the code
+ * generation settings, and the version of the code generator (CodeWriter.CODE_VERSION),
+ * so a fix to the generated code never serves assembly written before it. It holds
+ * the functions the file defines, the file each of its call targets resolved to, and
+ * the translated assembly. An entry is reused
+ * only while every one of those call targets still resolves to the same file, so a
+ * change in another file that moves a function forces a retranslation.
+ * Entries are written to a temporary file and renamed into place, so an interrupted
+ * build never leaves a partial entry behind. Entries are never evicted; delete the
+ * directory to clear the cache.
+ * The entries of the latest build are also kept in memory, so a long-running
+ * process (see --watch) reuses them without touching the disk; a cache without a
+ * directory is kept in memory only.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Keep the entries of the latest build in memory; the directory is optional
+ * 2026-10-18: Take the CodeWriterOptions and key the entries by their cacheKey()
+ * 2026-10-18: Include CodeWriter.CODE_VERSION in the key
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+public class FragmentCache {
+    private static final int FORMAT = 1; // version of the entry layout; part of every key
+    private static final String SUFFIX = ".frag"; // file extension of an entry
+
+    private final Path directory; // where the entries are kept, or null to keep them in memory only
+    private final String configuration; // the cacheKey() of the code generation settings
+    private final Map<String, Entry> entries = new HashMap<>(); // file name -> entry of the current build
+    private Map<String, Entry> remembered = new HashMap<>(); // key -> entry of the previous build
+    private int hits = 0; // files whose cached assembly is reused
+
+    /**
+     * One .vm file of the current build and, if it was cached, its stored translation
+     */
+    static final class Entry {
+        final String fileName; // the .vm file name without extension
+        final String key; // hex content hash
+        final byte[] source; // contents of the .vm file
+        String[] functions; // functions the file defines, or null on a miss
+        String[] calls; // functions the file calls
+        String[] callFiles; // the file each call target resolved to
+        byte[] assembly; // the translated assembly
+
+        Entry(String fileName, String key, byte[] source) {
+            this.fileName = fileName;
+            this.key = key;
+            this.source = source;
+        }
+
+        /**
+         * Was a translation of this exact file found in the cache?
+         * @return boolean true if the cached assembly may be reused (see FragmentCache.isCurrent)
+         */
+        boolean isCached() {
+            return assembly != null;
+        }
+    }
+
+    /**
+     * Open (and if necessary create) the cache in the given directory
+     * @param directory the cache directory, or null to keep the entries in memory only
+     * @param options the code generation settings; entries made with other settings are never used
+     */
+    public FragmentCache(Path directory, CodeWriterOptions options) {
+        this.directory = directory;
+        this.configuration = options.cacheKey();
+        if (directory == null) return;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Start another build with the same cache; the entries of the finished build stay in memory
+     */
+    void beginBuild() {
+        Map<String, Entry> previous = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isCached()) previous.put(entry.key, entry);
+        }
+        remembered = previous; // entries of older builds are dropped
+        entries.clear();
+        hits = 0;
+    }
+
+    /**
+     * Read a .vm file and look up its translation
+     * @param file the .vm file
+     * @return Entry the file contents, with the cached translation if there is one
+     */
+    Entry load(Path file) {
+        String name = file.getFileName().toString();
+        String fileName = name.substring(0, name.lastIndexOf('.')); // remove the .vm extension
+        byte[] source;
+        try {
+            source = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Entry entry = new Entry(fileName, key(fileName, source), source);
+        Path path = (directory == null) ? null : directory.resolve(entry.key + SUFFIX);
+        Entry known = remembered.get(entry.key);
+        if (known != null) { // translated by the previous build of this process
+            entry.functions = known.functions;
+            entry.calls = known.calls;
+            entry.callFiles = known.callFiles;
+            entry.assembly = known.assembly;
+        } else if (path != null && Files.exists(path)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                read(input, entry);
+            } catch (IOException e) { // damaged entry: translate the file again and overwrite it
+                System.out.println("Hack VM Translator Cache I/O Exception: " + e);
+                entry.functions = null;
+                entry.assembly = null;
+            }
+        }
+        entries.put(fileName, entry);
+        return entry;
+    }
+
+    /**
+     * Can the cached translation still be used with the finished function table?
+     * @param entry a cached entry of the current build
+     * @param functionTable the complete function table
+     * @return boolean true if every call target still resolves to the file it did when the entry was made
+     */
+    boolean isCurrent(Entry entry, FunctionTable functionTable) {
+        if (!entry.isCached()) return false;
+        for (int i = 0; i < entry.calls.length; i++) {
+            if (!entry.callFiles[i].equals(functionTable.getFile(entry.calls[i]))) return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Store the translation of a file of the current build; safe to call from any thread
+     * for different files once the function table is frozen
+     * @param commands the parsed commands of the file
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the frozen function table the file was translated against
+     * @param assembly the translated assembly
+     */
+    void store(CommandList commands, SymbolTable symbols, FunctionTable functionTable, byte[] assembly) {
+        Entry entry = entries.get(commands.fileName());
+        if (entry == null) throw new IllegalArgumentException("File was not loaded from the cache: " + commands.fileName());
+
+        Set<String> functions = new LinkedHashSet<>();
+        Set<String> calls = new LinkedHashSet<>();
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.opcode(i) == Opcode.FUNCTION) functions.add(symbols.name(commands.symbol(i)));
+            else if (commands.opcode(i) == Opcode.CALL) calls.add(symbols.name(commands.symbol(i)));
+        }
+        entry.functions = functions.toArray(new String[0]);
+        entry.calls = calls.toArray(new String[0]);
+        entry.callFiles = new String[entry.calls.length];
+        for (int i = 0; i < entry.calls.length; i++) entry.callFiles[i] = functionTable.getFile(entry.calls[i]);
+        entry.assembly = assembly; // remembered by the next build of this process
+        if (directory == null) return;
+
+        Path path = directory.resolve(entry.key + SUFFIX);
+        try {
+            Path temporary = Files.createTempFile(directory, entry.key, ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(FORMAT);
+                output.writeUTF(entry.fileName);
+                output.writeInt(entry.functions.length);
+                for (String function : entry.functions) output.writeUTF(function);
+                output.writeInt(entry.calls.length);
+                for (int i = 0; i < entry.calls.length; i++) {
+                    output.writeUTF(entry.calls[i]);
+                    output.writeUTF(entry.callFiles[i]);
+                }
+                output.writeInt(assembly.length);
+                output.write(assembly);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) { // the build itself is fine; only the next one is slower
+            System.out.println("Hack VM Translator Cache I/O Exception: " + e);
+        }
+    }
+
+    /**
+     * Get the number of files whose cached translation was reused
+     * @return int the number of cache hits
+     */
+    int hits() {
+        return hits;
+    }
+
+    /**
+     * Read an entry written by store()
+     */
+    private static void read(DataInputStream input, Entry entry) throws IOException {
+        if (input.readInt() != FORMAT || !input.readUTF().equals(entry.fileName)) {
+            throw new IOException("Unexpected cache entry for " + entry.fileName);
+        }
+        String[] functions = new String[input.readInt()];
+        for (int i = 0; i < functions.length; i++) functions[i] = input.readUTF();
+        int callCount = input.readInt();
+        String[] calls = new String[callCount];
+        String[] callFiles = new String[callCount];
+        for (int i = 0; i < callCount; i++) {
+            calls[i] = input.readUTF();
+            callFiles[i] = input.readUTF();
+        }
+        byte[] assembly = new byte[input.readInt()];
+        input.readFully(assembly);
+        entry.functions = functions;
+        entry.calls = calls;
+        entry.callFiles = callFiles;
+        entry.assembly = assembly;
+    }
+
+    /**
+     * Hash the code generator version, the settings, the file name (statics and labels are named
+     * after it), and the contents
+     */
+    private String key(String fileName, byte[] source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update((FORMAT + "\n" + CodeWriter.CODE_VERSION + "\n" + configuration + "\n" + fileName + "\n").getBytes(StandardCharsets.UTF_8));
+        byte[] hash = digest.digest(source);
+        StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return key.toString();
+    }
+}
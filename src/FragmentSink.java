@@ -0,0 +1,47 @@
+/**
+ * FragmentSink.java
+ * Thread-safe collector for the assembly of each file in a directory build. Files
+ * may finish translating in any order; each fragment is passed on to the output
+ * CodeWriter as soon as every file before it has arrived, so the output is always
+ * in directory order and no more fragments are held than necessary.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+public class FragmentSink {
+    private final CodeWriter output; // receives the fragments in file order
+    private final byte[][] pending; // fragments that arrived before an earlier file
+    private int next = 0; // index of the next fragment to write
+
+    /**
+     * Collect the fragments of the given number of files for the given output
+     * @param output the CodeWriter of the output file; only used while holding this sink's lock
+     * @param fileCount the number of fragments to expect
+     */
+    public FragmentSink(CodeWriter output, int fileCount) {
+        this.output = output;
+        this.pending = new byte[fileCount][];
+    }
+
+    /**
+     * Accept the assembly of one file, from any thread
+     * @param index the position of the file in directory order
+     * @param assembly the translated assembly of the file
+     */
+    public synchronized void submit(int index, byte[] assembly) {
+        if (index < next || pending[index] != null) throw new IllegalStateException("Fragment submitted twice: " + index);
+        pending[index] = assembly;
+        while (next < pending.length && pending[next] != null) { // write every fragment that is now in order
+            output.writeFragment(pending[next]);
+            pending[next++] = null;
+        }
+    }
+
+    /**
+     * Have all fragments been written?
+     * @return boolean true once every file has been submitted
+     */
+    public synchronized boolean isComplete() {
+        return next == pending.length;
+    }
+}
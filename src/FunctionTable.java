@@ -4,13 +4,26 @@
  * by Charles Stevenson (brucesdad13@gmail.com)
  * Revision History:
  * 2024-05-30: Initial version
+ * 2026-10-18: Added freeze() so a finished table can be shared by concurrent translations
+ * 2026-10-18: Cache the rendered call target of each function as bytes
+ * 2026-10-18: Record the calls each function makes, for the call graph (see reachableFrom)
  */
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 public class FunctionTable {
     /**
      * Map functionName to filePrefix (e.g. for foo.vm filePrefix = foo)
      */
-    private final Map<String, String> table = new HashMap<>() {};
+    private Map<String, String> table = new HashMap<>() {};
+    /**
+     * Map functionName to its rendered label (e.g. for Main.fibonacci in Main.vm, Main.Main.fibonacci)
+     */
+    private Map<String, byte[]> labels = new HashMap<>();
+    /**
+     * Map functionName to the functions it calls; calls made outside any function are under null
+     */
+    private Map<String, Set<String>> calls = new HashMap<>();
+    private boolean frozen = false; // true once the table is complete and read-only
 
     /**
      * Add a new function mapping to the table
@@ -18,7 +31,36 @@ public class FunctionTable {
      * @param filePrefix the address of the function
      */
     public void addEntry(String functionName, String filePrefix ) {
+        if (frozen) throw new IllegalStateException("Function table is frozen: " + functionName);
         table.put(functionName, filePrefix);
+        labels.put(functionName, (filePrefix + "." + functionName).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Record that a function calls another
+     * @param caller the calling function, or null for commands before the first function of a file
+     * @param callee the function called
+     */
+    public void addCall(String caller, String callee) {
+        if (frozen) throw new IllegalStateException("Function table is frozen: " + caller);
+        calls.computeIfAbsent(caller == null ? "" : caller, k -> new HashSet<>()).add(callee);
+    }
+
+    /**
+     * Mark the table as complete; later additions are rejected
+     * A frozen table is immutable and may be read by any number of threads.
+     * @return FunctionTable this table
+     */
+    public FunctionTable freeze() {
+        if (!frozen) {
+            table = Map.copyOf(table); // immutable copy
+            labels = Map.copyOf(labels);
+            Map<String, Set<String>> callees = new HashMap<>();
+            calls.forEach((caller, called) -> callees.put(caller, Set.copyOf(called)));
+            calls = Map.copyOf(callees);
+            frozen = true;
+        }
+        return this;
     }
 
     /**
@@ -39,6 +81,34 @@ public class FunctionTable {
         return table.get(functionName);
     }
 
+    /**
+     * Get the label of the given function as written in the assembly code
+     * @param functionName the function to get the label of
+     * @return byte[] the file-prefixed name as ASCII bytes (do not modify), or null if unknown
+     */
+    public byte[] getLabel(String functionName) {
+        return labels.get(functionName);
+    }
+
+    /**
+     * Walk the call graph from a function: every function it may call, directly or through others
+     * The calls made outside any function are followed too, since nothing shows they cannot run.
+     * @param root the function the program starts at, e.g. Sys.init
+     * @return Set the defined functions reached, the root first, in the order they are found
+     */
+    public Set<String> reachableFrom(String root) {
+        Set<String> reached = new LinkedHashSet<>();
+        Deque<String> work = new ArrayDeque<>();
+        work.add(root);
+        work.addAll(calls.getOrDefault("", Set.of()));
+        while (!work.isEmpty()) {
+            String function = work.poll();
+            if (!table.containsKey(function) || !reached.add(function)) continue; // undefined, or seen
+            work.addAll(calls.getOrDefault(function, Set.of()));
+        }
+        return reached;
+    }
+
     /**
      * Print the function table
      */
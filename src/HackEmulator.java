@@ -0,0 +1,274 @@
+/**
+ * HackEmulator.java
+ * Assembles and runs translated .asm files on a minimal Hack CPU, reporting the ROM size
+ * (instructions) and the number of cycles each one takes, so code generation options
+ * can be compared by size and by speed. With more than one file, the RAM of each file
+ * after the run is compared with the first file's.
+ * Usage: java HackEmulator [--cycles <n>] [address=value ...] file.asm [file.asm ...]
+ * address=value pairs set RAM before the run (e.g. 0=256 for a test without bootstrap code).
+ * A run ends when the program leaves the ROM, reaches a halt loop ((END) @END 0;JMP), or
+ * has taken the given number of cycles (default 10,000,000).
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class HackEmulator {
+    private static final long DEFAULT_CYCLES = 10_000_000; // default run limit
+    private static final int RAM_SIZE = 32768; // words; 16K RAM, screen, and keyboard
+    private static final int FIRST_VARIABLE = 16; // address of the first assembler variable
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"}; // by jump bits
+    private static final Map<String, Integer> COMPUTATIONS = new HashMap<>(); // comp mnemonic -> a + c1..c6 bits
+
+    static {
+        String[][] table = { // the a=0 forms; the a=1 forms read M instead of A
+                {"0", "101010"}, {"1", "111111"}, {"-1", "111010"}, {"D", "001100"}, {"A", "110000"},
+                {"!D", "001101"}, {"!A", "110001"}, {"-D", "001111"}, {"-A", "110011"}, {"D+1", "011111"},
+                {"A+1", "110111"}, {"D-1", "001110"}, {"A-1", "110010"}, {"D+A", "000010"}, {"D-A", "010011"},
+                {"A-D", "000111"}, {"D&A", "000000"}, {"D|A", "010101"},
+                {"A+D", "000010"}, {"A&D", "000000"}, {"A|D", "010101"}, {"1+D", "011111"}, {"1+A", "110111"}};
+        for (String[] entry : table) {
+            int bits = Integer.parseInt(entry[1], 2);
+            COMPUTATIONS.put(entry[0], bits);
+            if (entry[0].indexOf('A') >= 0) COMPUTATIONS.put(entry[0].replace('A', 'M'), bits | 0x40);
+        }
+    }
+
+    private final int[] rom; // assembled instructions
+    private final short[] ram = new short[RAM_SIZE];
+    private long cycles = 0; // instructions executed
+    private boolean halted = false; // true if the run ended in a halt loop or by leaving the ROM
+
+    /**
+     * Assemble a Hack assembly program
+     * @param lines the lines of the .asm file
+     */
+    public HackEmulator(List<String> lines) {
+        Map<String, Integer> symbols = new HashMap<>();
+        String[] pointers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int i = 0; i < pointers.length; i++) symbols.put(pointers[i], i);
+        for (int i = 0; i < 16; i++) symbols.put("R" + i, i);
+        symbols.put("SCREEN", 16384);
+        symbols.put("KBD", 24576);
+
+        // first pass: strip comments and white space, and record the address of every label
+        List<String> instructions = new ArrayList<>();
+        for (String line : lines) {
+            int comment = line.indexOf("//");
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.replaceAll("\\s", "");
+            if (line.isEmpty()) continue;
+            if (line.startsWith("(")) {
+                String label = line.substring(1, line.length() - 1);
+                if (symbols.put(label, instructions.size()) != null) {
+                    throw new IllegalArgumentException("Duplicate label: " + label);
+                }
+            } else {
+                instructions.add(line);
+            }
+        }
+
+        // second pass: encode the instructions, allocating variables as they are first used
+        rom = new int[instructions.size()];
+        int nextVariable = FIRST_VARIABLE;
+        for (int i = 0; i < rom.length; i++) {
+            String instruction = instructions.get(i);
+            if (instruction.startsWith("@")) {
+                String value = instruction.substring(1);
+                if (Character.isDigit(value.charAt(0))) {
+                    rom[i] = Integer.parseInt(value);
+                } else {
+                    Integer address = symbols.get(value);
+                    if (address == null) {
+                        address = nextVariable++;
+                        symbols.put(value, address);
+                    }
+                    rom[i] = address;
+                }
+            } else {
+                rom[i] = encode(instruction);
+            }
+        }
+    }
+
+    /**
+     * Encode a C-instruction (dest=comp;jump)
+     */
+    private static int encode(String instruction) {
+        String dest = "";
+        String comp = instruction;
+        String jump = "";
+        int equals = comp.indexOf('=');
+        if (equals >= 0) {
+            dest = comp.substring(0, equals);
+            comp = comp.substring(equals + 1);
+        }
+        int semicolon = comp.indexOf(';');
+        if (semicolon >= 0) {
+            jump = comp.substring(semicolon + 1);
+            comp = comp.substring(0, semicolon);
+        }
+        Integer computation = COMPUTATIONS.get(comp);
+        int jumpBits = Arrays.asList(JUMPS).indexOf(jump);
+        if (computation == null || jumpBits < 0) {
+            throw new IllegalArgumentException("Invalid instruction: " + instruction);
+        }
+        int destBits = (dest.indexOf('A') >= 0 ? 4 : 0) | (dest.indexOf('D') >= 0 ? 2 : 0) | (dest.indexOf('M') >= 0 ? 1 : 0);
+        return 0xE000 | (computation << 6) | (destBits << 3) | jumpBits;
+    }
+
+    /**
+     * Run the program from address 0
+     * @param maxCycles the most instructions to execute
+     */
+    void run(long maxCycles) {
+        int pc = 0;
+        int a = 0;
+        int d = 0;
+        while (cycles < maxCycles && pc < rom.length) {
+            int instruction = rom[pc];
+            cycles++;
+            if ((instruction & 0x8000) == 0) { // A-instruction
+                a = instruction;
+                pc++;
+                continue;
+            }
+            int x = d;
+            int y = ((instruction & 0x1000) != 0) ? ram[a & 0x7fff] : (short) a;
+            int c = (instruction >> 6) & 0x3f;
+            if ((c & 0x20) != 0) x = 0; // zx
+            if ((c & 0x10) != 0) x = ~x; // nx
+            if ((c & 0x08) != 0) y = 0; // zy
+            if ((c & 0x04) != 0) y = ~y; // ny
+            int out = ((c & 0x02) != 0) ? x + y : x & y; // f
+            if ((c & 0x01) != 0) out = ~out; // no
+            out = (short) out;
+            int address = a;
+            if ((instruction & 0x08) != 0) ram[address & 0x7fff] = (short) out; // M
+            if ((instruction & 0x20) != 0) a = out & 0xffff; // A
+            if ((instruction & 0x10) != 0) d = out; // D
+            int jump = instruction & 0x07;
+            if ((out < 0 && (jump & 4) != 0) || (out == 0 && (jump & 2) != 0) || (out > 0 && (jump & 1) != 0)) {
+                int target = a & 0x7fff;
+                if (target == pc - 1 && rom[target] == target) { // @LOOP 0;JMP at (LOOP): the program has ended
+                    halted = true;
+                    return;
+                }
+                pc = target;
+            } else {
+                pc++;
+            }
+        }
+        halted = pc >= rom.length;
+    }
+
+    /**
+     * Get the number of instructions in the ROM
+     * @return int the program size
+     */
+    int romSize() {
+        return rom.length;
+    }
+
+    /**
+     * Get the number of instructions executed
+     * @return long the cycles taken
+     */
+    long cycles() {
+        return cycles;
+    }
+
+    /**
+     * Did the program end on its own?
+     * @return boolean true if it halted rather than running out of cycles
+     */
+    boolean halted() {
+        return halted;
+    }
+
+    /**
+     * Read a RAM word
+     * @param address the address
+     * @return int the value
+     */
+    int peek(int address) {
+        return ram[address];
+    }
+
+    /**
+     * Write a RAM word
+     * @param address the address
+     * @param value the value
+     */
+    void poke(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * Find the first address where two finished runs disagree
+     * Only SP, LCL, ARG, THIS, THAT, temp, statics, the live stack, and the heap and I/O are
+     * compared: R13-R15 are scratch registers, and the return addresses saved in call frames
+     * differ whenever the ROM layout does.
+     * @param other the other run
+     * @return int the first differing address, or -1 if the runs agree
+     */
+    int firstDifference(HackEmulator other) {
+        for (int address = 0; address < RAM_SIZE; address++) {
+            if (address >= 13 && address <= 15) continue; // scratch registers
+            if (address >= 256 && address < 2048 && (address >= ram[0] || isReturnAddress(address))) continue;
+            if (ram[address] != other.ram[address]) return address;
+        }
+        return -1;
+    }
+
+    /**
+     * Is the stack word at the given address the saved return address of a call frame?
+     */
+    private boolean isReturnAddress(int address) {
+        for (int lcl = ram[1]; lcl - 5 >= 256 && lcl <= ram[0]; lcl = ram[lcl - 4]) { // walk the saved LCLs
+            if (address == lcl - 5) return true;
+            if (ram[lcl - 4] >= lcl) break; // not a frame; stop rather than loop
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long maxCycles = DEFAULT_CYCLES;
+        Map<Integer, Integer> settings = new LinkedHashMap<>(); // RAM set before each run
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if (args[i].contains("=")) {
+                String[] setting = args[i].split("=", 2);
+                settings.put(Integer.parseInt(setting[0]), Integer.parseInt(setting[1]));
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("Usage: java HackEmulator [--cycles <n>] [address=value ...] file.asm [file.asm ...]");
+            return;
+        }
+
+        HackEmulator first = null;
+        for (String file : files) {
+            HackEmulator emulator = new HackEmulator(Files.readAllLines(Paths.get(file)));
+            for (Map.Entry<Integer, Integer> setting : settings.entrySet()) emulator.poke(setting.getKey(), setting.getValue());
+            emulator.run(maxCycles);
+            System.out.printf("%s: ROM %d instructions, %d cycles%s%n", file, emulator.romSize(), emulator.cycles(),
+                    emulator.halted() ? "" : " (cycle limit reached)");
+            if (first == null) {
+                first = emulator;
+            } else {
+                int difference = first.firstDifference(emulator);
+                if (difference < 0) System.out.println("  RAM matches " + files.get(0));
+                else System.out.println("  RAM differs from " + files.get(0) + " at address " + difference);
+            }
+        }
+    }
+}
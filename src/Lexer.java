@@ -0,0 +1,267 @@
+/**
+ * Lexer.java
+ * Byte-level lexer for Hack VM source text. Scans raw ASCII bytes once, skipping
+ * whitespace and // comments in place, and records the offsets of the tokens on
+ * each command line. No String is allocated per line; callers read the tokens
+ * straight out of the buffer. Bytes of 0x80 and above (anything but ASCII) are allowed
+ * only in comments, and after a UTF-8 byte order mark at the start of the input.
+ * The bytes come either from an InputStream read into a reusable heap buffer, or
+ * from a file mapped into memory with FileChannel.map, which is lexed in place.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version (replaces the regex line cleanup in Parser)
+ * 2026-10-18: Lex memory-mapped files directly from the MappedByteBuffer
+ * 2026-10-18: Added ready() so a stream translation can flush before it blocks on input
+ * 2026-10-18: tokenInt() rejects numbers that do not fit in an int, as Integer.parseInt did
+ * 2026-10-18: Reject non-ASCII bytes outside comments instead of taking them for whitespace
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class Lexer {
+    public static final int MAX_TOKENS = 3; // a VM command has at most three tokens (e.g. push local 2)
+    private static final int BUFFER_SIZE = 64 * 1024; // initial size of the stream read buffer
+    private static final int MAP_WINDOW = 1 << 30; // largest slice of a file mapped at once
+
+    private final InputStream input; // stream source, or null when the file is mapped
+    private final FileChannel channel; // mapped source, or null when reading a stream
+    private final long fileSize; // size of the mapped file
+    private long windowOffset = 0; // file offset of the first byte of the mapped window
+
+    private ByteBuffer buffer; // heap buffer (stream) or mapped window (file)
+    private int limit = 0; // number of valid bytes in the buffer
+    private int position = 0; // offset of the next unscanned byte
+    private boolean endOfInput = false;
+    private int lineNumber = 0; // 1-based number of the most recently scanned line
+
+    private final int[] tokenStart = new int[MAX_TOKENS]; // buffer offset of the first byte of each token
+    private final int[] tokenEnd = new int[MAX_TOKENS]; // buffer offset one past the last byte of each token
+    private int tokenCount = 0;
+
+    /**
+     * Prepare to lex the given input stream
+     * @param input the stream of VM source bytes
+     */
+    public Lexer(InputStream input) {
+        this.input = input;
+        this.channel = null;
+        this.fileSize = 0;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Prepare to lex the given file by mapping it into memory
+     * @param channel an open channel on the VM source file
+     */
+    public Lexer(FileChannel channel) throws IOException {
+        this.input = null;
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.buffer = ByteBuffer.allocate(0); // the first map() maps the first window
+    }
+
+    /**
+     * Scan forward to the next line that contains a command
+     * Token offsets stay valid until the next call.
+     * @return boolean true if a command line was found, false at end of input
+     */
+    boolean nextLine() throws IOException {
+        while (true) {
+            int end = findLineEnd();
+            if (end < 0) return false; // end of input and nothing left to scan
+            lineNumber++;
+            tokenize(position, end);
+            position = (end < limit) ? end + 1 : end; // skip the '\n' if there is one
+            if (tokenCount > 0) return true; // ignore blank and comment-only lines
+        }
+    }
+
+    /**
+     * Can the next line be scanned without blocking on the input stream?
+     * @return boolean true if a whole line is buffered, more input is available, or the input is a file
+     */
+    boolean ready() throws IOException {
+        if (channel != null || endOfInput) return true;
+        for (int scan = position; scan < limit; scan++) {
+            if (buffer.get(scan) == '\n') return true;
+        }
+        return input.available() > 0;
+    }
+
+    /**
+     * Find the end of the line starting at position, reading more input as needed
+     * @return int offset of the terminating '\n' (or limit at end of input), -1 if no bytes remain
+     */
+    private int findLineEnd() throws IOException {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buffer.get(scan) == '\n') return scan;
+            }
+            if (endOfInput) return (position < limit) ? limit : -1; // last line has no '\n'
+            scan -= position; // the partial line is about to move to the front of the buffer
+            if (channel != null) map();
+            else fill();
+        }
+    }
+
+    /**
+     * Move the unscanned tail of the heap buffer to the front and read more input behind it
+     */
+    private void fill() throws IOException {
+        byte[] bytes = buffer.array();
+        int remaining = limit - position;
+        if (remaining == bytes.length) { // a single line fills the buffer; grow it
+            byte[] larger = new byte[bytes.length * 2];
+            System.arraycopy(bytes, position, larger, 0, remaining);
+            bytes = larger;
+            buffer = ByteBuffer.wrap(bytes);
+        } else {
+            System.arraycopy(bytes, position, bytes, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+        int read = input.read(bytes, limit, bytes.length - limit);
+        if (read < 0) endOfInput = true;
+        else limit += read;
+    }
+
+    /**
+     * Map the next window of the file, starting at the unscanned partial line
+     */
+    private void map() throws IOException {
+        if (limit - position == MAP_WINDOW) {
+            throw new IllegalArgumentException("Line " + (lineNumber + 1) + " is longer than " + MAP_WINDOW + " bytes");
+        }
+        long start = windowOffset + position;
+        long size = Math.min(MAP_WINDOW, fileSize - start);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowOffset = start;
+        position = 0;
+        limit = (int) size;
+        endOfInput = (start + size == fileSize);
+    }
+
+    /**
+     * Record the tokens between start and end, stopping at a // comment
+     * @param start offset of the first byte of the line
+     * @param end offset one past the last byte of the line
+     */
+    private void tokenize(int start, int end) {
+        tokenCount = 0;
+        int i = start;
+        if (lineNumber == 1 && windowOffset == 0 && start == 0 && end >= 3 && (buffer.get(0) & 0xff) == 0xef
+                && (buffer.get(1) & 0xff) == 0xbb && (buffer.get(2) & 0xff) == 0xbf) {
+            i = 3; // UTF-8 byte order mark, as some editors write it
+        }
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b < 0) throw invalidByte(b); // bytes compare signed: 0x80 and above are negative
+            if (b <= ' ') { i++; continue; } // skip whitespace (spaces, tabs, '\r')
+            if (b == '/' && i + 1 < end && buffer.get(i + 1) == '/') break; // rest of the line is a comment
+            if (tokenCount == MAX_TOKENS) {
+                throw new IllegalArgumentException("Too many tokens on line " + lineNumber);
+            }
+            tokenStart[tokenCount] = i;
+            while (i < end && (b = buffer.get(i)) > ' ') {
+                if (b == '/' && i + 1 < end && buffer.get(i + 1) == '/') break; // comment touching a token
+                i++;
+            }
+            if (i < end && b < 0) throw invalidByte(b); // e.g. an accented letter inside a label
+            tokenEnd[tokenCount++] = i;
+        }
+    }
+
+    /**
+     * Make the exception for a byte that is not ASCII, outside a comment
+     */
+    private IllegalArgumentException invalidByte(byte b) {
+        return new IllegalArgumentException(String.format("Invalid character 0x%02x on line %d; only ASCII is allowed outside comments", b & 0xff, lineNumber));
+    }
+
+    /**
+     * Get the number of tokens on the current line
+     * @return int the token count (1 to MAX_TOKENS)
+     */
+    int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Does the given token match the given ASCII text exactly?
+     * @param token the token index
+     * @param text the text to compare against
+     * @return boolean true if the bytes are identical
+     */
+    boolean tokenEquals(int token, byte[] text) {
+        int start = tokenStart[token];
+        int length = tokenEnd[token] - start;
+        if (length != text.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != text[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the given token as a non-negative decimal integer
+     * Numbers past Integer.MAX_VALUE are rejected rather than wrapped; smaller out-of-range
+     * values (e.g. push constant 40000) are left for the CodeWriter to report.
+     * @param token the token index
+     * @return int the value of the token
+     */
+    int tokenInt(int token) {
+        int value = 0;
+        for (int i = tokenStart[token]; i < tokenEnd[token]; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number on line " + lineNumber + ": " + tokenString(token));
+            }
+            if (value > (Integer.MAX_VALUE - digit) / 10) { // value * 10 + digit would overflow
+                throw new NumberFormatException("Invalid number on line " + lineNumber + ": " + tokenString(token));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Intern the given token in the symbol table
+     * @param token the token index
+     * @param symbols the symbol table
+     * @return int the symbol id of the token
+     */
+    int tokenSymbol(int token, SymbolTable symbols) {
+        return symbols.intern(buffer, tokenStart[token], tokenEnd[token]);
+    }
+
+    /**
+     * Copy the given token out of the buffer
+     * @param token the token index
+     * @return String the token text
+     */
+    String tokenString(int token) {
+        byte[] bytes = new byte[tokenEnd[token] - tokenStart[token]];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(tokenStart[token] + i);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the number of the most recently scanned line
+     * @return int the 1-based line number
+     */
+    int lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Close the underlying stream or file
+     */
+    void close() throws IOException {
+        if (input != null) input.close();
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Opcode.java
+ * The VM commands, decoded once per line by Parser.advance()
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public enum Opcode {
+    ADD("add", Parser.C_ARITHMETIC),
+    SUB("sub", Parser.C_ARITHMETIC),
+    NEG("neg", Parser.C_ARITHMETIC),
+    EQ("eq", Parser.C_ARITHMETIC),
+    GT("gt", Parser.C_ARITHMETIC),
+    LT("lt", Parser.C_ARITHMETIC),
+    AND("and", Parser.C_ARITHMETIC),
+    OR("or", Parser.C_ARITHMETIC),
+    NOT("not", Parser.C_ARITHMETIC),
+    PUSH("push", Parser.C_PUSH),
+    POP("pop", Parser.C_POP),
+    LABEL("label", Parser.C_LABEL),
+    GOTO("goto", Parser.C_GOTO),
+    IF_GOTO("if-goto", Parser.C_IF),
+    FUNCTION("function", Parser.C_FUNCTION),
+    RETURN("return", Parser.C_RETURN),
+    CALL("call", Parser.C_CALL);
+
+    private static final Opcode[] VALUES = values(); // cached; values() copies the array on every call
+
+    private final String keyword; // the command as written in VM source
+    private final byte[] bytes; // the keyword as ASCII bytes for matching lexer tokens
+    private final int commandType; // the Parser.C_* command type
+
+    Opcode(String keyword, int commandType) {
+        this.keyword = keyword;
+        this.bytes = keyword.getBytes(StandardCharsets.US_ASCII);
+        this.commandType = commandType;
+    }
+
+    /**
+     * Get the command as written in VM source
+     * @return String the keyword (e.g. if-goto)
+     */
+    public String keyword() {
+        return keyword;
+    }
+
+    /**
+     * Get the Parser.C_* command type of this opcode
+     * @return int the command type
+     */
+    public int commandType() {
+        return commandType;
+    }
+
+    /**
+     * Get the number of arguments that follow the keyword
+     * @return int 0, 1, or 2
+     */
+    public int argumentCount() {
+        switch (commandType) {
+            case Parser.C_ARITHMETIC:
+            case Parser.C_RETURN:
+                return 0;
+            case Parser.C_LABEL:
+            case Parser.C_GOTO:
+            case Parser.C_IF:
+                return 1;
+            default:
+                return 2; // push, pop, function, call
+        }
+    }
+
+    /**
+     * Look up the opcode for the given lexer token
+     * @param lexer the lexer positioned on a command line
+     * @param token the token index
+     * @return Opcode the matching opcode, or null if the token is not a command
+     */
+    static Opcode decode(Lexer lexer, int token) {
+        for (Opcode opcode : VALUES) {
+            if (lexer.tokenEquals(token, opcode.bytes)) return opcode;
+        }
+        return null;
+    }
+}
@@ -3,16 +3,27 @@
  * by Charles Stevenson (brucesdad13@gmail.com)
  * Revision History:
  * 2024-05-24: Initial version
+ * 2026-10-18: Lex raw bytes with Lexer instead of regex cleanup of each line
+ * 2026-10-18: Decode each command once in advance(); accessors are plain field reads
+ * 2026-10-18: Memory-map input files at or above a configurable size threshold
+ * 2026-10-18: Added a constructor for an input stream (e.g. standard input) and ready()
+ * 2026-10-18: Take the memory-mapping threshold as a constructor argument instead of a static setting
  */
 
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.io.*;
 
 public class Parser {
-    private BufferedReader reader = null;
-    private String line = null;
+    private Lexer lexer = null;
+    private final SymbolTable symbols; // interns function and label names
+
+    // the current command, decoded once by advance()
+    private Opcode opcode = null; // the command
+    private Segment segment = null; // the segment of a push or pop command, otherwise null
+    private int symbol = -1; // the symbol id of a label, goto, if-goto, function, or call name, otherwise -1
+    private int argument = 0; // the index, local count, or argument count of the command
 
-    private String currentCommand = null;
     public static final int C_ARITHMETIC = 0; // arithmetic command
     public static final int C_PUSH = 1; // push command
     public static final int C_POP = 2; // pop command
@@ -23,11 +34,35 @@ public class Parser {
     public static final int C_RETURN = 7; // return command
     public static final int C_CALL = 8; // call command
 
+    public static final long DEFAULT_MAP_THRESHOLD = 16L * 1024 * 1024; // files this size or larger are memory-mapped
+
     /**
      * Open the input file and get ready to parse it
      * @param filename the name of the file to open
      */
     public Parser(String filename) {
+        this(filename, new SymbolTable());
+    }
+
+    /**
+     * Open the input file and get ready to parse it
+     * @param filename the name of the file to open
+     * @param symbols the symbol table shared by every file being translated
+     */
+    public Parser(String filename, SymbolTable symbols) {
+        this(filename, symbols, DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * Open the input file and get ready to parse it, memory-mapping it if it is large enough
+     * @param filename the name of the file to open
+     * @param symbols the symbol table shared by every file being translated
+     * @param mapThreshold the file size in bytes at which the file is memory-mapped instead of streamed
+     *                     (0 maps every file, Long.MAX_VALUE maps none)
+     */
+    public Parser(String filename, SymbolTable symbols, long mapThreshold) {
+        if (mapThreshold < 0) throw new IllegalArgumentException("Invalid map threshold: " + mapThreshold);
+        this.symbols = symbols;
         // Ensure the input file exists and is writable
         Path file = Paths.get(filename);
         InputStream input;
@@ -35,8 +70,12 @@ public class Parser {
         try
         {
             file.getFileSystem().provider().checkAccess(file, AccessMode.READ); // check access
-            input = Files.newInputStream(file);
-            this.reader = new BufferedReader(new InputStreamReader(input));
+            if (Files.size(file) >= mapThreshold) { // large file: lex it in place from a memory mapping
+                this.lexer = new Lexer(FileChannel.open(file, StandardOpenOption.READ));
+            } else {
+                input = Files.newInputStream(file);
+                this.lexer = new Lexer(input);
+            }
         }
         catch (IOException e)
         {
@@ -44,6 +83,16 @@ public class Parser {
         }
     }
 
+    /**
+     * Get ready to parse VM code from a stream, e.g. standard input
+     * @param input the stream of VM source text
+     * @param symbols the symbol table shared by every file being translated
+     */
+    public Parser(InputStream input, SymbolTable symbols) {
+        this.symbols = symbols;
+        this.lexer = new Lexer(input);
+    }
+
     /**
      * Check the file for additional commands
      * @return boolean true if there are more commands, false if not
@@ -51,18 +100,7 @@ public class Parser {
     boolean hasMoreCommands() {
         try
         {
-            while ((line = reader.readLine()) != null) // while not end of file
-            {
-                // remove comments
-                line = line.replaceAll("//.*", "");
-
-                // remove leading and trailing whitespace
-                line = line.replaceAll("^\\s+|\\s+$", "");
-
-                if (line.isEmpty()) continue; // ignore empty lines
-
-                return true;
-            }
+            return lexer.nextLine(); // skips comments, whitespace, and empty lines
         }
         catch (IOException e)
         {
@@ -72,12 +110,57 @@ public class Parser {
     }
 
     /**
-     * Advance to the next command in the file by setting
-     * the currentCommand to the most recent command line
-     * processed by hasMoreCommands()
+     * Check whether hasMoreCommands() can answer without waiting for more input
+     * @return boolean true if the next command is already buffered or the input has more bytes ready
+     */
+    boolean ready() {
+        try
+        {
+            return lexer.ready();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Hack VM Translator Input File I/O Exception: " + e);
+        }
+        return true; // hasMoreCommands() will report the failure
+    }
+
+    /**
+     * Advance to the next command in the file by decoding
+     * the line most recently scanned by hasMoreCommands()
+     * into the opcode, segment, symbol, and argument fields
      */
     void advance() {
-        currentCommand = line; // line already has the next command
+        opcode = Opcode.decode(lexer, 0);
+        if (opcode == null)
+            throw new IllegalArgumentException("Invalid command on line " + lexer.lineNumber() + ": " + lexer.tokenString(0));
+        if (lexer.tokenCount() != opcode.argumentCount() + 1)
+            throw new IllegalArgumentException("Wrong number of arguments for " + opcode.keyword() + " on line " + lexer.lineNumber());
+
+        segment = null;
+        symbol = -1;
+        argument = 0;
+        switch (opcode.commandType()) {
+            case C_PUSH:
+            case C_POP:
+                segment = Segment.decode(lexer, 1);
+                if (segment == null)
+                    throw new IllegalArgumentException("Invalid segment on line " + lexer.lineNumber() + ": " + lexer.tokenString(1));
+                argument = lexer.tokenInt(2);
+                break;
+            case C_FUNCTION:
+            case C_CALL:
+                symbol = lexer.tokenSymbol(1, symbols);
+                argument = lexer.tokenInt(2);
+                break;
+            case C_LABEL:
+            case C_GOTO:
+            case C_IF:
+                symbol = lexer.tokenSymbol(1, symbols);
+                break;
+            default: // arithmetic and return commands have no arguments
+                break;
+        }
     }
 
     /**
@@ -85,24 +168,39 @@ public class Parser {
      * @return int the type of command
      */
     int commandType() {
-        if (currentCommand.contains("push"))
-            return C_PUSH;
-        else if (currentCommand.contains("pop"))
-            return C_POP;
-        else if (currentCommand.contains("label"))
-            return C_LABEL;
-        else if (currentCommand.contains("if-goto")) // process if-goto before goto
-            return C_IF;
-        else if (currentCommand.contains("goto"))
-            return C_GOTO;
-        else if (currentCommand.contains("function"))
-            return C_FUNCTION;
-        else if (currentCommand.contains("return"))
-            return C_RETURN;
-        else if (currentCommand.contains("call"))
-            return C_CALL;
-        else
-            return C_ARITHMETIC; // add, sub, neg, eq, gt, lt, and, or, not
+        return opcode.commandType();
+    }
+
+    /**
+     * Get the decoded command
+     * @return Opcode the current command
+     */
+    Opcode opcode() {
+        return opcode;
+    }
+
+    /**
+     * Get the segment of the current push or pop command
+     * @return Segment the segment, or null for other commands
+     */
+    Segment segment() {
+        return segment;
+    }
+
+    /**
+     * Get the interned name of the current label, goto, if-goto, function, or call command
+     * @return int the symbol id, or -1 for other commands
+     */
+    int symbol() {
+        return symbol;
+    }
+
+    /**
+     * Get the symbol table the names of this file are interned in
+     * @return SymbolTable the symbol table
+     */
+    SymbolTable symbols() {
+        return symbols;
     }
 
     /**
@@ -111,12 +209,17 @@ public class Parser {
      */
     public String arg1() {
         // Should not be called if the command is C_RETURN
-        if (commandType() == C_RETURN)
-            throw new IllegalArgumentException("Command is a return command");
-        else if (commandType() == C_ARITHMETIC)
-            return currentCommand;
-        else
-            return currentCommand.split(" ")[1];
+        switch (opcode.commandType()) {
+            case C_RETURN:
+                throw new IllegalArgumentException("Command is a return command");
+            case C_ARITHMETIC:
+                return opcode.keyword();
+            case C_PUSH:
+            case C_POP:
+                return segment.keyword();
+            default:
+                return symbols.name(symbol);
+        }
     }
 
     /**
@@ -125,9 +228,9 @@ public class Parser {
      */
     public int arg2() {
         // Should only be called if the command is C_PUSH, C_POP, C_FUNCTION, or C_CALL
-        if (commandType() != C_PUSH && commandType() != C_POP && commandType() != C_FUNCTION && commandType() != C_CALL)
+        if (opcode.argumentCount() != 2)
             throw new IllegalArgumentException("Command is not a push, pop, function, or call command");
-        return Integer.parseInt(currentCommand.split(" ")[2]); // FIXME: handle arbitrary whitespace
+        return argument;
     }
 
     /**
@@ -136,7 +239,7 @@ public class Parser {
     public void close() {
         try
         {
-            reader.close();
+            lexer.close();
         }
         catch (IOException e)
         {
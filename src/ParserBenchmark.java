@@ -0,0 +1,121 @@
+/**
+ * ParserBenchmark.java
+ * Measures Parser throughput (lines per second) and allocation (bytes per line) against
+ * the original regex line cleanup, so lexer changes can be checked before and after.
+ * Usage: java ParserBenchmark [path-to-vm-file] [iterations]
+ * Without a file, a synthetic corpus of generated VM commands is written to a temp file.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Report the stream and memory-mapped lexer paths separately
+ * 2026-10-18: Pass the map threshold to each Parser rather than setting it globally
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+
+public class ParserBenchmark {
+    private static final int SYNTHETIC_LINES = 1_000_000; // size of the generated corpus
+    private static final int WARMUP_ITERATIONS = 3; // untimed runs to let the JIT settle
+
+    public static void main(String[] args) throws IOException {
+        Path file;
+        if (args.length > 0) {
+            file = Paths.get(args[0]);
+        } else {
+            file = Files.createTempFile("ParserBenchmark", ".vm");
+            file.toFile().deleteOnExit();
+            writeSyntheticCorpus(file, SYNTHETIC_LINES);
+        }
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println("Corpus: " + file + " (" + Files.size(file) + " bytes)");
+        report("regex (before)", file, iterations, true, Long.MAX_VALUE);
+        report("lexer (stream)", file, iterations, false, Long.MAX_VALUE);
+        report("lexer (mapped)", file, iterations, false, 0);
+    }
+
+    /**
+     * Time one parsing strategy and print lines per second and bytes allocated per line
+     * @param name the label to print
+     * @param file the VM file to parse
+     * @param iterations the number of timed runs
+     * @param regex true to run the original regex cleanup, false to run Parser
+     * @param mapThreshold the Parser's memory-mapping threshold: 0 to map the file, Long.MAX_VALUE to stream it
+     */
+    private static void report(String name, Path file, int iterations, boolean regex, long mapThreshold) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) run(file, regex, mapThreshold);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long lines = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) lines += run(file, regex, mapThreshold);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("%-16s %,14.0f lines/s %10.1f bytes/line%n",
+                name, lines / (elapsed / 1e9), (double) allocated / lines);
+    }
+
+    /**
+     * Parse the whole file once, touching the command type and numeric argument of each command
+     * @param file the VM file to parse
+     * @param regex true to run the original regex cleanup, false to run Parser
+     * @param mapThreshold the Parser's memory-mapping threshold
+     * @return long the number of commands parsed
+     */
+    private static long run(Path file, boolean regex, long mapThreshold) throws IOException {
+        long commands = 0;
+        long checksum = 0; // consumed below so the JIT cannot discard the work
+        if (regex) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.replaceAll("//.*", "");
+                    line = line.replaceAll("^\\s+|\\s+$", "");
+                    if (line.isEmpty()) continue;
+                    if (line.contains("push") || line.contains("pop")) checksum += Integer.parseInt(line.split(" ")[2]);
+                    commands++;
+                }
+            }
+        } else {
+            Parser parser = new Parser(file.toString(), new SymbolTable(), mapThreshold);
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                int type = parser.commandType();
+                if (type == Parser.C_PUSH || type == Parser.C_POP) checksum += parser.arg2();
+                commands++;
+            }
+            parser.close();
+        }
+        if (checksum == Long.MIN_VALUE) System.out.println(checksum);
+        return commands;
+    }
+
+    /**
+     * Write a corpus that resembles Jack compiler output, with comments and indentation
+     * @param file the file to write
+     * @param lines the number of lines to write
+     */
+    private static void writeSyntheticCorpus(Path file, int lines) throws IOException {
+        String[] segments = {"local", "argument", "this", "that", "static", "temp", "constant"};
+        String[] arithmetic = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < lines; i++) {
+                switch (i % 8) {
+                    case 0: writer.write("// generated line " + i + "\n"); break;
+                    case 1: writer.write("push " + segments[i % segments.length] + " " + (i % 7) + "\n"); break;
+                    case 2: writer.write("    push constant " + (i % 32768) + "   // operand\n"); break;
+                    case 3: writer.write(arithmetic[i % arithmetic.length] + "\n"); break;
+                    case 4: writer.write("pop " + segments[i % (segments.length - 1)] + " " + (i % 5) + "\n"); break;
+                    case 5: writer.write("label LOOP_" + i + "\n"); break;
+                    case 6: writer.write("if-goto LOOP_" + (i - 1) + "\n"); break;
+                    default: writer.write("\n"); break;
+                }
+            }
+        }
+    }
+}
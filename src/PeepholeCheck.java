@@ -0,0 +1,214 @@
+/**
+ * PeepholeCheck.java
+ * Checks that PeepholeOptimizer never changes what a program does: each program is translated
+ * with and without --peephole, under several combinations of the other code generation options,
+ * and both translations are run on HackEmulator, which must end with the same RAM. The ROM size
+ * of each pair is printed as well, so the savings of the rules can be compared.
+ * Usage: java PeepholeCheck [directory ...]
+ * Each directory is translated as a program that starts at Sys.init and must end in a halt loop.
+ * Without a directory, a built-in sample program (recursion, a loop over the heap through
+ * pointer 1, the this segment, statics, temp, and every arithmetic and comparison command) is
+ * checked. The exit status is 1 if any pair of runs differs or does not halt.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+public class PeepholeCheck {
+    private static final long MAX_CYCLES = 10_000_000; // a run that takes longer has not halted
+
+    private static final String SAMPLE_SYS =
+            "function Sys.init 0\n" +
+            "push constant 10\n" +
+            "call Main.fibonacci 1\n" +
+            "pop static 0\n" +
+            "push constant 3000\n" +
+            "call Main.fill 1\n" +
+            "pop temp 0\n" +
+            "call Main.arith 0\n" +
+            "pop static 1\n" +
+            "label END\n" +
+            "goto END\n";
+    private static final String SAMPLE_MAIN =
+            "// fibonacci(n), recursively\n" +
+            "function Main.fibonacci 0\n" +
+            "push argument 0\n" +
+            "push constant 2\n" +
+            "lt\n" +
+            "if-goto BASE\n" +
+            "push argument 0\n" +
+            "push constant 1\n" +
+            "sub\n" +
+            "call Main.fibonacci 1\n" +
+            "push argument 0\n" +
+            "push constant 2\n" +
+            "sub\n" +
+            "call Main.fibonacci 1\n" +
+            "add\n" +
+            "return\n" +
+            "label BASE\n" +
+            "push argument 0\n" +
+            "return\n" +
+            "// fill(base): base[i] = 3i - 1 for i < 10; returns minus their sum, also kept in static 2 and this 3\n" +
+            "function Main.fill 2\n" +
+            "push constant 0\n" +
+            "pop local 0\n" +
+            "label LOOP\n" +
+            "push local 0\n" +
+            "push constant 10\n" +
+            "eq\n" +
+            "if-goto DONE\n" +
+            "push argument 0\n" +
+            "push local 0\n" +
+            "add\n" +
+            "pop pointer 1\n" +
+            "push local 0\n" +
+            "push local 0\n" +
+            "add\n" +
+            "push local 0\n" +
+            "add\n" +
+            "push constant 1\n" +
+            "sub\n" +
+            "pop that 0\n" +
+            "push local 1\n" +
+            "push that 0\n" +
+            "add\n" +
+            "pop local 1\n" +
+            "push local 0\n" +
+            "push constant 1\n" +
+            "add\n" +
+            "pop local 0\n" +
+            "goto LOOP\n" +
+            "label DONE\n" +
+            "push local 1\n" +
+            "pop static 2\n" +
+            "push argument 0\n" +
+            "pop pointer 0\n" +
+            "push local 1\n" +
+            "pop this 3\n" +
+            "push this 3\n" +
+            "neg\n" +
+            "return\n" +
+            "// arith(): the logical and comparison commands on constants and temp\n" +
+            "function Main.arith 0\n" +
+            "push constant 7\n" +
+            "push constant 9\n" +
+            "gt\n" +
+            "push constant 5\n" +
+            "push constant 5\n" +
+            "eq\n" +
+            "and\n" +
+            "push constant 3\n" +
+            "push constant 4\n" +
+            "lt\n" +
+            "or\n" +
+            "not\n" +
+            "pop temp 3\n" +
+            "push constant 12345\n" +
+            "push constant 255\n" +
+            "and\n" +
+            "push constant 4096\n" +
+            "or\n" +
+            "pop temp 4\n" +
+            "push temp 4\n" +
+            "push temp 3\n" +
+            "sub\n" +
+            "neg\n" +
+            "return\n";
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Map<String, byte[]>> programs = new LinkedHashMap<>(); // program name -> file name -> source
+        if (args.length == 0) {
+            Map<String, byte[]> sample = new LinkedHashMap<>();
+            sample.put("Sys", SAMPLE_SYS.getBytes(StandardCharsets.US_ASCII));
+            sample.put("Main", SAMPLE_MAIN.getBytes(StandardCharsets.US_ASCII));
+            programs.put("Sample", sample);
+        }
+        for (String directory : args) {
+            File[] files = new File(directory).listFiles();
+            if (files == null) throw new IllegalArgumentException("Not a directory: " + directory);
+            Arrays.sort(files);
+            Map<String, byte[]> sources = new LinkedHashMap<>();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.toLowerCase().endsWith(".vm")) sources.put(name.substring(0, name.length() - 3), Files.readAllBytes(file.toPath()));
+            }
+            if (sources.isEmpty()) throw new IllegalArgumentException("No .vm files found in directory: " + directory);
+            programs.put(new File(directory).getName(), sources);
+        }
+
+        // the option sets each program is translated with, with and without the peephole rules
+        Map<String, UnaryOperator<CodeWriterOptions.Builder>> optionSets = new LinkedHashMap<>();
+        optionSets.put("(default)", builder -> builder);
+        optionSets.put("--short-templates", builder -> builder.shortTemplates(true));
+        optionSets.put("--shared-calls --shared-compares", builder -> builder.sharedCalls(true).sharedCompares(true));
+        optionSets.put("--fuse-push-pop --fuse-branches --fold-constants", builder -> builder.fusePushPop(true).fuseBranches(true).foldConstants(true));
+        optionSets.put("--top-in-d", builder -> builder.topInD(true));
+        optionSets.put("--virtual-sp", builder -> builder.virtualSP(true));
+        optionSets.put("--ssa", builder -> builder.ssa(true));
+
+        int failures = 0;
+        for (Map.Entry<String, Map<String, byte[]>> program : programs.entrySet()) {
+            System.out.println(program.getKey() + ":");
+            for (Map.Entry<String, UnaryOperator<CodeWriterOptions.Builder>> optionSet : optionSets.entrySet()) {
+                CodeWriterOptions plain = optionSet.getValue().apply(new CodeWriterOptions.Builder()).build();
+                CodeWriterOptions optimized = optionSet.getValue().apply(new CodeWriterOptions.Builder()).peephole(true).build();
+                HackEmulator before = run(translate(program.getValue(), plain));
+                HackEmulator after = run(translate(program.getValue(), optimized));
+                String result;
+                if (!before.halted() || !after.halted()) {
+                    result = "did not halt within " + MAX_CYCLES + " cycles";
+                } else {
+                    int difference = before.firstDifference(after);
+                    result = (difference < 0) ? "RAM matches" : "RAM differs at address " + difference;
+                }
+                if (!result.equals("RAM matches")) failures++;
+                System.out.printf("  %-50s ROM %6d -> %6d instructions, %s%n", optionSet.getKey(), before.romSize(), after.romSize(), result);
+            }
+        }
+        System.out.println(failures == 0 ? "All runs match" : failures + " runs differ");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Translate the files of a program, with the bootstrap code, as a directory build would
+     * @param sources the VM source of each file, by file name without extension, in directory order
+     * @param options the code generation settings
+     * @return String the assembly
+     */
+    private static String translate(Map<String, byte[]> sources, CodeWriterOptions options) {
+        SymbolTable symbols = new SymbolTable();
+        FunctionTable functionTable = new FunctionTable();
+        List<CommandList> programs = new ArrayList<>();
+        for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+            Parser parser = new Parser(new ByteArrayInputStream(source.getValue()), symbols);
+            CommandList commands = CommandList.parse(parser, source.getKey()); // closes the parser
+            VMTranslator.parseFunctions(commands, symbols, functionTable);
+            programs.add(commands);
+        }
+        functionTable.freeze();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(output, functionTable, symbols, options, new TranslationStatistics());
+        codeWriter.writeInit();
+        for (CommandList commands : programs) VMTranslator.parseInput(commands, symbols, codeWriter);
+        codeWriter.close();
+        return output.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Assemble and run a program until it halts or takes MAX_CYCLES
+     * @param assembly the Hack assembly
+     * @return HackEmulator the finished run
+     */
+    private static HackEmulator run(String assembly) {
+        HackEmulator emulator = new HackEmulator(Arrays.asList(assembly.split("\n")));
+        emulator.run(MAX_CYCLES);
+        return emulator;
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * PeepholeOptimizer.java
+ * Rewrites the generated Hack assembly on its way to the output channel. The fixed
+ * templates of consecutive commands leave redundant instructions at the boundary
+ * between them (a push ends with @SP M=M+1 and a following pop starts with @SP AM=M-1);
+ * a sliding window over the last few instructions is matched against a table of
+ * rules, starting at its oldest instruction, and each match is replaced by a shorter
+ * equivalent sequence; the window then backs up so the replacement can take part in
+ * further matches.
+ * A label ends the window, since control can arrive there from elsewhere; comment
+ * lines are passed through and never block a match. The rules assume, as all the
+ * generated code does, that SP always points into the stack (never at RAM[0]).
+ * The lines are kept as slices of one reusable byte buffer and matched byte by byte, so
+ * nothing is allocated per line; PeepholeCheck runs programs with and without the rules.
+ * Each optimizer counts the hits of every rule and adds them to the
+ * TranslationStatistics of its CodeWriter when it is closed.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Rule hits go to the TranslationStatistics given to the constructor
+ * 2026-10-18: Match on slices of one reusable byte buffer instead of a String per line
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PeepholeOptimizer implements WritableByteChannel {
+    /**
+     * A pattern of instructions and its replacement
+     * In a pattern, @$1 matches any A-instruction (the same one wherever $1 is used again)
+     * and $C matches any C-instruction that leaves A unchanged; the replacement uses the
+     * same placeholders for what they matched.
+     */
+    static final class Rule {
+        final String name; // shown in the hit counts
+        final String[] pattern;
+        final String[] replacement;
+        final byte[][] patternBytes; // the pattern as ASCII; ADDRESS and COMPUTATION stand for the placeholders
+        final byte[][] replacementBytes; // the replacement, likewise
+
+        Rule(String name, String[] pattern, String[] replacement) {
+            this.name = name;
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.patternBytes = encode(pattern);
+            this.replacementBytes = encode(replacement);
+        }
+
+        private static byte[][] encode(String[] instructions) {
+            byte[][] encoded = new byte[instructions.length][];
+            for (int i = 0; i < instructions.length; i++) {
+                if (instructions[i].equals("@$1")) encoded[i] = ADDRESS;
+                else if (instructions[i].equals("$C")) encoded[i] = COMPUTATION;
+                else encoded[i] = instructions[i].getBytes(StandardCharsets.US_ASCII);
+            }
+            return encoded;
+        }
+    }
+
+    private static final byte[] ADDRESS = {}; // stands for @$1; compared by identity
+    private static final byte[] COMPUTATION = {}; // stands for $C; compared by identity
+
+    // The rule table, tried in order; more specific rules come before the general ones they overlap with
+    static final Rule[] RULES = {
+            // push then pop: the increment and decrement of SP cancel; A still has to point at the value
+            new Rule("push-pop",
+                    new String[] {"@SP", "M=M+1", "@SP", "AM=M-1"},
+                    new String[] {"@SP", "A=M"}),
+            // push then push: increment SP and point at the new top in one instruction
+            new Rule("push-push",
+                    new String[] {"@SP", "M=M+1", "@SP", "A=M"},
+                    new String[] {"@SP", "AM=M+1"}),
+            // A already points at the top of the stack; storing there does not move SP
+            new Rule("reload-stack-top",
+                    new String[] {"@SP", "A=M", "M=D", "@SP", "A=M"},
+                    new String[] {"@SP", "A=M", "M=D"}),
+            // A already holds the address being loaded
+            new Rule("reload-address",
+                    new String[] {"@$1", "$C", "@$1"},
+                    new String[] {"@$1", "$C"}),
+            // D was just stored to M
+            new Rule("store-load",
+                    new String[] {"M=D", "D=M"},
+                    new String[] {"M=D"}),
+            // M was just loaded into D
+            new Rule("load-store",
+                    new String[] {"D=M", "M=D"},
+                    new String[] {"D=M"}),
+    };
+    private static final int WINDOW = 5; // instructions in the longest pattern; also the lookbehind after a match
+
+    private final WritableByteChannel output;
+    private final TranslationStatistics statistics; // receives the hits when the optimizer is closed
+    private final long[] hits = new long[RULES.length]; // matches of each rule
+    private byte[] text = new byte[4096]; // the bytes of the pending lines, the current partial line, and replacements
+    private int textSize = 0; // bytes of text in use
+    private int lineBegin = 0; // offset in text of the current partial line
+    // the pending lines, instructions and comments, in order: their raw slices of text (as written out)
+    // and the same slices without surrounding white space (as matched)
+    private int[] rawStart = new int[64];
+    private int[] rawEnd = new int[64];
+    private int[] start = new int[64];
+    private int[] end = new int[64];
+    private int lineCount = 0;
+    private int[] instructions = new int[64]; // indexes into the pending lines of the instructions
+    private int instructionCount = 0;
+    private int anchor = 0; // index into instructions where the rules are tried next
+    private ByteBuffer pending = ByteBuffer.allocate(4096); // lines ready for the output channel
+    private boolean open = true;
+
+    /**
+     * Optimize the assembly written to the given channel
+     * @param output where the optimized assembly is written
+     * @param statistics the collector the rule hits are added to
+     */
+    public PeepholeOptimizer(WritableByteChannel output, TranslationStatistics statistics) {
+        this.output = output;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+            byte b = source.get();
+            if (b == '\n') {
+                accept(lineBegin, textSize);
+                lineBegin = textSize; // after any replacement bytes accept() added
+            } else {
+                if (textSize == text.length) reserve(1);
+                text[textSize++] = b;
+            }
+        }
+        writePending();
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Write out the pending lines and close the output channel
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        if (textSize > lineBegin) { // a last line without a newline gets one
+            accept(lineBegin, textSize);
+            lineBegin = textSize;
+        }
+        drain();
+        writePending();
+        statistics.addPeepholeHits(hits);
+        output.close();
+    }
+
+    /**
+     * Take in the next complete line and apply the rules once enough instructions follow the anchor
+     * @param from offset in text of the first byte of the line
+     * @param to offset one past its last byte
+     */
+    private void accept(int from, int to) {
+        int first = from;
+        int last = to;
+        while (first < last && text[first] <= ' ') first++; // trim, as String.trim() would
+        while (last > first && text[last - 1] <= ' ') last--;
+        if (first < last && text[first] == '(') { // a label: nothing may be matched across it
+            drain();
+            emit(from, to);
+            return;
+        }
+        addLine(lineCount, from, to, first, last);
+        if (first == last || (last - first >= 2 && text[first] == '/' && text[first + 1] == '/')) return; // comments pass through
+        if (instructionCount == instructions.length) instructions = Arrays.copyOf(instructions, 2 * instructionCount);
+        instructions[instructionCount++] = lineCount - 1;
+        while (instructionCount - anchor >= WINDOW) step();
+    }
+
+    /**
+     * Try the rules at the anchor; after a match, look back far enough to catch a pattern the
+     * replacement completes, otherwise move on to the next instruction
+     */
+    private void step() {
+        int at = applyRules(anchor);
+        anchor = (at >= 0) ? Math.max(0, at - (WINDOW - 1)) : anchor + 1;
+        while (anchor > WINDOW - 1) { // too far behind the anchor to be part of a match
+            int first = instructions[0] + 1; // the lines up to and including the oldest instruction
+            for (int i = 0; i < first; i++) emit(rawStart[i], rawEnd[i]);
+            removeLines(0, first);
+            System.arraycopy(instructions, 1, instructions, 0, --instructionCount);
+            for (int i = 0; i < instructionCount; i++) instructions[i] -= first;
+            anchor--;
+        }
+    }
+
+    /**
+     * Replace the first rule whose pattern starts at the given instruction
+     * @param at index into instructions
+     * @return int at if a rule matched, -1 if none did
+     */
+    private int applyRules(int at) {
+        for (int r = 0; r < RULES.length; r++) {
+            Rule rule = RULES[r];
+            int length = rule.patternBytes.length;
+            if (at + length > instructionCount) continue;
+            int address = -1; // the line $1 matched
+            int computation = -1; // the line $C matched
+            boolean matched = true;
+            for (int i = 0; i < length && matched; i++) {
+                int line = instructions[at + i];
+                byte[] expected = rule.patternBytes[i];
+                if (expected == ADDRESS) {
+                    matched = text[start[line]] == '@' && (address < 0 || sameText(address, line));
+                    address = line;
+                } else if (expected == COMPUTATION) {
+                    matched = text[start[line]] != '@' && !writesA(line);
+                    computation = line;
+                } else {
+                    matched = isText(line, expected);
+                }
+            }
+            if (!matched) continue;
+
+            // the replacement is made of the slices that were matched and of the rule's own text
+            int count = rule.replacementBytes.length;
+            int needed = 0;
+            for (byte[] instruction : rule.replacementBytes) needed += instruction.length;
+            reserve(needed); // may move the text of the pending lines, but not their indexes
+            int first = instructions[at];
+            int addressStart = (address < 0) ? 0 : start[address];
+            int addressEnd = (address < 0) ? 0 : end[address];
+            int computationStart = (computation < 0) ? 0 : start[computation];
+            int computationEnd = (computation < 0) ? 0 : end[computation];
+
+            // remove the matched instructions; comments between them stay where they were
+            for (int i = length - 1; i >= 0; i--) removeLines(instructions[at + i], 1);
+            for (int i = 0; i < count; i++) {
+                byte[] instruction = rule.replacementBytes[i];
+                int from;
+                int to;
+                if (instruction == ADDRESS) {
+                    from = addressStart;
+                    to = addressEnd;
+                } else if (instruction == COMPUTATION) {
+                    from = computationStart;
+                    to = computationEnd;
+                } else {
+                    from = textSize;
+                    System.arraycopy(instruction, 0, text, textSize, instruction.length);
+                    textSize += instruction.length;
+                    to = textSize;
+                }
+                addLine(first + i, from, to, from, to);
+            }
+
+            // the replacement takes the place of the matched instructions in the index; the later ones move
+            int shift = count - length;
+            int tail = instructionCount - (at + length);
+            if (instructionCount + shift > instructions.length) instructions = Arrays.copyOf(instructions, 2 * (instructionCount + shift));
+            System.arraycopy(instructions, at + length, instructions, at + count, tail);
+            for (int i = 0; i < count; i++) instructions[at + i] = first + i;
+            instructionCount += shift;
+            for (int i = at + count; i < instructionCount; i++) instructions[i] += shift;
+            hits[r]++;
+            return at;
+        }
+        return -1;
+    }
+
+    /**
+     * Is the instruction on the given line exactly the given text?
+     */
+    private boolean isText(int line, byte[] expected) {
+        if (end[line] - start[line] != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (text[start[line] + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Are the instructions on two lines the same?
+     */
+    private boolean sameText(int line, int other) {
+        int length = end[line] - start[line];
+        if (end[other] - start[other] != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (text[start[line] + i] != text[start[other] + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Does the C-instruction on the given line (dest=comp;jump) store to A, e.g. AM=M-1?
+     */
+    private boolean writesA(int line) {
+        for (int i = start[line]; i < end[line]; i++) {
+            if (text[i] == '=') {
+                for (int j = start[line]; j < i; j++) {
+                    if (text[j] == 'A') return true;
+                }
+                return false;
+            }
+        }
+        return false; // no destination
+    }
+
+    /**
+     * Insert a pending line at the given index
+     */
+    private void addLine(int index, int from, int to, int first, int last) {
+        if (lineCount == start.length) {
+            int capacity = 2 * lineCount;
+            rawStart = Arrays.copyOf(rawStart, capacity);
+            rawEnd = Arrays.copyOf(rawEnd, capacity);
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+        }
+        int moved = lineCount - index;
+        System.arraycopy(rawStart, index, rawStart, index + 1, moved);
+        System.arraycopy(rawEnd, index, rawEnd, index + 1, moved);
+        System.arraycopy(start, index, start, index + 1, moved);
+        System.arraycopy(end, index, end, index + 1, moved);
+        rawStart[index] = from;
+        rawEnd[index] = to;
+        start[index] = first;
+        end[index] = last;
+        lineCount++;
+    }
+
+    /**
+     * Remove count pending lines starting at the given index; their text is reclaimed by reserve()
+     */
+    private void removeLines(int index, int count) {
+        int moved = lineCount - index - count;
+        System.arraycopy(rawStart, index + count, rawStart, index, moved);
+        System.arraycopy(rawEnd, index + count, rawEnd, index, moved);
+        System.arraycopy(start, index + count, start, index, moved);
+        System.arraycopy(end, index + count, end, index, moved);
+        lineCount -= count;
+    }
+
+    /**
+     * Make room for the given number of bytes at the end of text, first by moving the text still in
+     * use (the pending lines and the partial line) to the front, and only then by growing the buffer
+     */
+    private void reserve(int bytes) {
+        if (textSize + bytes <= text.length) return;
+        int live = lineBegin;
+        for (int i = 0; i < lineCount; i++) live = Math.min(live, rawStart[i]);
+        if (live > 0) {
+            System.arraycopy(text, live, text, 0, textSize - live);
+            textSize -= live;
+            lineBegin -= live;
+            for (int i = 0; i < lineCount; i++) {
+                rawStart[i] -= live;
+                rawEnd[i] -= live;
+                start[i] -= live;
+                end[i] -= live;
+            }
+        }
+        if (textSize + bytes > text.length) text = Arrays.copyOf(text, Math.max(2 * text.length, textSize + bytes));
+    }
+
+    /**
+     * Apply the rules to the rest of the window and pass every pending line on
+     */
+    private void drain() {
+        while (anchor < instructionCount) step();
+        for (int i = 0; i < lineCount; i++) emit(rawStart[i], rawEnd[i]);
+        lineCount = 0;
+        instructionCount = 0;
+        anchor = 0;
+    }
+
+    /**
+     * Add a line of text and its newline to the bytes waiting for the output channel
+     */
+    private void emit(int from, int to) {
+        int length = to - from + 1;
+        if (pending.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(text, from, to - from).put((byte) '\n');
+    }
+
+    private void writePending() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        while (pending.hasRemaining()) output.write(pending);
+        pending.clear();
+    }
+}
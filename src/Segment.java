@@ -0,0 +1,51 @@
+/**
+ * Segment.java
+ * The eight VM memory segments, decoded once per push/pop by Parser.advance()
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public enum Segment {
+    ARGUMENT("argument"),
+    LOCAL("local"),
+    STATIC("static"),
+    CONSTANT("constant"),
+    THIS("this"),
+    THAT("that"),
+    POINTER("pointer"),
+    TEMP("temp");
+
+    private static final Segment[] VALUES = values(); // cached; values() copies the array on every call
+
+    private final String keyword; // the segment as written in VM source
+    private final byte[] bytes; // the keyword as ASCII bytes for matching lexer tokens
+
+    Segment(String keyword) {
+        this.keyword = keyword;
+        this.bytes = keyword.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the segment as written in VM source
+     * @return String the keyword (e.g. argument)
+     */
+    public String keyword() {
+        return keyword;
+    }
+
+    /**
+     * Look up the segment for the given lexer token
+     * @param lexer the lexer positioned on a command line
+     * @param token the token index
+     * @return Segment the matching segment, or null if the token is not a segment
+     */
+    static Segment decode(Lexer lexer, int token) {
+        for (Segment segment : VALUES) {
+            if (lexer.tokenEquals(token, segment.bytes)) return segment;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * SsaFunction.java
+ * The register form of one VM function, built for --ssa. Each basic block of its
+ * FlowGraph is interpreted abstractly: instead of words, the operand stack holds the
+ * values that would be there, so push local 0, push constant 1, add names one value,
+ * local 0 + 1, made of the values below it. Every value is defined once (SSA form); the
+ * words on the stack where a block starts are phi nodes, one per stack position, that
+ * take the value the predecessors leave there.
+ * While the values are built they are simplified:
+ *   constant propagation: operations on constants are evaluated (see ConstantFolder), as
+ *     are x + 0, x - 0, x | 0, x & -1, x & 0, x | -1, neg neg x, and not not x; a phi is
+ *     a constant if every predecessor that can run leaves the same constant there
+ *   copy propagation: a push of the location the block last popped (and has not possibly
+ *     overwritten since) is the popped value itself, or the constant it was
+ *   dead value elimination: values that nothing stored, tested, passed, or left on the
+ *     stack uses (e.g. the operands of a folded operation) are marked dead, and never written
+ * SsaLowering turns the values back into Hack instructions. Blocks that cannot be
+ * interpreted (unreachable, or with a stack depth that depends on the path or goes below
+ * the block's entry) are left for CodeWriter; in either form the whole stack is in RAM
+ * wherever a block starts or ends, at calls, and at returns.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Count each function in the translation's TranslationStatistics
+ * 2026-10-18: Evaluate constants by Opcode
+ */
+
+import java.util.*;
+
+public class SsaFunction {
+    /**
+     * One value of the register form
+     */
+    static final class Value {
+        static final int CONST = 0; // a constant
+        static final int LOAD = 1; // the contents of segment[index] where it is pushed
+        static final int PHI = 2; // the word at stack position index where the block starts
+        static final int RESULT = 3; // the return value of a call, at stack position index
+        static final int COPY = 4; // copied, which segment[index] still holds where it is pushed
+        static final int UNARY = 5; // opcode (neg, not) of left
+        static final int BINARY = 6; // opcode (add, sub, and, or, eq, gt, lt) of left and right
+
+        final int kind;
+        final int constant; // CONST: the value, -32768 to 32767
+        final Segment segment; // LOAD, COPY: the location read
+        final int index; // LOAD, COPY: the segment index; PHI, RESULT: the stack position from the block's base
+        final Opcode opcode; // UNARY, BINARY
+        final Value left; // UNARY: the operand; BINARY: x
+        final Value right; // BINARY: y
+        final Value copied; // COPY: the value stored
+        final List<Value> incoming = new ArrayList<>(); // PHI: what each predecessor leaves there
+        boolean live = false; // false for a dead value
+
+        private Value(int kind, int constant, Segment segment, int index, Opcode opcode, Value left, Value right, Value copied) {
+            this.kind = kind;
+            this.constant = constant;
+            this.segment = segment;
+            this.index = index;
+            this.opcode = opcode;
+            this.left = left;
+            this.right = right;
+            this.copied = copied;
+        }
+
+        /**
+         * Get the value this one stands for: the copied value of a COPY, otherwise itself
+         * @return Value the value without copies
+         */
+        Value base() {
+            return (kind == COPY) ? copied : this;
+        }
+
+        boolean isConstant(int value) {
+            return kind == CONST && constant == value;
+        }
+    }
+
+    /**
+     * The register form of one basic block
+     */
+    static final class BlockCode {
+        final FlowGraph.Block block;
+        final List<Value> entry = new ArrayList<>(); // the phi nodes (or their constants), bottom of the stack first
+        final Value[] pushed; // by command index - block.first: the value a push or an arithmetic command leaves on top
+        final List<Value> exit = new ArrayList<>(); // the stack where the block ends (after an if-goto's condition)
+        private final List<Value> roots = new ArrayList<>(); // values that are stored, tested, passed, or left on the stack
+
+        BlockCode(FlowGraph.Block block) {
+            this.block = block;
+            this.pushed = new Value[block.end - block.first];
+        }
+
+        /**
+         * Get the value a push or arithmetic command leaves on the stack
+         * @param command the command index
+         * @return Value the value
+         */
+        Value pushed(int command) {
+            return pushed[command - block.first];
+        }
+    }
+
+    private final FlowGraph graph;
+    private final BlockCode[] code; // by block id; null for a block left for CodeWriter
+    private final Integer[][] phiConstants; // by block id and stack position; null where not a known constant
+    private int values = 0; // values defined by the last round of building
+    private int folded = 0;
+    private int copies = 0;
+
+    /**
+     * Build the register form of every block of a function that can be interpreted
+     * @param graph the function's control-flow graph
+     * @param statistics the collector the counts of the function are added to
+     */
+    SsaFunction(FlowGraph graph, TranslationStatistics statistics) {
+        this.graph = graph;
+        int count = graph.blocks().size();
+        code = new BlockCode[count];
+        phiConstants = new Integer[count][];
+        DataflowAnalysis.Solution<Integer> depths = new FlowGraph.StackDepth().solve(graph);
+        for (FlowGraph.Block block : graph.blocks()) {
+            Integer depth = depths.in(block);
+            boolean known = graph.isReachable(block) && depth != null && !depth.equals(FlowGraph.StackDepth.CONFLICT) && depth >= 0;
+            phiConstants[block.id] = known ? new Integer[depth] : null;
+        }
+
+        // build, then find the phis that are constants, and build again with them until no more are found;
+        // a phi only ever becomes a constant, so the rounds end
+        boolean changed = true;
+        while (changed) {
+            values = 0;
+            folded = 0;
+            copies = 0;
+            for (FlowGraph.Block block : graph.blocks()) {
+                code[block.id] = (phiConstants[block.id] == null) ? null : build(block, phiConstants[block.id]);
+            }
+            changed = resolvePhis();
+        }
+
+        // the phis take the values the predecessors leave; then mark what is used
+        int phis = 0;
+        int constantPhis = 0;
+        for (BlockCode blockCode : code) {
+            if (blockCode == null) continue;
+            for (int position = 0; position < blockCode.entry.size(); position++) {
+                Value phi = blockCode.entry.get(position);
+                phis++;
+                if (phi.kind == Value.CONST) {
+                    constantPhis++;
+                    continue;
+                }
+                for (FlowGraph.Block predecessor : blockCode.block.predecessors) {
+                    BlockCode from = code[predecessor.id];
+                    if (from != null) phi.incoming.add(from.exit.get(position));
+                }
+            }
+        }
+        int dead = values;
+        for (BlockCode blockCode : code) {
+            if (blockCode == null) continue;
+            for (Value root : blockCode.roots) dead -= mark(root);
+        }
+
+        int lowered = 0;
+        for (BlockCode blockCode : code) if (blockCode != null) lowered++;
+        statistics.addRegisterForm(lowered, count - lowered, values, folded, copies, dead, phis, constantPhis);
+    }
+
+    /**
+     * Get the graph the function was built from
+     * @return FlowGraph the graph
+     */
+    FlowGraph graph() {
+        return graph;
+    }
+
+    /**
+     * Get the register form of a block
+     * @param block a block of the graph
+     * @return BlockCode the block's values, or null if it is left for CodeWriter
+     */
+    BlockCode code(FlowGraph.Block block) {
+        return code[block.id];
+    }
+
+    /**
+     * Interpret one block with the given stack depth where it starts
+     * @return BlockCode the block's values, or null if its stack goes below the depth it starts with
+     */
+    private BlockCode build(FlowGraph.Block block, Integer[] constants) {
+        CommandList commands = graph.commands();
+        BlockCode blockCode = new BlockCode(block);
+        List<Value> stack = new ArrayList<>();
+        for (int position = 0; position < constants.length; position++) {
+            Value phi = (constants[position] != null) ? constant(constants[position])
+                    : define(new Value(Value.PHI, 0, null, position, null, null, null, null));
+            blockCode.entry.add(phi);
+            stack.add(phi);
+        }
+        Map<Long, Value> stored = new HashMap<>(); // location -> the value last popped there, while it is sure to hold it
+
+        for (int i = block.first; i < block.end; i++) {
+            Opcode opcode = commands.opcode(i);
+            switch (opcode) {
+                case LABEL: case FUNCTION: // only ever the first command of a block
+                    break;
+                case PUSH: {
+                    Segment segment = commands.segment(i);
+                    int index = commands.operand(i);
+                    Value value;
+                    Value known = stored.get(location(segment, index));
+                    if (segment == Segment.CONSTANT) {
+                        if (index < 0 || index > 32767) throw new IllegalArgumentException("Invalid constant index: " + index);
+                        value = constant(index);
+                    } else if (known != null && known.kind == Value.CONST) { // constant propagation
+                        value = constant(known.constant);
+                        copies++;
+                    } else if (known != null) { // copy propagation
+                        value = define(new Value(Value.COPY, 0, segment, index, null, null, null, known));
+                        copies++;
+                    } else {
+                        value = define(new Value(Value.LOAD, 0, segment, index, null, null, null, null));
+                    }
+                    stack.add(value);
+                    blockCode.pushed[i - block.first] = value;
+                    break;
+                }
+                case POP: {
+                    if (stack.isEmpty()) return null;
+                    Segment segment = commands.segment(i);
+                    int index = commands.operand(i);
+                    if (segment == Segment.CONSTANT) throw new IllegalArgumentException("Cannot pop a constant: " + index);
+                    Value value = stack.remove(stack.size() - 1);
+                    blockCode.roots.add(value);
+                    stored.keySet().removeIf(key -> mayAlias(segment, index, segmentOf(key), indexOf(key)));
+                    stored.put(location(segment, index), value.base());
+                    break;
+                }
+                case NEG: case NOT: {
+                    if (stack.isEmpty()) return null;
+                    Value value = unary(opcode, stack.remove(stack.size() - 1));
+                    stack.add(value);
+                    blockCode.pushed[i - block.first] = value;
+                    break;
+                }
+                case ADD: case SUB: case AND: case OR: case EQ: case GT: case LT: {
+                    if (stack.size() < 2) return null;
+                    Value y = stack.remove(stack.size() - 1);
+                    Value x = stack.remove(stack.size() - 1);
+                    Value value = binary(opcode, x, y);
+                    stack.add(value);
+                    blockCode.pushed[i - block.first] = value;
+                    break;
+                }
+                case CALL: {
+                    int arguments = commands.operand(i);
+                    if (stack.size() < arguments || arguments < 0) return null;
+                    blockCode.roots.addAll(stack); // the whole stack goes to RAM
+                    stack.subList(stack.size() - arguments, stack.size()).clear();
+                    Value result = define(new Value(Value.RESULT, 0, null, stack.size(), null, null, null, null));
+                    stack.add(result);
+                    blockCode.pushed[i - block.first] = result;
+                    stored.clear(); // the callee may write anything
+                    break;
+                }
+                case IF_GOTO:
+                    if (stack.isEmpty()) return null;
+                    blockCode.roots.add(stack.remove(stack.size() - 1)); // the condition
+                    break;
+                default: // goto, return: the end of the block
+                    break;
+            }
+        }
+        blockCode.roots.addAll(stack);
+        blockCode.exit.addAll(stack);
+        return blockCode;
+    }
+
+    /**
+     * Make each phi a constant if every predecessor that can run leaves the same constant in its place
+     * @return boolean true if a phi became a constant
+     */
+    private boolean resolvePhis() {
+        boolean changed = false;
+        for (FlowGraph.Block block : graph.blocks()) {
+            Integer[] constants = phiConstants[block.id];
+            if (code[block.id] == null || constants == null) continue;
+            for (int position = 0; position < constants.length; position++) {
+                if (constants[position] != null) continue;
+                Integer constant = null;
+                boolean known = true;
+                for (FlowGraph.Block predecessor : block.predecessors) {
+                    if (!graph.isReachable(predecessor)) continue; // never runs
+                    BlockCode from = code[predecessor.id];
+                    if (from == null || from.exit.size() != constants.length) {
+                        known = false;
+                        break;
+                    }
+                    Value value = from.exit.get(position);
+                    if (predecessor == block && value == code[block.id].entry.get(position)) continue; // passed around a loop unchanged
+                    if (value.kind != Value.CONST || (constant != null && constant != value.constant)) {
+                        known = false;
+                        break;
+                    }
+                    constant = value.constant;
+                }
+                if (known && constant != null) {
+                    constants[position] = constant;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Mark a value and the values it is made of as used
+     * @return int the number of values newly marked
+     */
+    private static int mark(Value value) {
+        int marked = 0;
+        Deque<Value> work = new ArrayDeque<>();
+        work.push(value);
+        while (!work.isEmpty()) {
+            Value next = work.pop();
+            if (next.live) continue;
+            next.live = true;
+            marked++;
+            if (next.left != null) work.push(next.left);
+            if (next.right != null) work.push(next.right);
+        }
+        return marked;
+    }
+
+    private Value define(Value value) {
+        values++;
+        return value;
+    }
+
+    private Value constant(int value) {
+        return define(new Value(Value.CONST, value, null, 0, null, null, null, null));
+    }
+
+    /**
+     * Define neg or not of a value, simplified where possible
+     */
+    private Value unary(Opcode opcode, Value x) {
+        if (x.kind == Value.CONST) {
+            folded++;
+            return constant(ConstantFolder.evaluate(opcode, 0, x.constant));
+        }
+        if (x.kind == Value.UNARY && x.opcode == opcode) { // neg neg x, not not x
+            folded++;
+            return x.left;
+        }
+        return define(new Value(Value.UNARY, 0, null, 0, opcode, x, null, null));
+    }
+
+    /**
+     * Define a binary operation, simplified where possible
+     */
+    private Value binary(Opcode opcode, Value x, Value y) {
+        if (x.kind == Value.CONST && y.kind == Value.CONST) {
+            folded++;
+            return constant(ConstantFolder.evaluate(opcode, x.constant, y.constant));
+        }
+        Value result = null;
+        switch (opcode) {
+            case ADD:
+                if (y.isConstant(0)) result = x;
+                else if (x.isConstant(0)) result = y;
+                break;
+            case SUB:
+                if (y.isConstant(0)) result = x;
+                break;
+            case AND:
+                if (y.isConstant(-1)) result = x;
+                else if (x.isConstant(-1)) result = y;
+                else if (x.isConstant(0) || y.isConstant(0)) result = constant(0); // loads have no side effects
+                break;
+            case OR:
+                if (y.isConstant(0)) result = x;
+                else if (x.isConstant(0)) result = y;
+                else if (x.isConstant(-1) || y.isConstant(-1)) result = constant(-1);
+                break;
+            default:
+                break;
+        }
+        if (result != null) {
+            folded++;
+            return result;
+        }
+        return define(new Value(Value.BINARY, 0, null, 0, opcode, x, y, null));
+    }
+
+    /**
+     * Can a pop to one location change what a push of another reads?
+     * Locals, arguments, temp, pointer, and statics are each their own words; this and that
+     * can point anywhere, and a pop to pointer moves them.
+     * @param stored the segment popped to
+     * @param storedIndex its index
+     * @param read the segment pushed from
+     * @param readIndex its index
+     * @return boolean false only if the two never share a word
+     */
+    static boolean mayAlias(Segment stored, int storedIndex, Segment read, int readIndex) {
+        if (read == Segment.CONSTANT || stored == Segment.CONSTANT) return false;
+        if (stored == read) return storedIndex == readIndex; // the same base, so different indexes differ
+        if (stored == Segment.THIS || stored == Segment.THAT || read == Segment.THIS || read == Segment.THAT) return true;
+        return false; // locals, arguments, statics, temp, and pointer are disjoint
+    }
+
+    private static long location(Segment segment, int index) {
+        return ((long) segment.ordinal() << 32) | (index & 0xffffffffL);
+    }
+
+    private static Segment segmentOf(long location) {
+        return Segment.values()[(int) (location >>> 32)];
+    }
+
+    private static int indexOf(long location) {
+        return (int) location;
+    }
+}
@@ -0,0 +1,663 @@
+/**
+ * SsaLowering.java
+ * Writes the Hack assembly of a file from the register form of its functions (--ssa).
+ * A value is computed only when something needs it, straight into D and from there to
+ * where it goes, so push local 0, push constant 1, add, pop local 0 becomes
+ *   @LCL A=M D=M, D=D+1, @LCL A=M M=D
+ * without a word of the stack being touched (7 instructions instead of 34).
+ * The stack words of the block are kept as values until they have to be in RAM: at a
+ * label, goto, if-goto, call, return, or the end of the block, where they are written
+ * to their slots bottom first and the real SP is set once. Slots are addressed from the
+ * real SP (@SP A=M+1 ...), which only moves where the block ends or calls.
+ * A value that is still needed when its operands are about to be overwritten (a pop to a
+ * location it reads) is computed into a free register (R13-R15), or failing that, written
+ * to its slot with every word below it. An operation whose two operands both need D keeps
+ * one in a free register, or in a scratch word above every slot the block uses.
+ * An if-goto on a comparison (and any nots) jumps on x - y, as --fuse-branches does.
+ * Labels, gotos, calls, returns, and functions are written by the CodeWriter, as are the
+ * blocks SsaFunction leaves as they are, so every other option still applies to those.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Read compact mode from the CodeWriter's options rather than a static setting
+ * 2026-10-18: Write each command comment straight into the output; compact mode only counts its length
+ * 2026-10-18: Use CodeWriter.jump; pass the decoded opcode and segment of plain blocks to writeCommand
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class SsaLowering {
+    private static final int FIRST_REGISTER = 13; // R13-R15 are free between VM commands
+    private static final int LAST_REGISTER = 15;
+
+    private final CommandList commands;
+    private final SymbolTable symbols;
+    private final CodeWriter codeWriter;
+    private final boolean comments; // false in compact mode
+    private final StringBuilder out = new StringBuilder(); // assembly not yet handed to the CodeWriter
+    private int omitted = 0; // comment bytes left out of out in compact mode
+
+    // the state of the block being written
+    private final List<SsaFunction.Value> stack = new ArrayList<>(); // the value of each stack word, bottom first
+    private final Map<SsaFunction.Value, Integer> registerOf = new IdentityHashMap<>(); // values kept in R13-R15
+    private final Map<SsaFunction.Value, Integer> slotOf = new IdentityHashMap<>(); // values in a stack slot
+    private final boolean[] registerUsed = new boolean[LAST_REGISTER + 1];
+    private SsaFunction.Value inD = null; // the value D holds (without copies), or null
+    private int realSP = 0; // the real SP, as a position from the block's base
+    private int highWater = 0; // one past the highest slot the block has used
+    private int scratch = 0; // scratch words in use above highWater
+    private String scope = ""; // the label prefix of the current function, e.g. Main.Main.fibonacci$
+    private String prefix = ""; // the static prefix of the file, e.g. Main.
+
+    private SsaLowering(CommandList commands, SymbolTable symbols, CodeWriter codeWriter) {
+        this.commands = commands;
+        this.symbols = symbols;
+        this.codeWriter = codeWriter;
+        this.comments = !codeWriter.options().isCompact();
+    }
+
+    /**
+     * Translate the commands of a file through the register form of each of its functions
+     * @param commands the parsed commands of one file
+     * @param symbols the symbol table the command names are interned in
+     * @param codeWriter the CodeWriter, already set to the file
+     */
+    static void translate(CommandList commands, SymbolTable symbols, CodeWriter codeWriter) {
+        SsaLowering lowering = new SsaLowering(commands, symbols, codeWriter);
+        for (FlowGraph graph : FlowGraph.build(commands, symbols)) {
+            SsaFunction function = new SsaFunction(graph, codeWriter.statistics());
+            for (FlowGraph.Block block : graph.blocks()) {
+                SsaFunction.BlockCode code = function.code(block);
+                if (code != null) {
+                    lowering.lower(code);
+                } else { // left as it is: one command at a time
+                    for (int i = block.first; i < block.end; i++) {
+                        VMTranslator.writeCommand(codeWriter, symbols, commands.opcode(i), commands.segment(i), commands.symbol(i), commands.operand(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write one block from its values
+     */
+    private void lower(SsaFunction.BlockCode code) {
+        stack.clear();
+        registerOf.clear();
+        slotOf.clear();
+        Arrays.fill(registerUsed, false);
+        inD = null;
+        scratch = 0;
+        for (SsaFunction.Value value : code.entry) { // the phis are in RAM
+            slotOf.put(value, stack.size());
+            stack.add(value);
+        }
+        realSP = stack.size();
+        highWater = realSP;
+        scope = new String(codeWriter.labelScope(), StandardCharsets.US_ASCII);
+        prefix = new String(codeWriter.staticPrefix(), StandardCharsets.US_ASCII);
+
+        FlowGraph.Block block = code.block;
+        for (int i = block.first; i < block.end; i++) {
+            Opcode opcode = commands.opcode(i);
+            int symbol = commands.symbol(i);
+            int operand = commands.operand(i);
+            switch (opcode) {
+                case FUNCTION:
+                    flush();
+                    codeWriter.writeFunction(symbol, operand);
+                    scope = new String(codeWriter.labelScope(), StandardCharsets.US_ASCII);
+                    break;
+                case LABEL:
+                    flush();
+                    codeWriter.writeLabel(symbol);
+                    break;
+                case PUSH:
+                    comment(i);
+                    check(commands.segment(i), operand);
+                    push(code.pushed(i));
+                    break;
+                case POP:
+                    comment(i);
+                    check(commands.segment(i), operand);
+                    store(stack.remove(stack.size() - 1), commands.segment(i), operand);
+                    break;
+                case NEG: case NOT:
+                    comment(i);
+                    stack.remove(stack.size() - 1); // the operand stays where it is until the result is needed
+                    push(code.pushed(i));
+                    break;
+                case ADD: case SUB: case AND: case OR: case EQ: case GT: case LT:
+                    comment(i);
+                    stack.subList(stack.size() - 2, stack.size()).clear();
+                    push(code.pushed(i));
+                    break;
+                case CALL:
+                    materialize(stack.size()); // the arguments and everything below them
+                    commitSP();
+                    flush();
+                    codeWriter.writeCall(symbol, operand);
+                    stack.subList(stack.size() - operand, stack.size()).clear();
+                    slotOf.put(code.pushed(i), stack.size()); // the return value replaces the arguments
+                    push(code.pushed(i));
+                    realSP = stack.size();
+                    inD = null;
+                    break;
+                case IF_GOTO:
+                    comment(i);
+                    branch(stack.remove(stack.size() - 1), symbols.name(symbol));
+                    break;
+                case GOTO:
+                    materialize(stack.size());
+                    commitSP();
+                    flush();
+                    codeWriter.writeGoto(symbol);
+                    break;
+                case RETURN:
+                    materialize(stack.size());
+                    commitSP();
+                    flush();
+                    codeWriter.writeReturn();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid command: " + opcode.keyword());
+            }
+        }
+        materialize(stack.size()); // the next block expects the whole stack in RAM
+        commitSP();
+        flush();
+    }
+
+    /**
+     * Check the index of a temp or pointer push/pop as CodeWriter does
+     */
+    private static void check(Segment segment, int index) {
+        if (segment == Segment.TEMP && (index < 0 || index > 7)) throw new IllegalArgumentException("Invalid temp index: " + index);
+        if (segment == Segment.POINTER && index != 0 && index != 1) throw new IllegalArgumentException("Invalid pointer index: " + index);
+        if (segment == Segment.CONSTANT && (index < 0 || index > 32767)) throw new IllegalArgumentException("Invalid constant index: " + index);
+    }
+
+    private void push(SsaFunction.Value value) {
+        stack.add(value);
+        highWater = Math.max(highWater, stack.size());
+    }
+
+    /**
+     * Write a value to a segment, after keeping every pending value that reads the location
+     */
+    private void store(SsaFunction.Value value, Segment segment, int index) {
+        if (segment == Segment.CONSTANT) throw new IllegalArgumentException("Cannot pop a constant: " + index);
+        for (int position = 0; position < stack.size(); position++) {
+            SsaFunction.Value pending = stack.get(position);
+            if (!isHome(position) && reads(pending, segment, index)) keep(position);
+        }
+        int constant = value.base().constant;
+        boolean direct = value.base().kind == SsaFunction.Value.CONST && constant >= -1 && constant <= 1
+                && !(inD != null && inD == value.base()); // M=0, M=1, M=-1 need no D
+        switch (segment) {
+            case STATIC: case TEMP: case POINTER:
+                if (!direct) gen(value);
+                emit(directAddress(segment, index));
+                break;
+            default: // local, argument, this, that
+                if (index >= 0 && index <= 6) {
+                    if (!direct) gen(value);
+                    emit("@" + base(segment));
+                    emit((index == 0) ? "A=M" : "A=M+1");
+                    for (int k = 1; k < index; k++) emit("A=A+1");
+                } else { // keep the value aside, then D = address + value, A = D - value, M = D - A
+                    gen(value);
+                    int temp = allocate();
+                    addressTemp(temp);
+                    emit("M=D");
+                    emit("@" + base(segment));
+                    emit("D=M");
+                    emit("@" + index);
+                    emit("D=D+A");
+                    addressTemp(temp);
+                    emit("D=D+M");
+                    emit("A=D-M");
+                    emit("M=D-A");
+                    release(temp);
+                    inD = null;
+                    return;
+                }
+                break;
+        }
+        emit(direct ? "M=" + constant : "M=D");
+    }
+
+    /**
+     * Does a value not yet computed read a location that a pop may change?
+     */
+    private boolean reads(SsaFunction.Value value, Segment segment, int index) {
+        if (registerOf.containsKey(value) || slotOf.containsKey(value)) return false; // already computed
+        switch (value.kind) {
+            case SsaFunction.Value.LOAD: case SsaFunction.Value.COPY:
+                return SsaFunction.mayAlias(segment, index, value.segment, value.index);
+            case SsaFunction.Value.UNARY:
+                return reads(value.left, segment, index);
+            case SsaFunction.Value.BINARY:
+                return reads(value.left, segment, index) || reads(value.right, segment, index);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compute the value at a stack position now: into a free register, or else into its slot
+     * with every value below it
+     */
+    private void keep(int position) {
+        int register = allocate();
+        if (register < 0) {
+            release(register);
+            materialize(position + 1);
+            return;
+        }
+        SsaFunction.Value value = stack.get(position);
+        gen(value);
+        emit("@R" + register);
+        emit("M=D");
+        registerOf.put(value, register);
+    }
+
+    private boolean isHome(int position) {
+        Integer slot = slotOf.get(stack.get(position));
+        return slot != null && slot == position;
+    }
+
+    /**
+     * Write the values of the bottom count stack positions to their slots
+     */
+    private void materialize(int count) {
+        for (int position = 0; position < count; position++) {
+            if (isHome(position)) continue;
+            SsaFunction.Value value = stack.get(position);
+            SsaFunction.Value base = value.base();
+            if (base.kind == SsaFunction.Value.CONST && base.constant >= -1 && base.constant <= 1 && inD != base) {
+                address(position);
+                emit("M=" + base.constant);
+            } else {
+                gen(value);
+                address(position);
+                emit("M=D");
+            }
+            slotOf.put(value, position);
+        }
+    }
+
+    /**
+     * Set the real SP to the top of the stack
+     */
+    private void commitSP() {
+        int words = stack.size() - realSP;
+        if (words == 0) return;
+        if (Math.abs(words) <= 3) {
+            emit("@SP");
+            for (int k = 0; k < Math.abs(words); k++) emit((words > 0) ? "M=M+1" : "M=M-1");
+        } else {
+            emit("@" + Math.abs(words));
+            emit("D=A");
+            emit("@SP");
+            emit((words > 0) ? "M=M+D" : "M=M-D");
+            inD = null;
+        }
+        realSP = stack.size();
+    }
+
+    /**
+     * Write an if-goto on a value
+     */
+    private void branch(SsaFunction.Value condition, String label) {
+        // a comparison under any number of nots jumps on x - y without making -1/0
+        SsaFunction.Value compare = condition;
+        boolean negated = false;
+        while (compare.kind == SsaFunction.Value.UNARY && compare.opcode == Opcode.NOT && !located(compare)) {
+            compare = compare.left;
+            negated = !negated;
+        }
+        boolean fused = compare.kind == SsaFunction.Value.BINARY && !located(compare)
+                && (compare.opcode == Opcode.EQ || compare.opcode == Opcode.GT || compare.opcode == Opcode.LT);
+        materialize(stack.size());
+        commitSP();
+        if (condition.kind == SsaFunction.Value.CONST) { // always or never
+            if (condition.constant != 0) {
+                emit("@" + scope + label);
+                emit("0;JMP");
+            }
+        } else if (fused) {
+            difference(Opcode.SUB, compare.left, compare.right);
+            emit("@" + scope + label);
+            emit("D;" + CodeWriter.jump(compare.opcode, negated));
+        } else {
+            gen(condition);
+            emit("@" + scope + label);
+            emit("D;JNE");
+        }
+        inD = null;
+    }
+
+    private boolean located(SsaFunction.Value value) {
+        return registerOf.containsKey(value) || slotOf.containsKey(value) || (inD != null && inD == value.base());
+    }
+
+    /**
+     * Leave a value in D
+     */
+    private void gen(SsaFunction.Value value) {
+        if (inD != null && inD == value.base()) return;
+        if (value.kind == SsaFunction.Value.CONST) {
+            int constant = value.constant;
+            if (constant >= -1 && constant <= 1) {
+                emit("D=" + constant);
+            } else if (constant >= 0) {
+                emit("@" + constant);
+                emit("D=A");
+            } else { // the A-instruction only loads 0 to 32767
+                emit("@" + ~constant);
+                emit("D=!A");
+            }
+            inD = value;
+            return;
+        }
+        Integer register = registerOf.remove(value);
+        if (register != null) {
+            emit("@R" + register);
+            emit("D=M");
+            registerUsed[register] = false;
+            inD = value.base();
+            return;
+        }
+        Integer slot = slotOf.get(value);
+        if (slot != null) {
+            address(slot);
+            emit("D=M");
+            inD = value.base();
+            return;
+        }
+        switch (value.kind) {
+            case SsaFunction.Value.LOAD: case SsaFunction.Value.COPY:
+                load(value.segment, value.index);
+                break;
+            case SsaFunction.Value.UNARY:
+                gen(value.left);
+                emit((value.opcode == Opcode.NEG) ? "D=-D" : "D=!D");
+                break;
+            case SsaFunction.Value.BINARY:
+                if (value.opcode == Opcode.EQ || value.opcode == Opcode.GT || value.opcode == Opcode.LT) {
+                    difference(Opcode.SUB, value.left, value.right);
+                    String command = value.opcode.keyword();
+                    int number = codeWriter.nextLabel();
+                    emit("@" + scope + command + "_true." + number);
+                    emit("D;" + CodeWriter.jump(value.opcode, false));
+                    emit("D=0");
+                    emit("@" + scope + command + "_end." + number);
+                    emit("0;JMP");
+                    emit("(" + scope + command + "_true." + number + ")");
+                    emit("D=-1");
+                    emit("(" + scope + command + "_end." + number + ")");
+                } else {
+                    difference(value.opcode, value.left, value.right);
+                }
+                break;
+            default: // phis and call results are always in their slots
+                throw new IllegalStateException("Value without a location");
+        }
+        inD = value.base();
+    }
+
+    /**
+     * Leave x op y in D, for add, sub, and, or
+     */
+    private void difference(Opcode opcode, SsaFunction.Value x, SsaFunction.Value y) {
+        if (y.kind == SsaFunction.Value.CONST && !located(y)) {
+            gen(x);
+            constantRight(opcode, y.constant);
+        } else if (x.kind == SsaFunction.Value.CONST && !located(x)) {
+            gen(y);
+            constantLeft(opcode, x.constant);
+        } else if (inD != null && inD == y.base() && addressable(x)) {
+            address(x);
+            emit(reversed(opcode));
+        } else if (addressable(y)) {
+            gen(x);
+            address(y);
+            emit(forward(opcode));
+        } else if (addressable(x)) {
+            gen(y);
+            address(x);
+            emit(reversed(opcode));
+        } else { // both need D: keep y aside
+            gen(y);
+            int temp = allocate();
+            addressTemp(temp);
+            emit("M=D");
+            gen(x);
+            addressTemp(temp);
+            emit(forward(opcode));
+            release(temp);
+        }
+        inD = null; // the caller names the result
+    }
+
+    private static String forward(Opcode opcode) { // D = D op M
+        switch (opcode) {
+            case ADD: return "D=D+M";
+            case SUB: return "D=D-M";
+            case AND: return "D=D&M";
+            default: return "D=D|M";
+        }
+    }
+
+    private static String reversed(Opcode opcode) { // D = M op D
+        switch (opcode) {
+            case ADD: return "D=D+M";
+            case SUB: return "D=M-D";
+            case AND: return "D=D&M";
+            default: return "D=D|M";
+        }
+    }
+
+    /**
+     * D = D op c
+     */
+    private void constantRight(Opcode opcode, int c) {
+        if (opcode == Opcode.SUB && c != -32768) { // D - c = D + -c
+            opcode = Opcode.ADD;
+            c = -c;
+        }
+        if (opcode == Opcode.ADD && (c == 1 || c == -1)) {
+            emit((c == 1) ? "D=D+1" : "D=D-1");
+            return;
+        }
+        if (opcode == Opcode.ADD && c < 0 && c != -32768) { // add a negative constant as a subtraction
+            emit("@" + -c);
+            emit("D=D-A");
+            return;
+        }
+        constantA(c);
+        switch (opcode) {
+            case ADD: emit("D=D+A"); break;
+            case SUB: emit("D=D-A"); break;
+            case AND: emit("D=D&A"); break;
+            default: emit("D=D|A"); break;
+        }
+    }
+
+    /**
+     * D = c op D
+     */
+    private void constantLeft(Opcode opcode, int c) {
+        if (opcode != Opcode.SUB) {
+            constantRight(opcode, c);
+            return;
+        }
+        if (c == 0) {
+            emit("D=-D");
+        } else if (c == -1) {
+            emit("D=!D"); // -1 - D = !D
+        } else {
+            constantA(c);
+            emit("D=A-D");
+        }
+    }
+
+    private void constantA(int c) {
+        if (c >= 0) {
+            emit("@" + c);
+        } else {
+            emit("@" + ~c);
+            emit("A=!A");
+        }
+    }
+
+    /**
+     * Can a value be read with A alone, without D?
+     */
+    private boolean addressable(SsaFunction.Value value) {
+        if (registerOf.containsKey(value) || slotOf.containsKey(value)) return true;
+        if (value.kind != SsaFunction.Value.LOAD && value.kind != SsaFunction.Value.COPY) return false;
+        switch (value.segment) {
+            case STATIC: case TEMP: case POINTER: return true;
+            default: return value.index >= 0 && value.index <= 3;
+        }
+    }
+
+    /**
+     * Point A at an addressable value
+     */
+    private void address(SsaFunction.Value value) {
+        Integer register = registerOf.remove(value);
+        if (register != null) {
+            emit("@R" + register);
+            registerUsed[register] = false;
+            return;
+        }
+        Integer slot = slotOf.get(value);
+        if (slot != null) {
+            address(slot);
+            return;
+        }
+        addressLocation(value.segment, value.index);
+    }
+
+    private void addressLocation(Segment segment, int index) {
+        switch (segment) {
+            case STATIC: case TEMP: case POINTER:
+                emit(directAddress(segment, index));
+                break;
+            default:
+                emit("@" + base(segment));
+                emit((index == 0) ? "A=M" : "A=M+1");
+                for (int k = 1; k < index; k++) emit("A=A+1");
+                break;
+        }
+    }
+
+    /**
+     * D = segment[index]
+     */
+    private void load(Segment segment, int index) {
+        switch (segment) {
+            case STATIC: case TEMP: case POINTER:
+                addressLocation(segment, index);
+                break;
+            default:
+                if (index >= 0 && index <= 2) {
+                    addressLocation(segment, index);
+                } else {
+                    emit("@" + index);
+                    emit("D=A");
+                    emit("@" + base(segment));
+                    emit("A=D+M");
+                }
+                break;
+        }
+        emit("D=M");
+    }
+
+    private String directAddress(Segment segment, int index) {
+        switch (segment) {
+            case STATIC: return "@" + prefix + index;
+            case TEMP: return "@" + (5 + index);
+            default: return (index == 0) ? "@THIS" : "@THAT"; // pointer
+        }
+    }
+
+    private static String base(Segment segment) {
+        switch (segment) {
+            case LOCAL: return "LCL";
+            case ARGUMENT: return "ARG";
+            case THIS: return "THIS";
+            default: return "THAT";
+        }
+    }
+
+    /**
+     * Point A at a stack slot, from the real SP
+     */
+    private void address(int position) {
+        int offset = position - realSP;
+        emit("@SP");
+        if (offset == 0) {
+            emit("A=M");
+        } else if (offset > 0) {
+            emit("A=M+1");
+            for (int k = 1; k < offset; k++) emit("A=A+1");
+        } else {
+            emit("A=M-1");
+            for (int k = -1; k > offset; k--) emit("A=A-1");
+        }
+    }
+
+    /**
+     * Take a free register, or a scratch word above the block's slots
+     * @return int the register number (13 to 15), or -1 - the scratch word
+     */
+    private int allocate() {
+        for (int register = FIRST_REGISTER; register <= LAST_REGISTER; register++) {
+            if (!registerUsed[register]) {
+                registerUsed[register] = true;
+                return register;
+            }
+        }
+        return -1 - scratch++;
+    }
+
+    private void release(int temp) {
+        if (temp > 0) registerUsed[temp] = false;
+        else scratch--; // scratch words are taken and released last in, first out
+    }
+
+    private void addressTemp(int temp) {
+        if (temp > 0) emit("@R" + temp);
+        else address(highWater - 1 - temp);
+    }
+
+    private void emit(String instruction) {
+        out.append(instruction).append('\n');
+    }
+
+    private void comment(int i) {
+        if (comments) {
+            out.append("// ");
+            commands.appendText(i, symbols, out);
+            out.append('\n');
+        } else {
+            omitted += 3 + commands.textLength(i, symbols) + 1; // "// ", the command, and the newline
+        }
+    }
+
+    /**
+     * Hand the assembly written so far to the CodeWriter
+     */
+    private void flush() {
+        if (out.length() == 0 && omitted == 0) return;
+        codeWriter.writeLowered(out.toString().getBytes(StandardCharsets.US_ASCII), omitted);
+        out.setLength(0);
+        omitted = 0;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * SymbolTable.java
+ * Interns the function and label names that appear in VM commands. Each distinct
+ * name gets a small int id the first time it is seen; later occurrences are looked
+ * up straight from the lexer buffer, so a repeated name costs no allocation.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ * 2026-10-18: Intern straight from a ByteBuffer so mapped files need no copy
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class SymbolTable {
+    private byte[][] symbolBytes = new byte[64][]; // id -> name as ASCII bytes
+    private String[] symbolNames = new String[64]; // id -> name
+    private int size = 0; // number of interned symbols
+
+    private int[] slots = new int[128]; // open-addressing hash table of id + 1 (0 = empty slot)
+    private int[] slotHashes = new int[128]; // hash of the symbol stored in each slot
+
+    /**
+     * Get the id of the name held in the given byte range, interning it if it is new
+     * @param buffer the buffer holding the name
+     * @param start offset of the first byte of the name
+     * @param end offset one past the last byte of the name
+     * @return int the symbol id
+     */
+    public int intern(ByteBuffer buffer, int start, int end) {
+        int hash = hash(buffer, start, end);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) { // not found: copy it out of the buffer and add it
+                byte[] bytes = new byte[end - start];
+                for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(start + i);
+                return add(bytes, hash, slot);
+            }
+            if (slotHashes[slot] == hash && equals(symbolBytes[entry - 1], buffer, start, end)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Get the id of the given name, interning it if it is new
+     * @param name the name to intern
+     * @return int the symbol id
+     */
+    public int intern(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        return intern(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Get the name of the given symbol
+     * @param id the symbol id
+     * @return String the name
+     */
+    public String name(int id) {
+        return symbolNames[id];
+    }
+
+    /**
+     * Get the name of the given symbol as ASCII bytes (do not modify)
+     * @param id the symbol id
+     * @return byte[] the name bytes
+     */
+    public byte[] bytes(int id) {
+        return symbolBytes[id];
+    }
+
+    /**
+     * Get the number of interned symbols
+     * @return int the number of symbols; ids run from 0 to size() - 1
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Store a new symbol in the given empty slot, growing the tables as needed
+     */
+    private int add(byte[] bytes, int hash, int slot) {
+        int id = size++;
+        if (id == symbolBytes.length) {
+            symbolBytes = Arrays.copyOf(symbolBytes, id * 2);
+            symbolNames = Arrays.copyOf(symbolNames, id * 2);
+        }
+        symbolBytes[id] = bytes;
+        symbolNames[id] = new String(bytes, StandardCharsets.US_ASCII);
+        slots[slot] = id + 1;
+        slotHashes[slot] = hash;
+        if (size * 2 > slots.length) rehash(); // keep the load factor at or below one half
+        return id;
+    }
+
+    /**
+     * Double the hash table and reinsert every symbol
+     */
+    private void rehash() {
+        int[] oldSlots = slots;
+        int[] oldHashes = slotHashes;
+        slots = new int[oldSlots.length * 2];
+        slotHashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == 0) continue;
+            int slot = oldHashes[i] & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = oldSlots[i];
+            slotHashes[slot] = oldHashes[i];
+        }
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + buffer.get(i);
+        return hash ^ (hash >>> 16); // spread the high bits into the masked low bits
+    }
+
+    private static boolean equals(byte[] symbol, ByteBuffer buffer, int start, int end) {
+        if (symbol.length != end - start) return false;
+        for (int i = 0; i < symbol.length; i++) {
+            if (symbol[i] != buffer.get(start + i)) return false;
+        }
+        return true;
+    }
+}
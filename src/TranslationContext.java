@@ -0,0 +1,94 @@
+/**
+ * TranslationContext.java
+ * The state that belongs to the translation of one .vm file: the file and function
+ * being translated and the counters that keep generated labels unique. Each file
+ * gets a fresh context, so files can be translated concurrently by separate
+ * CodeWriters that share nothing but a frozen FunctionTable and an output sink.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version (split out of CodeWriter)
+ * 2026-10-18: Cache the rendered "File." and "File.function$" label prefixes as bytes
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class TranslationContext {
+    private final String fileName; // current .VM file being translated
+    private final byte[] filePrefix; // "File." rendered once; prefixes static variables and return addresses
+    private String functionName = null; // current function name translated
+    private byte[] scope; // "File.function$" rendered once per function; prefixes labels
+    private int labelCounter = 1; // counter for generating unique comparison labels within a function
+    private int returnCounter = 1; // counter for generating unique return labels within a file
+
+    /**
+     * Start the translation of a file
+     * @param fileName the name of the .VM file without extension
+     */
+    public TranslationContext(String fileName) {
+        this.fileName = fileName;
+        this.filePrefix = ascii(fileName + ".");
+        this.scope = ascii(fileName + "." + null + "$"); // commands outside any function
+    }
+
+    /**
+     * Get the name of the file being translated
+     * @return String the file name without extension
+     */
+    String fileName() {
+        return fileName;
+    }
+
+    /**
+     * Get the name of the function being translated
+     * @return String the function name, or null before the first function command
+     */
+    String functionName() {
+        return functionName;
+    }
+
+    /**
+     * Start the translation of a function; comparison labels are numbered per function
+     * @param functionName the name of the function
+     */
+    void enterFunction(String functionName) {
+        this.functionName = functionName;
+        this.scope = ascii(fileName + "." + functionName + "$");
+        labelCounter = 1; // reset the label counter for each function for uniqueness
+    }
+
+    /**
+     * Get the file name followed by a dot, e.g. Main.
+     * @return byte[] the rendered prefix as ASCII bytes (do not modify)
+     */
+    byte[] filePrefix() {
+        return filePrefix;
+    }
+
+    /**
+     * Get the prefix that makes a label unique to the current function, e.g. Main.Main.fibonacci$
+     * @return byte[] the rendered prefix as ASCII bytes (do not modify)
+     */
+    byte[] scope() {
+        return scope;
+    }
+
+    /**
+     * Take the next number for a pair of comparison labels
+     * @return int the label number
+     */
+    int nextLabel() {
+        return labelCounter++;
+    }
+
+    /**
+     * Take the next number for a return address label
+     * @return int the return number
+     */
+    int nextReturn() {
+        return returnCounter++;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
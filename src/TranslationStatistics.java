@@ -0,0 +1,126 @@
+/**
+ * TranslationStatistics.java
+ * Collects the counts the reports at the end of a translation print: the bytes generated and the
+ * comments left out (--compact), the commands folded (--fold-constants), the hits of each peephole
+ * rule (--peephole), and the totals of the register form (--ssa). Each CodeWriter, with its
+ * ConstantFolder, PeepholeOptimizer, and SsaFunctions, adds its counts when it closes; the writers
+ * of a translation may run on several threads and share one collector.
+ * by Charles Stevenson (brucesdad13@gmail.com)
+ * Revision History:
+ * 2026-10-18: Initial version
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class TranslationStatistics {
+    private final AtomicLong generatedBytes = new AtomicLong(); // assembly generated by closed writers
+    private final AtomicLong omittedBytes = new AtomicLong(); // comments those writers left out
+    private final AtomicLong foldedCommands = new AtomicLong(); // commands folded by closed folders
+    private final AtomicLongArray peepholeHits = new AtomicLongArray(PeepholeOptimizer.RULES.length); // hits of closed optimizers
+    private final AtomicLong functions = new AtomicLong(); // functions built in register form
+    private final AtomicLong blocks = new AtomicLong(); // blocks in register form
+    private final AtomicLong plainBlocks = new AtomicLong(); // blocks left for CodeWriter
+    private final AtomicLong values = new AtomicLong(); // values defined
+    private final AtomicLong foldedValues = new AtomicLong(); // operations replaced by a constant or an operand
+    private final AtomicLong copies = new AtomicLong(); // pushes replaced by the value last popped there
+    private final AtomicLong dead = new AtomicLong(); // values never used
+    private final AtomicLong phis = new AtomicLong(); // phi nodes
+    private final AtomicLong constantPhis = new AtomicLong(); // phi nodes found to be constants
+
+    /**
+     * Add the output of a closed CodeWriter
+     * @param generated the bytes of assembly it generated, not counting fragments
+     * @param omitted the comment bytes it left out in compact mode
+     */
+    void addOutput(long generated, long omitted) {
+        generatedBytes.addAndGet(generated);
+        omittedBytes.addAndGet(omitted);
+    }
+
+    /**
+     * Get the number of bytes of assembly generated by every closed CodeWriter, not counting fragments
+     * @return long the generated bytes
+     */
+    long generatedBytes() {
+        return generatedBytes.get();
+    }
+
+    /**
+     * Get the number of comment bytes left out by every closed CodeWriter in compact mode
+     * Deferred call targets (see CodeWriter.setDeferCallTargets) are not counted in the comments that name them.
+     * @return long the bytes that commented output would have added
+     */
+    long omittedBytes() {
+        return omittedBytes.get();
+    }
+
+    /**
+     * Add the count of a closed ConstantFolder
+     * @param folded the commands it folded away
+     */
+    void addFolded(long folded) {
+        foldedCommands.addAndGet(folded);
+    }
+
+    /**
+     * Get the number of commands folded away by every closed ConstantFolder
+     * @return long the folded commands
+     */
+    long foldedCommands() {
+        return foldedCommands.get();
+    }
+
+    /**
+     * Add the hits of a closed PeepholeOptimizer
+     * @param hits the matches of each rule, in the order of PeepholeOptimizer.RULES
+     */
+    void addPeepholeHits(long[] hits) {
+        for (int i = 0; i < hits.length; i++) peepholeHits.addAndGet(i, hits[i]);
+    }
+
+    /**
+     * Get the number of matches of each rule, added up over every closed PeepholeOptimizer
+     * @return long[] the hits, in the order of PeepholeOptimizer.RULES
+     */
+    long[] peepholeHits() {
+        long[] hits = new long[peepholeHits.length()];
+        for (int i = 0; i < hits.length; i++) hits[i] = peepholeHits.get(i);
+        return hits;
+    }
+
+    /**
+     * Add the counts of one function built in register form (see SsaFunction)
+     * @param lowered the blocks in register form
+     * @param plain the blocks left for CodeWriter
+     * @param defined the values defined
+     * @param folded the operations replaced by a constant or an operand
+     * @param copied the pushes replaced by the value last popped there
+     * @param unused the values never used
+     * @param phiNodes the phi nodes
+     * @param constantPhiNodes the phi nodes found to be constants
+     */
+    void addRegisterForm(int lowered, int plain, int defined, int folded, int copied, int unused, int phiNodes, int constantPhiNodes) {
+        functions.incrementAndGet();
+        blocks.addAndGet(lowered);
+        plainBlocks.addAndGet(plain);
+        values.addAndGet(defined);
+        foldedValues.addAndGet(folded);
+        copies.addAndGet(copied);
+        dead.addAndGet(unused);
+        phis.addAndGet(phiNodes);
+        constantPhis.addAndGet(constantPhiNodes);
+    }
+
+    /**
+     * Get the totals of every function built in register form, for the report at the end of a translation
+     * @return String e.g. "12 functions, 40 blocks in register form (2 left as they were), ..."
+     */
+    String registerFormReport() {
+        return functions.get() + " functions, " + blocks.get() + " blocks in register form ("
+                + plainBlocks.get() + " left as they were), " + values.get() + " values, "
+                + foldedValues.get() + " operations folded, " + copies.get() + " copies propagated, "
+                + dead.get() + " dead values removed, " + phis.get() + " phis ("
+                + constantPhis.get() + " constant)";
+    }
+}
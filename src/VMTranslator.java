@@ -8,64 +8,274 @@
  * 2024-05-28: Added support for parsing label, goto, if-goto, function, return, and call commands
  * 2024-05-29: Fixed labelCounter bug in writeCall() method
  * 2024-05-30: Refactored to more properly support unique label generation for function calls
+ * 2026-10-18: Share one SymbolTable between the parsers of every file
+ * 2026-10-18: Added command line options, starting with --map-threshold
+ * 2026-10-18: Parse each file once into a CommandList shared by both passes
+ * 2026-10-18: Added --single-pass directory translation with call targets linked at close
+ * 2026-10-18: Added --jobs to translate the files of a directory in parallel
+ * 2026-10-18: Parallel translations share only the frozen FunctionTable and a FragmentSink
+ * 2026-10-18: Pass symbol ids rather than names to the CodeWriter for labels, functions, and calls
+ * 2026-10-18: Added streaming translation from standard input to standard output ("-" as the path)
+ * 2026-10-18: Added --cache to reuse the assembly of unchanged files between directory builds
+ * 2026-10-18: Added --watch to rebuild a directory whenever one of its .vm files changes
+ * 2026-10-18: Added --compact to leave out comments, reporting the bytes saved
+ * 2026-10-18: Added --shared-calls to call and return through one shared routine each
+ * 2026-10-18: Added --shared-compares to compare through one shared routine per comparison
+ * 2026-10-18: Added --peephole to optimize the generated instructions, reporting the hits of each rule
+ * 2026-10-18: Added --short-templates to write the shortest push/pop form for each index
+ * 2026-10-18: Added --top-in-d to keep the top of the stack in the D register between commands
+ * 2026-10-18: Added --fold-constants to evaluate arithmetic on constants at translation time
+ * 2026-10-18: Added --fuse-push-pop to write a push followed by a pop as one move
+ * 2026-10-18: Added --fuse-branches to write a comparison followed by if-goto as one conditional jump
+ * 2026-10-18: Added --virtual-sp to track SP at translation time within straight-line code
+ * 2026-10-18: Added --dump-cfg to print the control-flow graph of every function instead of translating
+ * 2026-10-18: Added --ssa to translate each basic block through its register form (SsaFunction, SsaLowering)
+ * 2026-10-18: Added --remove-unused to leave out the functions no call chain from Sys.init reaches
+ * 2026-10-18: Pass one CodeWriterOptions and one TranslationStatistics to every CodeWriter instead of static settings
+ * 2026-10-18: Added --debug to print each command as it is translated; debug strings are built only then
+ * 2026-10-18: Pass the decoded Opcode and Segment to the CodeWriter instead of turning them back into keywords
+ * 2026-10-18: Pass the --map-threshold value to each Parser instead of setting it globally
  */
 
 import java.io.*;
 import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class VMTranslator {
+    static final String STREAM_FILE_NAME = "Stdin"; // file name for statics and labels outside any Class.function
+    private static final long WATCH_SETTLE_MILLIS = 50; // quiet time after a change before --watch rebuilds
+
     public static void main (String[] args) {
-        // Ensure the input file and output file are provided as command line arguments
-        if (args.length != 1) {
-            System.out.println("Usage: java VMTranslator <path-to-vm-file-or-directory>");
-            System.out.println("The translator will generate a single .asm file in <path-to-vm-file-or-directory>.");
+        // Ensure the input file is provided as a command line argument, after any options
+        String inputFileName = null; // input file name
+        long mapThreshold = Parser.DEFAULT_MAP_THRESHOLD; // input files of at least this many bytes are memory-mapped
+        boolean singlePass = false; // translate each file as it is parsed and link call targets at the end
+        int jobs = 1; // number of files translated at the same time
+        boolean bootstrap = false; // write the bootstrap code when translating standard input
+        String cacheDirectory = null; // where translated files are kept between directory builds, or null
+        boolean watch = false; // keep running and rebuild the directory on every change
+        boolean compact = false; // leave out the comments in the assembly
+        boolean sharedCalls = false; // call and return through the shared $$CALL and $$RETURN routines
+        boolean sharedCompares = false; // compare through the shared $$EQ, $$GT, and $$LT routines
+        boolean peephole = false; // rewrite redundant instruction sequences on the way out
+        boolean shortTemplates = false; // pick the shortest push/pop form for each index
+        boolean topInD = false; // keep the top of the stack in D between commands
+        boolean foldConstants = false; // evaluate arithmetic on constants at translation time
+        boolean fusePushPop = false; // write a push followed by a pop as one move
+        boolean fuseBranches = false; // write a comparison followed by if-goto as one conditional jump
+        boolean virtualSP = false; // commit SP only where control flow joins or leaves
+        boolean dumpGraphs = false; // print the control-flow graphs instead of translating
+        boolean ssa = false; // translate each basic block through its register form
+        boolean removeUnused = false; // leave out the functions Sys.init can never reach
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--map-threshold": // memory-map input files of at least this many bytes
+                    mapThreshold = Long.parseLong(optionValue(args, i++));
+                    if (mapThreshold < 0) throw new IllegalArgumentException("Invalid map threshold: " + mapThreshold);
+                    break;
+                case "--single-pass": // skip the function table pass over directories
+                    singlePass = true;
+                    break;
+                case "--jobs": // translate this many files of a directory in parallel
+                    jobs = Integer.parseInt(optionValue(args, i++));
+                    if (jobs < 1) throw new IllegalArgumentException("Invalid number of jobs: " + jobs);
+                    break;
+                case "--debug": // print each command and what was written for it
+                    Debug.DEBUG_MODE = true;
+                    break;
+                case "--bootstrap": // call Sys.init first when translating standard input
+                    bootstrap = true;
+                    break;
+                case "--cache": // reuse the assembly of files that have not changed since the last build
+                    cacheDirectory = optionValue(args, i++);
+                    break;
+                case "--watch": // rebuild the directory whenever a .vm file changes
+                    watch = true;
+                    break;
+                case "--compact": // write the assembly without comments
+                    compact = true;
+                    break;
+                case "--shared-calls": // trade a few cycles per call for a much smaller ROM
+                    sharedCalls = true;
+                    break;
+                case "--shared-compares": // trade a few cycles per comparison for a smaller ROM
+                    sharedCompares = true;
+                    break;
+                case "--peephole": // remove redundant instructions between commands
+                    peephole = true;
+                    break;
+                case "--short-templates": // e.g. A=M+1 for index 1 instead of address arithmetic
+                    shortTemplates = true;
+                    break;
+                case "--top-in-d": // write the top of the stack to RAM only when it has to be there
+                    topInD = true;
+                    break;
+                case "--fold-constants": // e.g. push constant 0, not becomes a single push of -1
+                    foldConstants = true;
+                    break;
+                case "--fuse-push-pop": // e.g. push argument 0, pop pointer 0 never touches SP
+                    fusePushPop = true;
+                    break;
+                case "--fuse-branches": // e.g. lt, not, if-goto L becomes a subtraction and D;JGE
+                    fuseBranches = true;
+                    break;
+                case "--virtual-sp": // e.g. push, push, add updates SP once rather than three times
+                    virtualSP = true;
+                    break;
+                case "--dump-cfg": // print the basic blocks of every function, with stack depth and live locals
+                    dumpGraphs = true;
+                    break;
+                case "--ssa": // e.g. push, push, add, pop becomes a load, an add in D, and a store
+                    ssa = true;
+                    break;
+                case "--remove-unused": // e.g. the Jack OS routines a program never calls
+                    removeUnused = true;
+                    break;
+                default:
+                    if (args[i].startsWith("--") || inputFileName != null) {
+                        printUsage();
+                        return;
+                    }
+                    inputFileName = args[i];
+                    break;
+            }
+        }
+        if (inputFileName == null) {
+            printUsage();
+            return;
+        }
+        if (singlePass && jobs > 1) {
+            throw new IllegalArgumentException("--jobs needs the function table pass; it cannot be combined with --single-pass");
+        }
+        if (singlePass && cacheDirectory != null) {
+            throw new IllegalArgumentException("--cache needs the function table pass; it cannot be combined with --single-pass");
+        }
+        CodeWriterOptions options = new CodeWriterOptions.Builder() // checks that the options go together
+                .compact(compact)
+                .sharedCalls(sharedCalls)
+                .sharedCompares(sharedCompares)
+                .peephole(peephole)
+                .shortTemplates(shortTemplates)
+                .topInD(topInD)
+                .foldConstants(foldConstants)
+                .fusePushPop(fusePushPop)
+                .fuseBranches(fuseBranches)
+                .virtualSP(virtualSP)
+                .ssa(ssa)
+                .build();
+        if (ssa && inputFileName.equals("-")) {
+            throw new IllegalArgumentException("--ssa needs whole functions; it cannot be combined with standard input (-)");
+        }
+        if (removeUnused && (singlePass || cacheDirectory != null || watch)) {
+            throw new IllegalArgumentException("--remove-unused needs the call graph of every file; it cannot be combined with --single-pass, --cache, or --watch");
+        }
+        if (removeUnused && !new File(inputFileName).isDirectory()) {
+            throw new IllegalArgumentException("--remove-unused needs a directory, whose program starts at Sys.init: " + inputFileName);
+        }
+        if (dumpGraphs) {
+            dumpGraphs(inputFileName, mapThreshold);
+            return;
+        }
+        if (watch) {
+            if (singlePass) throw new IllegalArgumentException("--watch needs the function table pass; it cannot be combined with --single-pass");
+            File directory = new File(inputFileName);
+            if (!directory.isDirectory()) throw new IllegalArgumentException("--watch needs a directory: " + inputFileName);
+            FragmentCache cache = new FragmentCache(cacheDirectory == null ? null : Paths.get(cacheDirectory), options);
+            watch(directory, jobs, options, cache); // returns only on failure or interruption
             return;
         }
 
-        String inputFileName = args[0]; // input file name
         String outputFileName; // output file name
         CodeWriter codewriter; // instantiate the CodeWriter class
         FunctionTable functionTable = new FunctionTable(); // instantiate the FunctionTable class
+        SymbolTable symbols = new SymbolTable(); // function and label names interned by every parser
+        TranslationStatistics statistics = new TranslationStatistics(); // counts of every CodeWriter, for the reports
+        List<CommandList> removed = new ArrayList<>(); // the functions --remove-unused left out, by file
 
-        // If the program's argument is a directory, process all .vm files in the directory
+        // If the program's argument is "-", translate standard input to standard output as it arrives
         File input = new File(inputFileName);
-        if (input.isDirectory()) {
-            Debug.println("Processing directory: " + inputFileName);
+        if (inputFileName.equals("-")) {
+            OutputStream output = new FileOutputStream(FileDescriptor.out); // raw bytes, no PrintStream
+            System.setOut(System.err); // progress and debug messages must not mix with the assembly
+            codewriter = new CodeWriter(output, functionTable, symbols, options, statistics);
+            translateStream(new Parser(System.in, symbols), symbols, functionTable, codewriter, bootstrap);
+        }
+        else if (input.isDirectory()) {
+            if (Debug.DEBUG_MODE) Debug.println("Processing directory: " + inputFileName);
 
             // isolate the directory name and append .asm (remove trailing path separator, if any)
             outputFileName = input.getName() + ".asm"; // use the directory name as the output file name per API convention
             outputFileName = input.getPath() + File.separator + outputFileName; // concatenate the directory name with the output file name
-            codewriter = new CodeWriter(outputFileName, functionTable); // instantiate the CodeWriter class
+            codewriter = new CodeWriter(outputFileName, functionTable, symbols, options, statistics); // instantiate the CodeWriter class
 
             File[] files = input.listFiles();
             if (files == null) throw new IllegalArgumentException("No files found in directory: " + inputFileName);
 
-            // First pass: parse all the functions and generate a mapping
-            int fileCount = 0;
-            for (File file : files) {
-                if (file.getName().toLowerCase().endsWith(".vm")) {
-                    System.out.println("First pass looking for functions in file: " + file.getName());
-                    Parser parser = new Parser(file.getPath()); // unique parser object for each file per API
-                    parseFunctions(parser, file.getPath(), functionTable); // shared output file
-                    fileCount++;
+            if (singlePass) {
+                // Single pass: translate each file as soon as it is parsed. Calls to functions in files
+                // not seen yet are written as placeholders and filled in when the output file is closed.
+                codewriter.setDeferCallTargets(true);
+                codewriter.writeInit(); // bootstrap code; Sys.init is linked at the end
+                int fileCount = 0;
+                for (File file : files) {
+                    if (file.getName().toLowerCase().endsWith(".vm")) {
+                        System.out.println("Processing file: " + file.getName());
+                        CommandList commands = parseFile(file.getPath(), symbols, mapThreshold);
+                        if (commands == null) continue;
+                        parseFunctions(commands, symbols, functionTable); // record the functions this file defines
+                        parseInput(commands, symbols, codewriter); // shared output file
+                        fileCount++;
+                    }
                 }
+                // if no .vm files found, throw an exception -- nothing to do
+                if (fileCount == 0) throw new IllegalArgumentException("No .vm files found in directory: " + inputFileName);
             }
-            // if no .vm files found, throw an exception -- nothing to do
-            if (fileCount == 0) throw new IllegalArgumentException("No .vm files found in directory: " + inputFileName);
+            else if (cacheDirectory != null)
+            {
+                // Reuse the stored assembly of every file whose contents and call targets are unchanged
+                FragmentCache cache = new FragmentCache(Paths.get(cacheDirectory), options);
+                int fileCount = translateCached(files, symbols, functionTable, codewriter, jobs, cache);
+                if (fileCount == 0) throw new IllegalArgumentException("No .vm files found in directory: " + inputFileName);
+            }
+            else
+            {
+                // Parse each .vm file exactly once into a compact command list shared by both passes
+                List<CommandList> programs = new ArrayList<>();
+                for (File file : files) {
+                    if (file.getName().toLowerCase().endsWith(".vm")) {
+                        System.out.println("Parsing file: " + file.getName());
+                        CommandList commands = parseFile(file.getPath(), symbols, mapThreshold);
+                        if (commands != null) programs.add(commands);
+                    }
+                }
+                // if no .vm files found, throw an exception -- nothing to do
+                if (programs.isEmpty()) throw new IllegalArgumentException("No .vm files found in directory: " + inputFileName);
+
+                // First pass: scan all the functions and generate a mapping
+                for (CommandList commands : programs) {
+                    parseFunctions(commands, symbols, functionTable);
+                }
+                functionTable.freeze(); // complete; read-only from here on
+                if (removeUnused) programs = removeUnused(programs, symbols, functionTable, removed);
 
-            // print final function table for debugging
-            Debug.println("Function table:");
-            if (Debug.DEBUG_MODE) functionTable.printTable(); // print the function table (for debugging
+                // print final function table for debugging
+                Debug.println("Function table:");
+                if (Debug.DEBUG_MODE) functionTable.printTable(); // print the function table (for debugging
 
-            // write the bootstrap code to initialize the VM when translating a directory
-            codewriter.writeInit();
+                // write the bootstrap code to initialize the VM when translating a directory
+                codewriter.writeInit();
 
-            // Second pass: refer to the mapping when creating function labels
-            for (File file : files) {
-                if (file.getName().toLowerCase().endsWith(".vm")) {
-                    System.out.println("Processing file: " + file.getName());
-                    Parser parser = new Parser(file.getPath()); // unique parser object for each file per API
-                    parseInput(parser, file.getPath(), codewriter); // shared output file
+                // Second pass: refer to the mapping when creating function labels
+                if (jobs > 1) {
+                    // each file is translated into its own buffer; the buffers follow the bootstrap in directory order
+                    translateParallel(programs, symbols, functionTable, options, statistics, jobs, new FragmentSink(codewriter, programs.size()), null);
+                } else {
+                    for (CommandList commands : programs) {
+                        System.out.println("Processing file: " + commands.fileName() + ".vm");
+                        parseInput(commands, symbols, codewriter); // shared output file
+                    }
                 }
             }
         }
@@ -77,116 +287,540 @@ public class VMTranslator {
             outputFileName = inputFileName.substring(0, inputFileName.lastIndexOf('.')) + ".asm"; // replace .vm with .asm
 
             // instantiate the CodeWriter class; function table is empty not necessary for single file
-            codewriter = new CodeWriter(outputFileName, functionTable);
+            codewriter = new CodeWriter(outputFileName, functionTable, symbols, options, statistics);
 
             // Do not write the bootstrap code when translating a single file. Otherwise, online grader will fail.
             Debug.println("Skipping writing bootstrap code to output file");
 
-            Parser parser = new Parser(inputFileName); // unique parser object for each file per API
-            parseInput(parser, inputFileName, codewriter); // shared output file
+            CommandList commands = parseFile(inputFileName, symbols, mapThreshold);
+            if (commands != null) parseInput(commands, symbols, codewriter);
         }
         codewriter.close(); // close the output file
+        if (compact) { // compare with the size the same assembly would have had with comments
+            long generated = statistics.generatedBytes();
+            long omitted = statistics.omittedBytes();
+            System.out.printf("Compact output: %d bytes generated, %d bytes of comments left out (%.1f%% smaller)%n",
+                    generated, omitted, (generated + omitted == 0) ? 0.0 : 100.0 * omitted / (generated + omitted));
+        }
+        if (peephole) printPeepholeHits(statistics);
+        if (foldConstants) System.out.println("Constant folding: " + statistics.foldedCommands() + " commands folded");
+        if (ssa) System.out.println("Register form: " + statistics.registerFormReport());
+        if (removeUnused) reportRemoved(removed, symbols, functionTable, options);
     }
 
     /**
-     * First pass: Parse all the functions and generate a function to file mapping
-     * @param parser the Parser object
-     * @param inputFileName the name of the input file
+     * Print the control-flow graph of every function of a .vm file or of the .vm files of a directory
+     * @param inputFileName the file or directory
+     * @param mapThreshold the file size in bytes at which input files are memory-mapped
      */
-    public static void parseFunctions(Parser parser, String inputFileName, FunctionTable functionTable) {
+    private static void dumpGraphs(String inputFileName, long mapThreshold) {
         File input = new File(inputFileName);
-        String fileName = input.getName().substring(0, input.getName().lastIndexOf('.')); // remove the .vm extension
-
-        while (parser.hasMoreCommands()) {
-            parser.advance(); // advance to the next command
-            int commandType = parser.commandType(); // get the type of command
+        File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+        if (files == null || inputFileName.equals("-")) {
+            throw new IllegalArgumentException("--dump-cfg needs a .vm file or a directory: " + inputFileName);
+        }
+        Arrays.sort(files); // stable output for comparing dumps
+        SymbolTable symbols = new SymbolTable();
+        for (File file : files) {
+            if (!file.getName().toLowerCase().endsWith(".vm")) continue;
+            CommandList commands = parseFile(file.getPath(), symbols, mapThreshold);
+            if (commands == null) continue;
+            System.out.println("// " + file.getName());
+            for (FlowGraph graph : FlowGraph.build(commands, symbols)) graph.dump(System.out, symbols);
+        }
+    }
 
-            if (commandType == Parser.C_FUNCTION) {
-                // Add the function name and filename to the map
-                functionTable.addEntry(parser.arg1(), fileName);
-            }
+    /**
+     * Print how often each peephole rule matched and the number of instructions that saved
+     * @param statistics the counts of the translation
+     */
+    private static void printPeepholeHits(TranslationStatistics statistics) {
+        long[] hits = statistics.peepholeHits();
+        long removed = 0;
+        StringBuilder rules = new StringBuilder();
+        for (int i = 0; i < hits.length; i++) {
+            PeepholeOptimizer.Rule rule = PeepholeOptimizer.RULES[i];
+            removed += hits[i] * (rule.pattern.length - rule.replacement.length);
+            rules.append(i == 0 ? "" : ", ").append(rule.name).append(' ').append(hits[i]);
         }
+        System.out.println("Peephole: " + removed + " instructions removed (" + rules + ")");
+    }
+
+    /**
+     * Print the command line usage
+     */
+    private static void printUsage() {
+        System.out.println("Usage: java VMTranslator [options] <path-to-vm-file-or-directory>");
+        System.out.println("The translator will generate a single .asm file in <path-to-vm-file-or-directory>.");
+        System.out.println("Use - as the path to translate standard input to standard output.");
+        System.out.println("Options:");
+        System.out.println("  --map-threshold <bytes>  memory-map input files of at least this size (default " + Parser.DEFAULT_MAP_THRESHOLD + ")");
+        System.out.println("  --single-pass            translate a directory in one pass, linking call targets at the end");
+        System.out.println("  --jobs <n>               translate up to n files of a directory in parallel");
+        System.out.println("  --bootstrap              write the bootstrap code when translating standard input");
+        System.out.println("  --debug                  print each command and what was written for it");
+        System.out.println("  --cache <dir>            keep the assembly of each file in dir and reuse it while the file is unchanged");
+        System.out.println("  --watch                  keep running and rebuild a directory whenever one of its .vm files changes");
+        System.out.println("  --compact                leave the comments out of the assembly and report the bytes saved");
+        System.out.println("  --shared-calls           call and return through one shared routine each for a smaller ROM");
+        System.out.println("  --shared-compares        compare through one shared routine per comparison for a smaller ROM");
+        System.out.println("  --peephole               remove redundant instructions between commands and report each rule's hits");
+        System.out.println("  --short-templates        write the shortest push/pop form for each index (e.g. A=M+1 for index 1)");
+        System.out.println("  --top-in-d               keep the top of the stack in the D register between commands");
+        System.out.println("  --fold-constants         evaluate arithmetic on constants at translation time");
+        System.out.println("  --fuse-push-pop          write a push followed by a pop as one move that does not touch SP");
+        System.out.println("  --fuse-branches          write eq/gt/lt, any nots, and if-goto as one conditional jump");
+        System.out.println("  --dump-cfg               print the control-flow graph of every function instead of translating");
+        System.out.println("  --virtual-sp             update SP only at labels, jumps, calls, and returns (not with --top-in-d)");
+        System.out.println("  --ssa                    write each basic block from its register (SSA) form (not for standard input)");
+        System.out.println("  --remove-unused          leave out the functions of a directory that Sys.init never calls, and list them");
     }
 
     /**
-     * Second pass: Parse the input file VM code, generate the Hack assembly code, and write it to the output file
-     * @param parser the Parser object
+     * Get the value that follows a command line option
+     * @param args the command line arguments
+     * @param i the index of the option
+     * @return String the value of the option
+     */
+    private static String optionValue(String[] args, int i) {
+        if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for option: " + args[i]);
+        return args[i + 1];
+    }
+
+    /**
+     * Parse the input file VM code once into a compact command list
      * @param inputFileName the name of the input file
-     * @param codeWriter the CodeWriter object
+     * @param symbols the symbol table shared by every file
+     * @param mapThreshold the file size in bytes at which the file is memory-mapped instead of streamed
+     * @return CommandList the commands of the file, or null if the file cannot be read
      */
-    public static void parseInput(Parser parser, String inputFileName, CodeWriter codeWriter) {
+    public static CommandList parseFile(String inputFileName, SymbolTable symbols, long mapThreshold) {
         // Ensure the input file exists, is readable, and has the .vm extension
         Path inputFile = Paths.get(inputFileName);
         try {
             inputFile.getFileSystem().provider().checkAccess(inputFile, AccessMode.READ);
             if (!inputFileName.endsWith(".vm")) {
                 System.out.println("Input file must have a .vm extension");
-                return;
+                return null;
             }
         } catch (IOException e) {
             System.out.println("Hack VM Translator I/O Exception: " + e);
-            return;
+            return null;
         }
 
         File input = new File(inputFileName);
         String fileName = input.getName().substring(0, input.getName().lastIndexOf('.')); // remove the .vm extension
-        codeWriter.setFileName(fileName); // set the file name
-
-        while (parser.hasMoreCommands()) {
-            parser.advance(); // advance to the next command
-            int commandType = parser.commandType(); // get the type of command
-            switch (commandType) {
-                case Parser.C_ARITHMETIC:
-                    Debug.print("C_ARITHMETIC: ");
-                    Debug.println(parser.arg1());
-                    codeWriter.writeArithmetic(parser.arg1()); // write the arithmetic command
-                    break;
-                case Parser.C_PUSH:
-                    Debug.print("C_PUSH: ");
-                    Debug.println(parser.arg1() + " // Index: " + parser.arg2());
-                    codeWriter.writePushPop(Parser.C_PUSH, parser.arg1(), parser.arg2());
-                    break;
-                case Parser.C_POP:
-                    Debug.print("C_POP: ");
-                    Debug.println(parser.arg1() + " // Index: " + parser.arg2());
-                    codeWriter.writePushPop(Parser.C_POP, parser.arg1(), parser.arg2());
-                    break;
-                case Parser.C_LABEL:
-                    Debug.println("C_LABEL: ");
-                    Debug.println(parser.arg1());
-                    codeWriter.writeLabel(parser.arg1());
-                    break;
-                case Parser.C_GOTO:
-                    Debug.println("C_GOTO: ");
-                    Debug.println(parser.arg1());
-                    codeWriter.writeGoto(parser.arg1());
-                    break;
-                case Parser.C_IF:
-                    Debug.println("C_IF: ");
-                    Debug.println(parser.arg1());
-                    codeWriter.writeIf(parser.arg1());
-                    break;
-                case Parser.C_FUNCTION:
-                    Debug.println("C_FUNCTION: ");
-                    Debug.println(parser.arg1() + " // Number of local variables: " + parser.arg2());
-                    codeWriter.writeFunction(parser.arg1(), parser.arg2());
-                    break;
-                case Parser.C_RETURN:
-                    Debug.println("C_RETURN");
-                    codeWriter.writeReturn();
-                    break;
-                case Parser.C_CALL:
-                    Debug.println("C_CALL: ");
-                    Debug.println(parser.arg1() + " // Number of arguments: " + parser.arg2());
-                    codeWriter.writeCall(parser.arg1(), parser.arg2());
-                    break;
-                default:
-                    Debug.println("Command type: UNKNOWN");
-                    break;
+        Parser parser = new Parser(inputFileName, symbols, mapThreshold); // unique parser object for each file per API
+        return CommandList.parse(parser, fileName); // closes the parser
+    }
+
+    /**
+     * First pass: Scan all the functions and generate a function to file mapping
+     * @param commands the parsed commands of one file
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the FunctionTable to fill in
+     */
+    public static void parseFunctions(CommandList commands, SymbolTable symbols, FunctionTable functionTable) {
+        String function = null; // the function being scanned; null before the first one
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.opcode(i) == Opcode.FUNCTION) {
+                // Add the function name and filename to the map
+                function = symbols.name(commands.symbol(i));
+                functionTable.addEntry(function, commands.fileName());
+            } else if (commands.opcode(i) == Opcode.CALL) {
+                functionTable.addCall(function, symbols.name(commands.symbol(i))); // an edge of the call graph
+            }
+        }
+    }
+
+    /**
+     * Leave out the functions that no chain of calls from Sys.init reaches
+     * The commands before the first function of a file are kept, with the calls they make.
+     * @param programs the parsed commands of each file
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the frozen function table, with every call recorded
+     * @param removed receives the functions left out, one command list per file that had any
+     * @return List the commands of each file without them; files left empty are dropped
+     */
+    private static List<CommandList> removeUnused(List<CommandList> programs, SymbolTable symbols, FunctionTable functionTable, List<CommandList> removed) {
+        if (!functionTable.contains("Sys.init")) {
+            System.out.println("Unused functions: Sys.init is not defined, so every function is kept");
+            return programs;
+        }
+        Set<String> reachable = functionTable.reachableFrom("Sys.init");
+        List<CommandList> kept = new ArrayList<>();
+        for (CommandList commands : programs) {
+            CommandList keep = new CommandList(commands.fileName());
+            CommandList drop = new CommandList(commands.fileName());
+            CommandList target = keep; // the commands before the first function are kept
+            for (int i = 0; i < commands.size(); i++) {
+                if (commands.opcode(i) == Opcode.FUNCTION) {
+                    target = reachable.contains(symbols.name(commands.symbol(i))) ? keep : drop;
+                }
+                target.add(commands.opcode(i), commands.segment(i), commands.symbol(i), commands.operand(i));
+            }
+            if (keep.size() > 0) kept.add(keep);
+            if (drop.size() > 0) removed.add(drop);
+        }
+        return kept;
+    }
+
+    /**
+     * List the functions --remove-unused left out, with the assembly each would have taken
+     * Each is translated on its own, with the same options, only to be measured; its counts go to a
+     * collector of their own, so the other reports count only the output.
+     * @param removed the functions left out, one command list per file
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the frozen function table
+     * @param options the code generation settings of the output
+     */
+    private static void reportRemoved(List<CommandList> removed, SymbolTable symbols, FunctionTable functionTable, CodeWriterOptions options) {
+        int functions = 0;
+        long bytes = 0;
+        long instructions = 0;
+        List<String> lines = new ArrayList<>();
+        TranslationStatistics measured = new TranslationStatistics(); // not reported
+        for (CommandList commands : removed) {
+            int start = 0;
+            for (int i = 1; i <= commands.size(); i++) {
+                if (i < commands.size() && commands.opcode(i) != Opcode.FUNCTION) continue;
+                CommandList function = new CommandList(commands.fileName());
+                for (int j = start; j < i; j++) {
+                    function.add(commands.opcode(j), commands.segment(j), commands.symbol(j), commands.operand(j));
+                }
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                CodeWriter codeWriter = new CodeWriter(output, functionTable, symbols, options, measured);
+                codeWriter.assumeSharedRoutines(); // the bootstrap code has them
+                parseInput(function, symbols, codeWriter);
+                codeWriter.close();
+                String assembly = output.toString(StandardCharsets.US_ASCII);
+                long count = assembly.lines().filter(line -> !line.isEmpty() && !line.startsWith("//") && !line.startsWith("(")).count();
+                lines.add(String.format("  %-40s %7d bytes %6d instructions", symbols.name(commands.symbol(start)), assembly.length(), count));
+                functions++;
+                bytes += assembly.length();
+                instructions += count;
+                start = i;
+            }
+        }
+        System.out.println("Unused functions: " + functions + " removed, " + bytes + " bytes and " + instructions + " instructions of assembly saved");
+        lines.forEach(System.out::println);
+    }
+
+    /**
+     * Directory build with a FragmentCache: files are read and hashed, and only those without a
+     * current cache entry are parsed and translated; the others contribute their stored function
+     * names to the function table and their stored assembly to the output
+     * @param files the files of the directory
+     * @param symbols the symbol table shared by every file
+     * @param functionTable the FunctionTable to fill in
+     * @param codeWriter the CodeWriter of the output file; each file is translated with its options and statistics
+     * @param jobs the number of files translated at the same time
+     * @param cache the cache to read and update
+     * @return int the number of .vm files translated
+     */
+    public static int translateCached(File[] files, SymbolTable symbols, FunctionTable functionTable, CodeWriter codeWriter, int jobs, FragmentCache cache) {
+        List<FragmentCache.Entry> entries = new ArrayList<>();
+        List<CommandList> programs = new ArrayList<>(); // null where the cached assembly is used
+        for (File file : files) {
+            if (file.getName().toLowerCase().endsWith(".vm")) {
+                System.out.println("Reading file: " + file.getName());
+                FragmentCache.Entry entry = cache.load(file.toPath());
+                entries.add(entry);
+                if (entry.isCached()) {
+                    for (String function : entry.functions) functionTable.addEntry(function, entry.fileName);
+                    programs.add(null);
+                } else {
+                    CommandList commands = parseSource(entry, symbols);
+                    parseFunctions(commands, symbols, functionTable);
+                    programs.add(commands);
+                }
+            }
+        }
+        if (entries.isEmpty()) return 0;
+        functionTable.freeze(); // complete; read-only from here on
+
+        // a cached file must be translated again if a function it calls has moved to another file
+        for (int i = 0; i < entries.size(); i++) {
+            if (programs.get(i) == null && !cache.isCurrent(entries.get(i), functionTable)) {
+                programs.set(i, parseSource(entries.get(i), symbols));
+            }
+        }
+        System.out.println("Reusing " + cache.hits() + " of " + entries.size() + " files from the cache");
+
+        // write the bootstrap code to initialize the VM when translating a directory
+        codeWriter.writeInit();
+
+        if (jobs > 1) {
+            FragmentSink sink = new FragmentSink(codeWriter, entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                if (programs.get(i) == null) sink.submit(i, entries.get(i).assembly);
+            }
+            translateParallel(programs, symbols, functionTable, codeWriter.options(), codeWriter.statistics(), jobs, sink, cache);
+        } else {
+            for (int i = 0; i < entries.size(); i++) {
+                CommandList commands = programs.get(i);
+                if (commands == null) {
+                    codeWriter.writeFragment(entries.get(i).assembly);
+                } else {
+                    byte[] assembly = translateFile(commands, symbols, functionTable, codeWriter.options(), codeWriter.statistics());
+                    cache.store(commands, symbols, functionTable, assembly);
+                    codeWriter.writeFragment(assembly);
+                }
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Build a directory, then rebuild it each time one of its .vm files is created, changed, or deleted
+     * The symbol table and the translation of every unchanged file stay in memory between builds,
+     * so a rebuild parses and translates only the files that changed.
+     * @param directory the directory to translate
+     * @param jobs the number of files translated at the same time
+     * @param options the code generation settings
+     * @param cache holds the translated files between builds
+     */
+    public static void watch(File directory, int jobs, CodeWriterOptions options, FragmentCache cache) {
+        Path output = directory.toPath().resolve(directory.getName() + ".asm"); // same name as a normal build
+        SymbolTable symbols = new SymbolTable(); // shared by every build; names are only ever added
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            while (true) {
+                long start = System.nanoTime();
+                try {
+                    cache.beginBuild();
+                    FunctionTable functionTable = new FunctionTable(); // rebuilt each time; functions may move
+                    ByteArrayOutputStream assembly = new ByteArrayOutputStream();
+                    CodeWriter codeWriter = new CodeWriter(assembly, functionTable, symbols, options, new TranslationStatistics()); // not reported
+                    File[] files = directory.listFiles();
+                    int fileCount = (files == null) ? 0 : translateCached(files, symbols, functionTable, codeWriter, jobs, cache);
+                    codeWriter.close();
+                    if (fileCount == 0) {
+                        System.out.println("No .vm files found in directory: " + directory);
+                    } else {
+                        Files.write(output, assembly.toByteArray()); // only a complete build replaces the output
+                        System.out.printf("Wrote %s in %.1f ms%n", output, (System.nanoTime() - start) / 1e6);
+                    }
+                } catch (RuntimeException e) { // e.g. a file saved halfway; keep the last good output
+                    System.out.println("Hack VM Translator build failed: " + e);
+                }
+                System.out.println("Watching " + directory + " for changes...");
+                waitForChange(watcher);
+            }
+        } catch (IOException e) {
+            System.out.println("Hack VM Translator I/O Exception: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a .vm file changes, then for the burst of events an editor save makes to settle
+     * @param watcher the watch service the directory is registered with
+     */
+    private static void waitForChange(WatchService watcher) throws InterruptedException {
+        boolean changed = false;
+        WatchKey key = watcher.take();
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Object context = event.context(); // the file name, or null if events were lost
+                if (context == null || context.toString().toLowerCase().endsWith(".vm")) changed = true;
+            }
+            if (!key.reset()) throw new IllegalStateException("Directory is no longer accessible");
+            key = changed ? watcher.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS) : watcher.take(); // ignore our own .asm
+        }
+    }
+
+    /**
+     * Parse the contents of a file that were read by the cache
+     * @param entry the cache entry holding the file contents
+     * @param symbols the symbol table shared by every file
+     * @return CommandList the commands of the file
+     */
+    private static CommandList parseSource(FragmentCache.Entry entry, SymbolTable symbols) {
+        System.out.println("Parsing file: " + entry.fileName + ".vm");
+        Parser parser = new Parser(new ByteArrayInputStream(entry.source), symbols);
+        return CommandList.parse(parser, entry.fileName); // closes the parser
+    }
+
+    /**
+     * Second pass for several files at once: translate each file into its own buffer on a thread pool
+     * Each file gets its own CodeWriter (and so its own TranslationContext); the files share only
+     * the frozen function table, the symbol table (only read here), the options, the cache, and the
+     * thread-safe statistics and sink.
+     * @param programs the parsed commands of each file; null for a file already submitted to the sink
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the frozen function table
+     * @param options the code generation settings
+     * @param statistics the collector every file's counts are added to
+     * @param jobs the number of worker threads
+     * @param sink receives the assembly of each file and writes it out in file order
+     * @param cache stores the assembly of each file, or null
+     */
+    public static void translateParallel(List<CommandList> programs, SymbolTable symbols, FunctionTable functionTable, CodeWriterOptions options, TranslationStatistics statistics, int jobs, FragmentSink sink, FragmentCache cache) {
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < programs.size(); i++) {
+                CommandList commands = programs.get(i);
+                if (commands == null) continue;
+                int index = i;
+                futures.add(pool.submit(() -> {
+                    byte[] assembly = translateFile(commands, symbols, functionTable, options, statistics);
+                    if (cache != null) cache.store(commands, symbols, functionTable, assembly);
+                    sink.submit(index, assembly);
+                }));
             }
+            for (Future<?> future : futures) {
+                future.get(); // wait for every file and surface the first failure
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause(); // e.g. Function not found
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
         }
+        if (!sink.isComplete()) throw new IllegalStateException("Not every file was written to the output");
+    }
 
-        // Close the Hack Assembler input file and exit
+    /**
+     * Translate one file into a buffer of its own
+     * @param commands the parsed commands of the file
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the frozen function table
+     * @param options the code generation settings
+     * @param statistics the collector the file's counts are added to
+     * @return byte[] the assembly of the file
+     */
+    public static byte[] translateFile(CommandList commands, SymbolTable symbols, FunctionTable functionTable, CodeWriterOptions options, TranslationStatistics statistics) {
+        System.out.println("Processing file: " + commands.fileName() + ".vm");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(output, functionTable, symbols, options, statistics); // one writer per file
+        codeWriter.assumeSharedRoutines(); // the bootstrap of the output file has them
+        parseInput(commands, symbols, codeWriter);
+        codeWriter.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Translate a stream of VM code command by command, writing the assembly as it is generated
+     * Nothing is kept per command, so memory stays bounded however long the stream is. The stream
+     * may hold several files one after another: by the Jack convention the class part of a function
+     * name (Main in Main.main) is the file it came from, and it names that function's statics, labels,
+     * and call target, as a directory translation of the same files would.
+     * @param parser the Parser reading the stream
+     * @param symbols the symbol table the command names are interned in
+     * @param functionTable the FunctionTable, filled in as functions are defined or called
+     * @param codeWriter the CodeWriter object
+     * @param bootstrap true to write the bootstrap code first
+     */
+    public static void translateStream(Parser parser, SymbolTable symbols, FunctionTable functionTable, CodeWriter codeWriter, boolean bootstrap) {
+        if (bootstrap) {
+            functionTable.addEntry("Sys.init", fileOf("Sys.init"));
+            codeWriter.writeInit();
+        }
+        codeWriter.resumeFile(STREAM_FILE_NAME); // commands before the first function
+        while (true) {
+            if (!parser.ready()) codeWriter.flush(); // about to wait for input: pass on what is done
+            if (!parser.hasMoreCommands()) break;
+            parser.advance();
+            Opcode opcode = parser.opcode();
+            int symbol = parser.symbol();
+            if (opcode == Opcode.FUNCTION || opcode == Opcode.CALL) {
+                // the file of a function follows from its name, so no call has to wait for its definition
+                String functionName = symbols.name(symbol);
+                if (!functionTable.contains(functionName)) functionTable.addEntry(functionName, fileOf(functionName));
+                if (opcode == Opcode.FUNCTION) codeWriter.resumeFile(functionTable.getFile(functionName));
+            }
+            int arg2 = (opcode.argumentCount() == 2) ? parser.arg2() : 0;
+            writeCommand(codeWriter, symbols, opcode, parser.segment(), symbol, arg2);
+        }
         parser.close();
     }
+
+    /**
+     * Get the file a function of a stream belongs to: the class part of its name
+     * @param functionName the function name, e.g. Main.main
+     * @return String the file name, e.g. Main, or STREAM_FILE_NAME if the name has no class part
+     */
+    static String fileOf(String functionName) {
+        int dot = functionName.indexOf('.');
+        return (dot > 0) ? functionName.substring(0, dot) : STREAM_FILE_NAME;
+    }
+
+    /**
+     * Second pass: Generate the Hack assembly code for the parsed VM code and write it to the output file
+     * @param commands the parsed commands of one file
+     * @param symbols the symbol table the command names are interned in
+     * @param codeWriter the CodeWriter object
+     */
+    public static void parseInput(CommandList commands, SymbolTable symbols, CodeWriter codeWriter) {
+        codeWriter.setFileName(commands.fileName()); // set the file name
+        if (codeWriter.options().isSsa()) { // whole functions at a time
+            SsaLowering.translate(commands, symbols, codeWriter);
+            return;
+        }
+
+        for (int i = 0; i < commands.size(); i++) {
+            writeCommand(codeWriter, symbols, commands.opcode(i), commands.segment(i), commands.symbol(i), commands.operand(i));
+        }
+    }
+
+    /**
+     * Write the assembly code of one decoded command
+     * The opcode and segment go to the CodeWriter as they were decoded; nothing is turned back into a keyword.
+     * @param codeWriter the CodeWriter object
+     * @param symbols the symbol table the names are interned in, for the debug output
+     * @param opcode the command
+     * @param segment the segment of a push or pop, otherwise null
+     * @param symbol the symbol id of a label, goto, if-goto, function, or call name, otherwise -1
+     * @param arg2 the second argument, or 0 if the command has none
+     */
+    static void writeCommand(CodeWriter codeWriter, SymbolTable symbols, Opcode opcode, Segment segment, int symbol, int arg2) {
+        switch (opcode.commandType()) {
+            case Parser.C_ARITHMETIC:
+                if (Debug.DEBUG_MODE) Debug.println("C_ARITHMETIC: " + opcode.keyword());
+                codeWriter.writeArithmetic(opcode); // write the arithmetic command
+                break;
+            case Parser.C_PUSH:
+                if (Debug.DEBUG_MODE) Debug.println("C_PUSH: " + segment.keyword() + " // Index: " + arg2);
+                codeWriter.writePushPop(Parser.C_PUSH, segment, arg2);
+                break;
+            case Parser.C_POP:
+                if (Debug.DEBUG_MODE) Debug.println("C_POP: " + segment.keyword() + " // Index: " + arg2);
+                codeWriter.writePushPop(Parser.C_POP, segment, arg2);
+                break;
+            case Parser.C_LABEL:
+                if (Debug.DEBUG_MODE) Debug.println("C_LABEL: \n" + symbols.name(symbol));
+                codeWriter.writeLabel(symbol);
+                break;
+            case Parser.C_GOTO:
+                if (Debug.DEBUG_MODE) Debug.println("C_GOTO: \n" + symbols.name(symbol));
+                codeWriter.writeGoto(symbol);
+                break;
+            case Parser.C_IF:
+                if (Debug.DEBUG_MODE) Debug.println("C_IF: \n" + symbols.name(symbol));
+                codeWriter.writeIf(symbol);
+                break;
+            case Parser.C_FUNCTION:
+                if (Debug.DEBUG_MODE) Debug.println("C_FUNCTION: \n" + symbols.name(symbol) + " // Number of local variables: " + arg2);
+                codeWriter.writeFunction(symbol, arg2);
+                break;
+            case Parser.C_RETURN:
+                Debug.println("C_RETURN");
+                codeWriter.writeReturn();
+                break;
+            case Parser.C_CALL:
+                if (Debug.DEBUG_MODE) Debug.println("C_CALL: \n" + symbols.name(symbol) + " // Number of arguments: " + arg2);
+                codeWriter.writeCall(symbol, arg2);
+                break;
+            default:
+                Debug.println("Command type: UNKNOWN");
+                break;
+        }
+    }
 }